@@ -3,56 +3,92 @@ package net.krazyweb.stardb;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
-import java.util.Arrays;
 
+/**
+ * A SeekableByteChannel over data held in memory. The channel either owns a growable buffer or wraps an existing
+ * array or ByteBuffer without copying it; wrapping a read-only buffer gives a read-only channel, which is how blocks
+ * of memory-mapped files are exposed.
+ * <p>
+ * Writes overwrite the data at the current position and advance it, growing the channel as needed. The buffer grows
+ * geometrically, so appending n bytes costs O(n) overall. A channel is meant to be used by a single owner at a time
+ * and is not synchronized.
+ */
 public class SeekableInMemoryByteChannel implements SeekableByteChannel {
 
-	private int position;
-	protected volatile boolean open;
+	private static final int defaultCapacity = 32;
 	
-	private byte[] data;
+	private ByteBuffer data;
+	private int size;
+	private int position;
+	private boolean open;
 	
+	/**
+	 * Creates a new, empty channel.
+	 */
 	public SeekableInMemoryByteChannel() {
+		this(defaultCapacity);
+	}
+	
+	/**
+	 * Creates a new, empty channel with room for the given number of bytes before it has to grow.
+	 * @param initialCapacity - The initial capacity in bytes.
+	 */
+	public SeekableInMemoryByteChannel(final int initialCapacity) {
 		
-		synchronized (this) {
-			position = 0;
-			data = new byte[0];
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("Capacity cannot be negative.");
 		}
 		
+		data = ByteBuffer.allocate(initialCapacity);
+		size = 0;
+		position = 0;
 		open = true;
 		
 	}
 	
+	/**
+	 * Creates a channel over the contents of an array, without copying it. Writes within the array's length are made
+	 * to the array itself.
+	 * @param data - The array to expose.
+	 */
+	public SeekableInMemoryByteChannel(final byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Creates a channel over the remaining contents of a ByteBuffer, without copying them. The channel is read-only if
+	 * the buffer is. The buffer's position and limit are not modified.
+	 * @param data - The buffer to expose.
+	 */
+	public SeekableInMemoryByteChannel(final ByteBuffer data) {
+		this.data = data.slice();
+		size = this.data.capacity();
+		position = 0;
+		open = true;
+	}
+	
 	@Override
 	public void close() throws IOException {
 		open = false;
 	}
-
+	
 	@Override
 	public boolean isOpen() {
 		return open;
 	}
-
+	
 	@Override
 	public long position() throws IOException {
-		
-		if (!open) {
-			throw new ClosedChannelException();
-		}
-		
-		synchronized (this) {
-			return position;
-		}
-		
+		checkIfOpen();
+		return position;
 	}
-
+	
 	@Override
-	public SeekableByteChannel position(long newPosition) throws IOException {
+	public SeekableByteChannel position(final long newPosition) throws IOException {
 		
-		if (!open) {
-			throw new ClosedChannelException();
-		}
+		checkIfOpen();
 		
 		if (newPosition < 0) {
 			throw new IllegalArgumentException("Channel position cannot be negative.");
@@ -62,135 +98,144 @@ public class SeekableInMemoryByteChannel implements SeekableByteChannel {
 			throw new IllegalArgumentException("Channel position cannot be greater than Integer.MAX_VALUE.");
 		}
 		
-		synchronized (this) {
-			position = (int) newPosition;
-		}
+		position = (int) newPosition;
 		
 		return this;
 		
 	}
-
+	
 	@Override
-	public int read(ByteBuffer dst) throws IOException {
+	public int read(final ByteBuffer dst) throws IOException {
 		
-		if (!open) {
-			throw new ClosedChannelException();
-		}
+		checkIfOpen();
 		
 		if (dst == null) {
 			throw new IOException("A destination buffer must be supplied.");
 		}
 		
-		int bytesToRead = dst.remaining();
-		int bytesRead = 0;
-		
-		synchronized (this) {
-			
-			if (position > data.length) {
-				return 0;
-			}
-			
-			if (position + bytesToRead > data.length) {
-				bytesToRead = data.length - position;
-			}
-			
-			dst.put(Arrays.copyOfRange(data, position, position + bytesToRead));
-			
-			position += bytesToRead;
-			
+		if (position >= size) {
+			return -1;
 		}
 		
-		bytesRead = bytesToRead;
+		int bytesToRead = Math.min(dst.remaining(), size - position);
+		
+		data.limit(position + bytesToRead);
+		data.position(position);
+		dst.put(data);
 		
-		return bytesRead;
+		position += bytesToRead;
+		
+		return bytesToRead;
 		
 	}
-
+	
 	@Override
 	public long size() throws IOException {
-		
-		if (!open) {
-			throw new ClosedChannelException();
-		}
-		
-		synchronized (this) {
-			return data.length;
-		}
-		
+		checkIfOpen();
+		return size;
 	}
-
+	
 	@Override
-	public SeekableByteChannel truncate(long size) throws IOException {
-
-		if (!open) {
-			throw new ClosedChannelException();
+	public SeekableByteChannel truncate(final long size) throws IOException {
+		
+		checkIfOpen();
+		
+		if (data.isReadOnly()) {
+			throw new NonWritableChannelException();
 		}
 		
 		if (size < 0) {
 			throw new IllegalArgumentException("Size cannot be negative.");
 		}
 		
-		if (size > Integer.MAX_VALUE) {
-			throw new IllegalArgumentException("Size cannot be greater than Integer.MAX_VALUE.");
+		if (size < this.size) {
+			this.size = (int) size;
 		}
 		
-		synchronized (this) {
-			
-			if (data.length < size) {
-				position = (int) size;
-				return this;
-			}
-
-			if (position > size) {
-				position = (int) size;
-			}
-			
-			if (data.length > size) {
-				
-				data = Arrays.copyOfRange(data, 0, (int) size);
-				
-			}
-			
+		if (position > size) {
+			position = (int) size;
 		}
 		
 		return this;
 		
 	}
-
+	
 	@Override
-	public int write(ByteBuffer src) throws IOException {
-
-		if (!open) {
-			throw new ClosedChannelException();
+	public int write(final ByteBuffer src) throws IOException {
+		
+		checkIfOpen();
+		
+		if (data.isReadOnly()) {
+			throw new NonWritableChannelException();
 		}
 		
 		if (src == null) {
 			throw new IOException("A source buffer must be supplied.");
 		}
 		
-		int bytesToRead = src.remaining();
-		
-		synchronized (this) {
-			
-			byte[] toPosition = Arrays.copyOfRange(data, 0, position);
-			byte[] afterPosition = Arrays.copyOfRange(data, position, data.length);
-			byte[] toInsert = new byte[bytesToRead];
-			src.get(toInsert);
-			
-			byte[] output = new byte[toPosition.length + afterPosition.length + toInsert.length];
-			
-			System.arraycopy(toPosition, 0, output, 0, toPosition.length);
-			System.arraycopy(toInsert, 0, output, toPosition.length, toInsert.length);
-			System.arraycopy(afterPosition, 0, output, toPosition.length + toInsert.length, afterPosition.length);
-			
-			data = output;
-			
+		int bytesToWrite = src.remaining();
+		
+		if ((long) position + bytesToWrite > Integer.MAX_VALUE) {
+			throw new IOException("Channel size cannot be greater than Integer.MAX_VALUE.");
 		}
 		
-		return bytesToRead;
+		int end = position + bytesToWrite;
+		
+		ensureCapacity(end);
+		
+		for (int i = size; i < position; i++) {
+			data.put(i, (byte) 0);
+		}
+		
+		data.limit(end);
+		data.position(position);
+		data.put(src);
+		
+		position = end;
+		size = Math.max(size, end);
+		
+		return bytesToWrite;
 		
 	}
 	
+	/**
+	 * Copies the contents of the channel into a new array.
+	 * @return The contents of the channel.
+	 */
+	public byte[] toByteArray() {
+		
+		byte[] output = new byte[size];
+		
+		data.limit(size);
+		data.position(0);
+		data.get(output);
+		
+		return output;
+		
+	}
 	
+	private void checkIfOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+	
+	private void ensureCapacity(final int required) {
+		
+		if (required <= data.capacity()) {
+			return;
+		}
+		
+		int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max((long) required, Math.max(defaultCapacity, data.capacity() * 2L)));
+		
+		ByteBuffer grown = ByteBuffer.allocate(capacity);
+		
+		data.limit(size);
+		data.position(0);
+		grown.put(data);
+		
+		data = grown;
+		
+	}
 	
-}
\ No newline at end of file
+}
@@ -1,31 +1,59 @@
 package net.krazyweb.stardb;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import net.krazyweb.stardb.exceptions.StarDBException;
 
 public class StarDBUtils {
+
+	/**
+	 * The charset of every path stored in a database, used both to hash paths into keys and to pack and unpack lists
+	 * of paths.
+	 */
+	public static final Charset utf8 = Charset.forName("UTF-8");
+	
+	private static final ConcurrentMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
 	
 	/**
 	 * Reads a variable length quantity from the current position in the bytechannel.
-	 * @param byteChannel - The SeekableByteChannel to read from.
+	 * @param byteChannel - The ReadableByteChannel to read from.
 	 * @return A length (in bytes) for something.
 	 * @throws StarDBException
 	 */
-	public static int readVLQU(final SeekableByteChannel byteChannel) throws StarDBException {
+	public static int readVLQU(final ReadableByteChannel byteChannel) throws StarDBException {
 		
+		ByteBuffer buff = ByteBuffer.allocate(1);
 		int value = 0;
 		
 		while (true) {
 			
-			ByteBuffer buff = readToBuffer(byteChannel, 1);
+			buff.clear();
+			
+			try {
+				if (byteChannel.read(buff) < 1) {
+					throw new StarDBException("Unexpected end of data while reading a variable length quantity.");
+				}
+			} catch (IOException e) {
+				throw new StarDBException("Error: " + e.getMessage(), e);
+			}
 			
-			int temp = buff.get();
+			int temp = buff.get(0);
 			
 			value = (value << 7 | (temp & 0x7f));
 			
@@ -34,19 +62,177 @@ public class StarDBUtils {
 			}
 			
 		}
-    		
+		
+		return value;
+		
+	}
+	
+	/**
+	 * Reads a variable length quantity from the current position in the buffer, advancing the position past it.
+	 * @param buffer - The ByteBuffer to read from.
+	 * @return A length (in bytes) for something.
+	 * @throws BufferUnderflowException The buffer ends before the quantity does.
+	 */
+	public static int readVLQU(final ByteBuffer buffer) {
+		
+		int value = 0;
+		int temp;
+		
+		do {
+			temp = buffer.get();
+			value = (value << 7 | (temp & 0x7f));
+		} while ((temp & 0x80) != 0);
+		
 		return value;
 		
 	}
 	
 	/**
-	 * Reads a series of bytes from a SeekableByteChannel into a new ByteBuffer of the specified length.
-	 * @param byteChannel - The SeekableByteChannel from which to read the data.
+	 * Encodes a value as a variable length quantity, the inverse of {@link #readVLQU(ByteBuffer)}.
+	 * @param value - The value to encode, treated as unsigned.
+	 * @return The encoded bytes, most significant group first.
+	 */
+	public static byte[] packVLQU(int value) {
+		
+		byte[] buffer = new byte[5];
+		int position = buffer.length - 1;
+		
+		buffer[position] = (byte) (value & 0x7f);
+		value >>>= 7;
+		
+		while (value != 0) {
+			buffer[--position] = (byte) (0x80 | (value & 0x7f));
+			value >>>= 7;
+		}
+		
+		return Arrays.copyOfRange(buffer, position, buffer.length);
+		
+	}
+	
+	/**
+	 * Copies a series of bytes, such as a key, out of the buffer at its current position, advancing the position past them.
+	 * @param buffer - The ByteBuffer to read from.
+	 * @param size - The amount of data to read in bytes.
+	 * @return The bytes read.
+	 * @throws BufferUnderflowException The buffer has fewer bytes remaining than requested.
+	 */
+	public static byte[] readBytes(final ByteBuffer buffer, final int size) {
+		byte[] bytes = new byte[size];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Checks whether the buffer holds the given ASCII signature at the given position, without reading or copying it
+	 * out of the buffer. The buffer's position is not modified.
+	 * @param buffer - The ByteBuffer to check.
+	 * @param position - The position in the buffer at which the signature should start.
+	 * @param magic - The expected signature.
+	 * @return Whether the signature is present.
+	 */
+	public static boolean matches(final ByteBuffer buffer, final int position, final String magic) {
+		
+		if (position + magic.length() > buffer.limit()) {
+			return false;
+		}
+		
+		for (int i = 0; i < magic.length(); i++) {
+			if (buffer.get(position + i) != magic.charAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Reads a fixed length string, such as a file or content identifier, from the given position in the buffer. The
+	 * buffer's position is not modified.
+	 * @param buffer - The ByteBuffer to read from.
+	 * @param position - The position in the buffer at which the string starts.
+	 * @param size - The length of the string in bytes.
+	 * @return The string.
+	 */
+	public static String readString(final ByteBuffer buffer, final int position, final int size) {
+		
+		byte[] bytes = new byte[size];
+		
+		for (int i = 0; i < size; i++) {
+			bytes[i] = buffer.get(position + i);
+		}
+		
+		return new String(bytes);
+		
+	}
+	
+	/**
+	 * Compares two keys lexicographically, treating each byte as unsigned. This is the order keys are stored in.
+	 * @param a - The first key.
+	 * @param aOffset - The offset of the first key within its array.
+	 * @param b - The second key.
+	 * @param bOffset - The offset of the second key within its array.
+	 * @param length - The number of bytes to compare.
+	 * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than the second.
+	 */
+	public static int compareUnsigned(final byte[] a, final int aOffset, final byte[] b, final int bOffset, final int length) {
+		
+		for (int i = 0; i < length; i++) {
+			int comparison = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		
+		return 0;
+		
+	}
+	
+	/**
+	 * Compares two keys lexicographically, treating each byte as unsigned. A key which is a prefix of the other is the lesser.
+	 * @param a - The first key.
+	 * @param b - The second key.
+	 * @return A negative number, zero or a positive number if the first key is less than, equal to or greater than the second.
+	 */
+	public static int compareUnsigned(final byte[] a, final byte[] b) {
+		
+		int comparison = compareUnsigned(a, 0, b, 0, Math.min(a.length, b.length));
+		
+		if (comparison != 0) {
+			return comparison;
+		}
+		
+		return a.length - b.length;
+		
+	}
+	
+	/**
+	 * Maps the leading bytes of a key onto a number that preserves the key order, for interpolating between keys.
+	 * @param key - The array containing the key.
+	 * @param offset - The offset of the key within the array.
+	 * @param length - The length of the key.
+	 * @return The leading 53 bits of the key as a double.
+	 */
+	public static double keyPosition(final byte[] key, final int offset, final int length) {
+		
+		long value = 0;
+		
+		for (int i = 0; i < 8; i++) {
+			value = value << 8 | (i < length ? key[offset + i] & 0xFF : 0);
+		}
+		
+		return value >>> 11;
+		
+	}
+	
+	/**
+	 * Reads a series of bytes from a ReadableByteChannel into a new ByteBuffer of the specified length.
+	 * @param byteChannel - The ReadableByteChannel from which to read the data.
 	 * @param size - The amount of data to read in bytes.
 	 * @return A ByteBuffer containing the requested data.
 	 * @throws StarDBException An error occurred while trying to read the ByteChannel.
 	 */
-	public static ByteBuffer readToBuffer(final SeekableByteChannel byteChannel, final int size) throws StarDBException {
+	public static ByteBuffer readToBuffer(final ReadableByteChannel byteChannel, final int size) throws StarDBException {
 		
 		ByteBuffer buffer = ByteBuffer.allocate(size);
 		buffer.order(ByteOrder.BIG_ENDIAN);
@@ -61,6 +247,35 @@ public class StarDBUtils {
 		
 	}
 	
+	/**
+	 * Reads a series of bytes from the given position in a FileChannel into a new ByteBuffer of the specified length.
+	 * The channel's own position is neither used nor modified, so this is safe to call from multiple threads at once.
+	 * @param fileChannel - The FileChannel from which to read the data.
+	 * @param position - The position in the file at which to start reading.
+	 * @param size - The amount of data to read in bytes.
+	 * @return A ByteBuffer containing the requested data, positioned at zero.
+	 * @throws StarDBException An error occurred while trying to read the FileChannel.
+	 */
+	public static ByteBuffer readToBuffer(final FileChannel fileChannel, final long position, final int size) throws StarDBException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		
+		try {
+			while (buffer.hasRemaining()) {
+				if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		buffer.rewind();
+		
+		return buffer;
+		
+	}
+	
 	/**
 	 * Unpacks a Starbound database list into a list of Strings.
 	 * @param data - The data to parse as a byte array.
@@ -73,32 +288,131 @@ public class StarDBUtils {
 		List<String> output = new ArrayList<>();
 		
 		ByteBuffer buffer = ByteBuffer.wrap(data);
-		buffer.rewind();
-		
-		SeekableInMemoryByteChannel stream = new SeekableInMemoryByteChannel();
 		
 		try {
-			stream.write(buffer);
-			stream.position(0);
-		} catch (IOException e) {
-			try {
-				stream.close();
-			} catch (IOException e1) {
-				throw new StarDBException("Error: " + e1.getMessage(), e1);
+			
+			int count = readVLQU(buffer);
+			
+			for (int i = 0; i < count * multiplier; i++) {
+				int strLen = readVLQU(buffer);
+				output.add(new String(data, buffer.position(), strLen, utf8));
+				buffer.position(buffer.position() + strLen);
 			}
-			throw new StarDBException("Error: " + e.getMessage(), e);
+			
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new StarDBException("Error: Truncated string list.", e);
 		}
 		
-		int count = StarDBUtils.readVLQU(stream);
+		return output;
 		
-		for (int i = 0; i < count * multiplier; i++) {
-			int strLen = StarDBUtils.readVLQU(stream);
-			ByteBuffer buff = readToBuffer(stream, strLen);
-			output.add(new String(buff.array()));
+	}
+	
+	/**
+	 * Packs a list of Strings into Starbound's stored list format, the inverse of {@link #unpackStringList(byte[], int)}
+	 * with a multiplier of one.
+	 * @param strings - The Strings to pack.
+	 * @return The packed list.
+	 */
+	public static byte[] packStringList(final List<String> strings) {
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream(strings.size() * 48);
+		
+		byte[] count = packVLQU(strings.size());
+		output.write(count, 0, count.length);
+		
+		for (String string : strings) {
+			byte[] data = string.getBytes(utf8);
+			byte[] length = packVLQU(data.length);
+			output.write(length, 0, length.length);
+			output.write(data, 0, data.length);
 		}
 		
-		return output;
+		return output.toByteArray();
 		
 	}
-
+	
+	/**
+	 * Creates a future which has already completed exceptionally with the given exception.
+	 * @param e - The exception to complete the future with.
+	 * @return The failed future.
+	 */
+	public static <T> CompletableFuture<T> failedFuture(final Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+	
+	/**
+	 * Finds the StarDBException behind an exception thrown while waiting for a future, wrapping the exception if there
+	 * is none.
+	 * @param e - The exception thrown by the future.
+	 * @return The StarDBException which caused the failure.
+	 */
+	public static StarDBException unwrap(final Throwable e) {
+		
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof StarDBException) {
+				return (StarDBException) cause;
+			}
+		}
+		
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		
+		return new StarDBException("Error: " + cause.getMessage(), cause instanceof Exception ? (Exception) cause : new Exception(cause));
+		
+	}
+	
+	/**
+	 * Finds the shared fork-join pool with the given parallelism, creating it on first use. Pools are kept for later
+	 * bulk operations with the same parallelism, so that they do not pay for starting threads each time, and their idle
+	 * threads exit on their own.
+	 * @param parallelism - The number of threads to use.
+	 * @return The pool.
+	 */
+	public static ForkJoinPool getPool(final int parallelism) {
+		
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be at least 1 (Got " + parallelism + ")");
+		}
+		
+		ForkJoinPool pool = pools.get(parallelism);
+		
+		if (pool == null) {
+			
+			ForkJoinPool created = new ForkJoinPool(parallelism);
+			pool = pools.putIfAbsent(parallelism, created);
+			
+			if (pool == null) {
+				pool = created;
+			} else {
+				created.shutdown();
+			}
+			
+		}
+		
+		return pool;
+		
+	}
+	
+	/**
+	 * Runs a task in a fork-join pool and waits for it to complete. Tasks report a StarDBException by wrapping it in an
+	 * unchecked exception, which is unwrapped and rethrown here.
+	 * @param pool - The pool to run the task in.
+	 * @param task - The task to run.
+	 * @return The result of the task.
+	 * @throws StarDBException The task failed with a StarDBException.
+	 */
+	public static <T> T invoke(final ForkJoinPool pool, final ForkJoinTask<T> task) throws StarDBException {
+		try {
+			return pool.invoke(task);
+		} catch (RuntimeException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof StarDBException) {
+					throw (StarDBException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+	
 }
@@ -0,0 +1,245 @@
+package net.krazyweb.stardb.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * Reads from a leaf without blocking, following its chain of blocks one asynchronous read at a time. Each block is
+ * parsed as soon as it arrives, and reading stops as soon as the wanted value has been read or the key is known to be
+ * missing, so later blocks of the chain are never read. Reads which complete straight away are handled in a loop
+ * rather than by nesting stages, so long chains cannot overflow the stack.
+ */
+class AsyncLeafReader {
+
+	private static final String leafMagic = "LL";
+	
+	private final BlockStorage blockStorage;
+	private final int keySize;
+	private final byte[] key;
+	private final CompletableFuture<byte[]> result;
+	
+	private int pointer;
+	private long remainingBlocks;
+	
+	private byte[] data;
+	private int length;
+	private int position;
+	private long skip;
+	
+	private int count;
+	private int entry;
+	private int valueSize;
+	
+	private AsyncLeafReader(final BlockStorage blockStorage, final int keySize, final byte[] key, final int pointer) {
+		this.blockStorage = blockStorage;
+		this.keySize = keySize;
+		this.key = key;
+		this.pointer = pointer;
+		result = new CompletableFuture<>();
+		remainingBlocks = blockStorage.getFileSize() / blockStorage.getBlockSize() + 1;
+		data = new byte[blockStorage.getBlockSize()];
+		count = -1;
+		valueSize = -1;
+	}
+	
+	/**
+	 * Searches a leaf for the value of a key.
+	 * @param blockStorage - The storage containing the leaf.
+	 * @param keySize - The size of each key in bytes.
+	 * @param pointer - The block index of the first block of the leaf.
+	 * @param key - The key to search for.
+	 * @return A future completed with the value, or with null if the leaf does not contain the key.
+	 */
+	protected static CompletableFuture<byte[]> find(final BlockStorage blockStorage, final int keySize, final int pointer, final byte[] key) {
+		AsyncLeafReader reader = new AsyncLeafReader(blockStorage, keySize, key, pointer);
+		reader.readBlocks();
+		return reader.result;
+	}
+	
+	/**
+	 * Reads a value whose location within a leaf is already known.
+	 * @param blockStorage - The storage containing the leaf.
+	 * @param pointer - The block index of the block in which the value starts.
+	 * @param offset - The offset of the value within that block's leaf data.
+	 * @param size - The size of the value in bytes.
+	 * @return A future completed with the value.
+	 */
+	protected static CompletableFuture<byte[]> read(final BlockStorage blockStorage, final int pointer, final int offset, final int size) {
+		AsyncLeafReader reader = new AsyncLeafReader(blockStorage, 0, null, pointer);
+		reader.count = 1;
+		reader.valueSize = size;
+		reader.skip = offset;
+		reader.readBlocks();
+		return reader.result;
+	}
+	
+	private void readBlocks() {
+		
+		while (true) {
+			
+			if (pointer < 0 || remainingBlocks-- <= 0) {
+				result.completeExceptionally(new StarDBException("Insufficient leaf data"));
+				return;
+			}
+			
+			CompletableFuture<ByteBuffer> block = blockStorage.readBlockBufferAsync(pointer, 0, 0);
+			
+			if (!block.isDone()) {
+				block.whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+					@Override
+					public void accept(final ByteBuffer buffer, final Throwable e) {
+						if (e != null) {
+							result.completeExceptionally(StarDBUtils.unwrap(e));
+						} else if (receive(buffer)) {
+							readBlocks();
+						}
+					}
+				});
+				return;
+			}
+			
+			try {
+				if (!receive(block.join())) {
+					return;
+				}
+			} catch (CompletionException e) {
+				result.completeExceptionally(StarDBUtils.unwrap(e));
+				return;
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Adds a block's leaf data to what has been read so far and parses as much of it as possible.
+	 * @param block - The block which was read.
+	 * @return Whether the next block of the chain is needed.
+	 */
+	private boolean receive(final ByteBuffer block) {
+		
+		int blockSize = blockStorage.getBlockSize();
+		
+		if (!StarDBUtils.matches(block, 0, leafMagic)) {
+			result.completeExceptionally(new StarDBException("Incorrect leaf block signature"));
+			return false;
+		}
+		
+		pointer = block.getInt(blockSize - 4);
+		
+		int start = LeafByteChannel.dataStart;
+		int size = blockSize - start - 4;
+		int skipped = (int) Math.min(skip, size);
+		
+		skip -= skipped;
+		append(block, start + skipped, size - skipped);
+		
+		return !parse();
+		
+	}
+	
+	private void append(final ByteBuffer block, final int start, final int size) {
+		
+		length -= position;
+		System.arraycopy(data, position, data, 0, length);
+		position = 0;
+		
+		if (length + size > data.length) {
+			data = Arrays.copyOf(data, Math.max(length + size, Math.max(valueSize, data.length * 2)));
+		}
+		
+		ByteBuffer source = block.duplicate();
+		source.position(start);
+		source.get(data, length, size);
+		length += size;
+		
+	}
+	
+	/**
+	 * Parses entries until the result is known or the data read so far runs out.
+	 * @return Whether the result has been completed.
+	 */
+	private boolean parse() {
+		
+		if (count < 0) {
+			
+			if (length - position < 4) {
+				return false;
+			}
+			
+			count = ByteBuffer.wrap(data, position, 4).getInt();
+			position += 4;
+			
+		}
+		
+		while (true) {
+			
+			if (valueSize >= 0) {
+				
+				if (length - position < valueSize) {
+					return false;
+				}
+				
+				result.complete(Arrays.copyOfRange(data, position, position + valueSize));
+				return true;
+				
+			}
+			
+			if (entry == count) {
+				result.complete(null);
+				return true;
+			}
+			
+			if (length - position < keySize) {
+				return false;
+			}
+			
+			int i = position + keySize;
+			int size = 0;
+			boolean complete = false;
+			
+			while (i < length && !complete) {
+				byte b = data[i++];
+				size = size << 7 | (b & 0x7F);
+				complete = (b & 0x80) == 0;
+			}
+			
+			if (!complete) {
+				return false;
+			}
+			
+			int comparison = StarDBUtils.compareUnsigned(data, position, key, 0, Math.min(keySize, key.length));
+			
+			if (comparison == 0) {
+				comparison = keySize - key.length;
+			}
+			
+			if (comparison > 0) {
+				result.complete(null);
+				return true;
+			}
+			
+			entry++;
+			position = i;
+			
+			if (comparison == 0) {
+				valueSize = size;
+			} else if (size <= length - position) {
+				position += size;
+			} else {
+				skip = size - (length - position);
+				position = length;
+			}
+			
+		}
+		
+	}
+	
+}
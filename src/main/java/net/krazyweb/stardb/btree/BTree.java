@@ -1,5 +1,13 @@
 package net.krazyweb.stardb.btree;
 
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
 
 public abstract class BTree {
@@ -22,11 +30,151 @@ public abstract class BTree {
 	 * @throws StarDBException An error occurred while retrieving the data for the specified key.
 	 */
 	protected byte[] find(final byte[] key) throws StarDBException {
+		
+		if (!mightContain(key)) {
+			return null;
+		}
+		
+		return findLeaf(key).findData(key);
+		
+	}
+	
+	/**
+	 * Retrieves the data for many keys at once. The keys are sorted and the tree is descended once, level by level, so
+	 * keys which share a node are routed through a single read of it. The nodes of each level are read in ascending
+	 * block order, keeping access to the underlying storage as sequential as possible.
+	 * @param keys - The keys to retrieve the data for.
+	 * @return The data for each key, in the same order as the keys, with null for keys which are not found.
+	 * @throws StarDBException An error occurred while retrieving the data.
+	 */
+	protected byte[][] findAll(final byte[][] keys) throws StarDBException {
+		
+		byte[][] results = new byte[keys.length][];
+		
+		if (keys.length == 0) {
+			return results;
+		}
+		
+		Integer[] order = new Integer[keys.length];
+		
+		int count = 0;
+		
+		for (int i = 0; i < keys.length; i++) {
+			if (mightContain(keys[i])) {
+				order[count++] = i;
+			}
+		}
+		
+		if (count == 0) {
+			return results;
+		}
+		
+		order = Arrays.copyOf(order, count);
+		
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return StarDBUtils.compareUnsigned(keys[a], keys[b]);
+			}
+		});
+		
+		List<Batch> batches = new ArrayList<>();
+		batches.add(new Batch(rootPointer, 0, order.length));
+		
+		boolean leaves = rootIsLeaf;
+		
+		while (!leaves) {
+			
+			Collections.sort(batches);
+			
+			List<Batch> children = new ArrayList<>();
+			
+			for (Batch batch : batches) {
+				
+				IndexNode index = loadIndex(batch.pointer);
+				leaves = index.level == 0;
+				
+				int start = batch.start;
+				
+				while (start < batch.end) {
+					
+					int child = index.find(keys[order[start]]);
+					int end = start + 1;
+					
+					while (end < batch.end && index.find(keys[order[end]]) == child) {
+						end++;
+					}
+					
+					children.add(new Batch(index.pointer(child), start, end));
+					start = end;
+					
+				}
+				
+			}
+			
+			batches = children;
+			
+		}
+		
+		Collections.sort(batches);
+		
+		for (Batch batch : batches) {
+			
+			LeafNode leaf = loadLeaf(batch.pointer);
+			
+			for (int i = batch.start; i < batch.end; i++) {
+				results[order[i]] = leaf.findData(keys[order[i]]);
+			}
+			
+		}
+		
+		return results;
+		
+	}
+	
+	/**
+	 * Opens a channel which streams the data for the specified key from the database as it is consumed.
+	 * @param key - The key to retrieve the data for.
+	 * @return A channel over the data for the specified key, or null if the key is not found.
+	 * @throws StarDBException An error occurred while locating the data for the specified key.
+	 */
+	protected ReadableByteChannel findChannel(final byte[] key) throws StarDBException {
+		
+		if (!mightContain(key)) {
+			return null;
+		}
+		
+		LeafNode leaf = findLeaf(key);
+		int i = leaf.indexOf(key);
+		
+		if (i < 0) {
+			return null;
+		}
+		
+		return leaf.openData(i);
+		
+	}
+	
+	/**
+	 * Descends the tree to the leaf which would contain the specified key.
+	 * @param key - The key to search for.
+	 * @return The leaf in which the key belongs.
+	 * @throws StarDBException An error occurred while reading the tree.
+	 */
+	protected LeafNode findLeaf(final byte[] key) throws StarDBException {
+		
 		if (rootIsLeaf) {
-			return findInLeaf(loadLeaf(rootPointer), key);
-		} else {
-			return findInIndex(loadIndex(rootPointer), key);
+			return loadLeaf(rootPointer);
 		}
+		
+		IndexNode index = loadIndex(rootPointer);
+		
+		while (index.level != 0) {
+			index = loadIndex(index.pointer(index.find(key)));
+		}
+		
+		return loadLeaf(index.pointer(index.find(key)));
+		
 	}
 	
 	/**
@@ -46,24 +194,21 @@ public abstract class BTree {
 	 * @throws StarDBException An error occurred while retrieving the data for the specified key.
 	 */
 	protected boolean contains(final byte[] key) throws StarDBException {
-		if (find(key) != null) {
+		if (mightContain(key) && findLeaf(key).indexOf(key) >= 0) {
 			return true;
 		} else {
 			return false;
 		}
 	}
 	
-	private byte[] findInLeaf(final LeafNode leaf, final byte[] key) throws StarDBException {
-		return leaf.findData(key);
-	}
-	
-	private byte[] findInIndex(final IndexNode index, final byte[] key) throws StarDBException {
-		int i = index.find(key);
-		if (index.level == 0) {
-			return findInLeaf(loadLeaf(index.pointer(i)), key);
-		} else {
-			return findInIndex(loadIndex(index.pointer(i)), key);
-		}
+	/**
+	 * Quickly rules out keys which are not in the database, without reading the tree. This is consulted before every
+	 * lookup; by default it rules out nothing.
+	 * @param key - The key to check.
+	 * @return False if the key is definitely not in the database, true if it may be.
+	 */
+	protected boolean mightContain(final byte[] key) {
+		return true;
 	}
 	
 	/**
@@ -82,4 +227,26 @@ public abstract class BTree {
 	 */
 	protected abstract IndexNode loadIndex(final int pointer) throws StarDBException;
 	
+	/**
+	 * A node to be visited during a batched lookup, along with the range of sorted keys routed to it.
+	 */
+	private static class Batch implements Comparable<Batch> {
+		
+		private final int pointer;
+		private final int start;
+		private final int end;
+		
+		private Batch(final int pointer, final int start, final int end) {
+			this.pointer = pointer;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public int compareTo(final Batch other) {
+			return pointer < other.pointer ? -1 : (pointer == other.pointer ? 0 : 1);
+		}
+		
+	}
+	
 }
@@ -0,0 +1,220 @@
+package net.krazyweb.stardb.btree;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Visits the entries of a database in key order, optionally limited to a range of keys. The cursor walks the index
+ * tree from left to right, keeping the path from the root to the current leaf, so every index node and every leaf is
+ * read exactly once per pass. A range is found with a single descent to its first key, after which the cursor streams
+ * forward through the following leaves until it passes the end of the range.
+ * <p>
+ * Leaves are read directly from storage rather than through the leaf cache, so a full pass does not displace cached
+ * leaves. Values are only read when {@link #value()} or {@link #openValue()} is called; blocks holding nothing but
+ * values which are never asked for are skipped.
+ * <p>
+ * A cursor is meant to be used by a single thread.
+ */
+public class BTreeCursor {
+
+	private final BTreeDatabase database;
+	private final byte[] start;
+	private final byte[] end;
+	
+	private IndexNode[] path;
+	private int[] positions;
+	private int depth;
+	private boolean started;
+	
+	private LeafNode leaf;
+	private int entry;
+	private boolean finished;
+	
+	/**
+	 * Creates a cursor positioned before the first entry of the database.
+	 * @param database - The database to visit.
+	 */
+	protected BTreeCursor(final BTreeDatabase database) {
+		this(database, null, null);
+	}
+	
+	/**
+	 * Creates a cursor positioned before the first entry of the given range of keys.
+	 * @param database - The database to visit.
+	 * @param start - The first key of the range, inclusive, or null to start at the first entry of the database.
+	 * @param end - The key at which the range ends, exclusive, or null to continue to the last entry of the database.
+	 */
+	protected BTreeCursor(final BTreeDatabase database, final byte[] start, final byte[] end) {
+		this.database = database;
+		this.start = start;
+		this.end = end;
+		path = new IndexNode[4];
+		positions = new int[4];
+		depth = 0;
+		started = false;
+		leaf = null;
+		entry = -1;
+		finished = false;
+	}
+	
+	/**
+	 * Advances the cursor to the next entry.
+	 * @return Whether there is another entry. Once this returns false, the cursor is exhausted.
+	 * @throws StarDBException An error occurred while reading the tree.
+	 */
+	public boolean next() throws StarDBException {
+		
+		if (finished) {
+			return false;
+		}
+		
+		if (leaf == null || ++entry >= leaf.size()) {
+			
+			do {
+				
+				boolean first = !started;
+				leaf = nextLeaf();
+				
+				if (leaf == null) {
+					finished = true;
+					return false;
+				}
+				
+				entry = first && start != null ? leaf.lowerBound(start) : 0;
+				
+			} while (entry >= leaf.size());
+			
+		}
+		
+		if (end != null && leaf.compareKey(entry, end) >= 0) {
+			finished = true;
+			leaf = null;
+			return false;
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Returns the key of the current entry.
+	 * @return The key as a byte array.
+	 * @throws StarDBException An error occurred while reading the key.
+	 */
+	public byte[] key() throws StarDBException {
+		checkPositioned();
+		return leaf.getKey(entry);
+	}
+	
+	/**
+	 * Returns the value of the current entry, reading it from the leaf.
+	 * @return The value as a byte array.
+	 * @throws StarDBException An error occurred while reading the value.
+	 */
+	public byte[] value() throws StarDBException {
+		checkPositioned();
+		return leaf.getData(entry);
+	}
+	
+	/**
+	 * Returns the size of the value of the current entry, without reading it.
+	 * @return The size of the value in bytes.
+	 */
+	public int valueSize() {
+		checkPositioned();
+		return leaf.getDataSize(entry);
+	}
+	
+	/**
+	 * Opens a channel which streams the value of the current entry. The channel remains valid after the cursor moves on.
+	 * @return A channel over the value.
+	 */
+	public ReadableByteChannel openValue() {
+		checkPositioned();
+		return leaf.openData(entry);
+	}
+	
+	/**
+	 * Returns the leaf holding the current entry.
+	 * @return The current leaf.
+	 */
+	protected LeafNode currentLeaf() {
+		checkPositioned();
+		return leaf;
+	}
+	
+	/**
+	 * Returns the index of the current entry within its leaf.
+	 * @return The index of the current entry.
+	 */
+	protected int currentEntry() {
+		checkPositioned();
+		return entry;
+	}
+	
+	private void checkPositioned() {
+		if (leaf == null || entry < 0) {
+			throw new IllegalStateException("The cursor is not positioned on an entry.");
+		}
+	}
+	
+	private LeafNode nextLeaf() throws StarDBException {
+		
+		if (!started) {
+			
+			started = true;
+			
+			if (database.rootIsLeaf) {
+				return database.readLeaf(database.rootPointer);
+			}
+			
+			int pointer = database.rootPointer;
+			IndexNode index;
+			
+			do {
+				index = database.loadIndex(pointer);
+				int child = start != null ? index.find(start) : 0;
+				push(index, child);
+				pointer = index.pointer(child);
+			} while (index.level != 0);
+			
+			return database.readLeaf(pointer);
+			
+		}
+		
+		while (depth > 0 && positions[depth - 1] + 1 >= path[depth - 1].size()) {
+			path[--depth] = null;
+		}
+		
+		if (depth == 0) {
+			return null;
+		}
+		
+		IndexNode index = path[depth - 1];
+		int pointer = index.pointer(++positions[depth - 1]);
+		
+		while (index.level != 0) {
+			index = database.loadIndex(pointer);
+			push(index, 0);
+			pointer = index.pointer(0);
+		}
+		
+		return database.readLeaf(pointer);
+		
+	}
+	
+	private void push(final IndexNode index, final int position) {
+		
+		if (depth == path.length) {
+			path = Arrays.copyOf(path, depth * 2);
+			positions = Arrays.copyOf(positions, depth * 2);
+		}
+		
+		path[depth] = index;
+		positions[depth++] = position;
+		
+	}
+	
+}
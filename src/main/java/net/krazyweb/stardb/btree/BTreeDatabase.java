@@ -1,23 +1,57 @@
 package net.krazyweb.stardb.btree;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
 import net.krazyweb.stardb.storage.BlockStorage;
 
+/**
+ * Once opened, a BTreeDatabase is safe for use by concurrent readers: the underlying BlockStorage implementations
+ * use positional reads, every lookup parses its nodes into its own objects, and the shared index cache is concurrent.
+ */
 public abstract class BTreeDatabase extends BTree {
-	
+
 	private String fileIdentifier = "BTreeDB4";
 	private String indexMagic = "II";
-	private String leafMagic = "LL";
+	private String bloomFilterMagic = "SBBLOOM1";
+	private String locationIndexMagic = "SBLOCAT1";
 	
 	private BlockStorage blockStorage;
-	private Map<Integer, IndexNode> indexCache;
+	private IndexCache indexCache;
+	private volatile LeafCache leafCache;
+	private volatile BloomFilter bloomFilter;
+	private volatile LocationIndex locationIndex;
+	private TreeUpdater updater;
 	
 	/**
 	 * Constructs a new BTreeDatabase object that retrieves its data from the BlockStorage object. 
@@ -26,7 +60,7 @@ public abstract class BTreeDatabase extends BTree {
 	protected BTreeDatabase(final BlockStorage blockStorage) {
 		super();
 		this.blockStorage = blockStorage;
-		this.indexCache = new HashMap<>();
+		this.indexCache = new IndexCache();
 	}
 	
 	/**
@@ -35,30 +69,18 @@ public abstract class BTreeDatabase extends BTree {
 	 */
 	protected void readRoot() throws StarDBException {
 		
-		SeekableByteChannel rootData = blockStorage.readUserData(28, 14);
+		ByteBuffer rootData = blockStorage.readUserDataBuffer(28, 15);
 		
-		ByteBuffer buffer = StarDBUtils.readToBuffer(rootData, 1);
+		boolean unknownBool = (rootData.get() == 1);
 		
-		boolean unknownBool = (buffer.get() == 1);
-		
-		try {
-			rootData.position(rootData.position() + 1);
-		} catch (IOException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
-		}
+		rootData.position(rootData.position() + 1);
 		
 		if (unknownBool) {
-			try {
-				rootData.position(rootData.position() + 8);
-			} catch (IOException e) {
-				throw new StarDBException("Error: " + e.getMessage(), e);
-			}
+			rootData.position(rootData.position() + 8);
 		}
 		
-		buffer = StarDBUtils.readToBuffer(rootData, 5);
-		
-		rootPointer = buffer.getInt();
-		rootIsLeaf = (buffer.get() == 1);
+		rootPointer = rootData.getInt();
+		rootIsLeaf = (rootData.get() == 1);
 		
 	}
 	
@@ -71,175 +93,905 @@ public abstract class BTreeDatabase extends BTree {
 		
 		blockStorage.open();
 		
-		SeekableByteChannel userData = blockStorage.readUserData(0, 28);
+		ByteBuffer userData = blockStorage.readUserDataBuffer(0, 28);
+		
+		checkFileIdentifier(userData);
+		
+		return StarDBUtils.readString(userData, 12, 12);
+		
+	}
+	
+	/**
+	 * Opens the database file for reading and verifies its type.
+	 * @throws StarDBException - The file is not a valid database file or an error occurred while reading the file.
+	 */
+	protected void open() throws StarDBException {
 		
-		ByteBuffer buffer = StarDBUtils.readToBuffer(userData, 12);
+		ByteBuffer userData = blockStorage.readUserDataBuffer(0, 28);
 		
-		String fileID = new String(buffer.array());
+		checkFileIdentifier(userData);
 		
-		if (!fileID.startsWith(fileIdentifier)) {
-			throw new StarDBException("DB file identifier does not match expected value of " + fileIdentifier + " (Got " + fileID + ")");
+		if (!StarDBUtils.matches(userData, 12, getContentIdentifier())) {
+			throw new StarDBException("DB content identifier does not match expected value of " + getContentIdentifier() + " (Got " + StarDBUtils.readString(userData, 12, 12) + ")");
 		}
 		
-		buffer = StarDBUtils.readToBuffer(userData, 12);
+		int keySize = userData.getInt(24);
 		
-		String contentID = new String(buffer.array());
+		if (keySize != getKeySize()) {
+			throw new StarDBException("DB content key size does not match expected value of " + getKeySize() + " (Got " + keySize + ")");
+		}
 		
-		return contentID;
+		readRoot();
 		
 	}
 	
+	private void checkFileIdentifier(final ByteBuffer userData) throws StarDBException {
+		if (!StarDBUtils.matches(userData, 0, fileIdentifier)) {
+			throw new StarDBException("DB file identifier does not match expected value of " + fileIdentifier + " (Got " + StarDBUtils.readString(userData, 0, 12) + ")");
+		}
+	}
+	
 	/**
-	 * Opens the database file for reading and verifies its type.
-	 * @throws StarDBException - The file is not a valid database file or an error occurred while reading the file.
+	 * Reads the index block at the specified pointer and parses its contents into nodes. The block is decoded in place,
+	 * with each key copied straight into the node.
+	 * @param pointer - The index of the block in the database file.
+	 * @return The node containing this block's, well, nodes.
+	 * @throws StarDBException - The block is not an index block or an error occurred while reading the block data.
 	 */
-	protected void open() throws StarDBException {
+	protected IndexNode readIndex(final int pointer) throws StarDBException {
+		return parseIndex(pointer, blockStorage.readBlockBuffer(pointer));
+	}
+	
+	private IndexNode parseIndex(final int pointer, final ByteBuffer buffer) throws StarDBException {
 		
-		SeekableByteChannel userData = blockStorage.readUserData(0, 28);
+		if (!StarDBUtils.matches(buffer, 0, indexMagic)) {
+			throw new StarDBException("Incorrect index block signature.");
+		}
 		
-		ByteBuffer buffer = StarDBUtils.readToBuffer(userData, 12);
+		buffer.position(indexMagic.length());
 		
-		String fileID = new String(buffer.array());
+		char level = (char) buffer.get();
+		int numChildren = buffer.getInt();
 		
-		if (!fileID.startsWith(fileIdentifier)) {
-			throw new StarDBException("DB file identifier does not match expected value of " + fileIdentifier + " (Got " + fileID + ")");
+		IndexNode index = new IndexNode(getKeySize(), numChildren, hasUniformKeys());
+		
+		index.selfPointer = pointer;
+		index.level = level;
+		index.beginPointer = buffer.getInt();
+		
+		try {
+			for (int i = 0; i < numChildren; i++) {
+				index.addPointer(buffer);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new StarDBException("Error: Index block " + pointer + " is truncated.", e);
 		}
 		
-		buffer = StarDBUtils.readToBuffer(userData, 12);
+		return index;
+		
+	}
+	
+	@Override
+	protected byte[] find(final byte[] key) throws StarDBException {
 		
-		String contentID = new String(buffer.array());
+		LocationIndex index = locationIndex;
 		
-		if (!contentID.startsWith(getContentIdentifier())) {
-			throw new StarDBException("DB content identifier does not match expected value of " + getContentIdentifier() + " (Got " + contentID + ")");
+		if (index != null) {
+			return mightContain(key) ? index.find(key) : null;
 		}
 		
-		buffer = StarDBUtils.readToBuffer(userData, 4);
+		return super.find(key);
 		
-		int keySize = buffer.getInt();
+	}
+	
+	@Override
+	protected ReadableByteChannel findChannel(final byte[] key) throws StarDBException {
 		
-		if (keySize != getKeySize()) {
-			throw new StarDBException("DB content key size does not match expected value of " + getKeySize() + " (Got " + keySize + ")");
+		LocationIndex index = locationIndex;
+		
+		if (index != null) {
+			return mightContain(key) ? index.findChannel(key) : null;
 		}
 		
-		readRoot();
+		return super.findChannel(key);
 		
 	}
 	
 	/**
-	 * Reads the index block at the specified pointer and parses its contents into nodes.
-	 * @param pointer - The index of the block in the database file.
-	 * @return The node containing this block's, well, nodes.
-	 * @throws StarDBException - The block is not an index block or an error occurred while reading the block data.
+	 * Retrieves the data for the specified key without blocking. Index nodes which are not cached and the leaf are read
+	 * through {@link BlockStorage#readBlockBufferAsync(int, int, int)}, with each step of the descent starting once the
+	 * previous read completes, so with storage such as an AsyncBlockFile no thread waits on the disk. The leaf cache is
+	 * not consulted, as cached leaves may still read their data synchronously.
+	 * @param key - The key to retrieve the data for.
+	 * @return A future completed with the data, or with null if the key is not found. If the data cannot be read, the
+	 * future completes exceptionally with a StarDBException.
 	 */
-	protected IndexNode readIndex(final int pointer) throws StarDBException {
+	protected CompletableFuture<byte[]> findAsync(final byte[] key) {
+		return lookupAsync(key);
+	}
+	
+	/**
+	 * Retrieves the data for many keys without blocking. Every lookup is started at once, so index nodes shared by the
+	 * keys are only read once they have been cached by the first lookup to need them.
+	 * @param keys - The keys to retrieve the data for.
+	 * @return A future completed with the data for each key, in the same order as the keys, with null for keys which are
+	 * not found. If any data cannot be read, the future completes exceptionally with a StarDBException.
+	 */
+	protected CompletableFuture<byte[][]> findAllAsync(final byte[][] keys) {
 		
-		IndexNode index = new IndexNode();
-
-		SeekableByteChannel byteChannel = blockStorage.readBlock(pointer);
+		final byte[][] results = new byte[keys.length][];
+		CompletableFuture<?>[] lookups = new CompletableFuture<?>[keys.length];
+		
+		for (int i = 0; i < keys.length; i++) {
+			
+			final int position = i;
+			
+			lookups[i] = lookupAsync(keys[i]).thenAccept(new Consumer<byte[]>() {
+				@Override
+				public void accept(final byte[] data) {
+					results[position] = data;
+				}
+			});
+			
+		}
 		
-		ByteBuffer buffer = StarDBUtils.readToBuffer(byteChannel, 2);
+		return CompletableFuture.allOf(lookups).handle(new BiFunction<Void, Throwable, byte[][]>() {
+			@Override
+			public byte[][] apply(final Void ignored, final Throwable e) {
+				if (e != null) {
+					throw new CompletionException(StarDBUtils.unwrap(e));
+				}
+				return results;
+			}
+		});
 		
-		String magic = new String(buffer.array());
+	}
+	
+	private CompletableFuture<byte[]> lookupAsync(final byte[] key) {
 		
-		if (!magic.equals(indexMagic)) {
-			throw new StarDBException("Incorrect index block signature.");
+		if (!mightContain(key)) {
+			return CompletableFuture.completedFuture(null);
 		}
-
-		buffer = StarDBUtils.readToBuffer(byteChannel, 9);
 		
-		index.selfPointer = pointer;
-		index.level = (char) buffer.get();
+		LocationIndex index = locationIndex;
 		
-		int numChildren = buffer.getInt();
-		index.beginPointer = buffer.getInt();
+		if (index != null) {
+			return index.findAsync(key);
+		}
+		
+		if (rootIsLeaf) {
+			return AsyncLeafReader.find(blockStorage, getKeySize(), rootPointer, key);
+		}
+		
+		return descendAsync(rootPointer, key);
+		
+	}
+	
+	private CompletableFuture<byte[]> descendAsync(final int pointer, final byte[] key) {
+		return loadIndexAsync(pointer).thenCompose(new Function<IndexNode, CompletionStage<byte[]>>() {
+			@Override
+			public CompletionStage<byte[]> apply(final IndexNode index) {
+				
+				int child = index.pointer(index.find(key));
+				
+				if (index.level == 0) {
+					return AsyncLeafReader.find(blockStorage, getKeySize(), child, key);
+				}
+				
+				return descendAsync(child, key);
+				
+			}
+		});
+	}
+	
+	private CompletableFuture<IndexNode> loadIndexAsync(final int pointer) {
+		
+		IndexNode index = indexCache.get(pointer);
+		
+		if (index != null) {
+			return CompletableFuture.completedFuture(index);
+		}
+		
+		return blockStorage.readBlockBufferAsync(pointer, 0, 0).thenApply(new Function<ByteBuffer, IndexNode>() {
+			@Override
+			public IndexNode apply(final ByteBuffer buffer) {
+				try {
+					return indexCache.putIfAbsent(parseIndex(pointer, buffer));
+				} catch (StarDBException e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+		
+	}
+	
+	@Override
+	protected boolean contains(final byte[] key) throws StarDBException {
+		
+		LocationIndex index = locationIndex;
+		
+		if (index != null) {
+			return mightContain(key) && index.contains(key);
+		}
 		
-		for (int i = 0; i < numChildren; i++) {
+		return super.contains(key);
+		
+	}
+	
+	/**
+	 * Inserts an entry, or replaces the value of an existing one, by copy-on-write: the changed leaf and the index nodes
+	 * above it are written to free blocks, and the change only becomes permanent once {@link #commit()} is called.
+	 * Modifications must not run concurrently with reads of the database, and streams or cursors opened before a
+	 * modification must not be used after it.
+	 * @param key - The key of the entry.
+	 * @param value - The value of the entry.
+	 * @throws StarDBException The database was not opened for writing, the key is the wrong size, or an error occurred while updating the tree.
+	 */
+	protected synchronized void put(final byte[] key, final byte[] value) throws StarDBException {
+		
+		checkKeySize(key);
+		
+		if (getUpdater().update(key, value)) {
 			
-			byte[] key = readKey(byteChannel);
+			locationIndex = null;
 			
-			buffer = StarDBUtils.readToBuffer(byteChannel, 4);
-			int newPointer = buffer.getInt();
+			BloomFilter filter = bloomFilter;
 			
-			index.addPointer(key, newPointer);
+			if (filter != null) {
+				filter.put(BloomFilter.hash(key));
+			}
 			
 		}
 		
-		return index;
+	}
+	
+	/**
+	 * Removes an entry by copy-on-write. The change only becomes permanent once {@link #commit()} is called.
+	 * Modifications must not run concurrently with reads of the database, and streams or cursors opened before a
+	 * modification must not be used after it.
+	 * @param key - The key of the entry.
+	 * @return Whether the entry was found and removed.
+	 * @throws StarDBException The database was not opened for writing, the key is the wrong size, or an error occurred while updating the tree.
+	 */
+	protected synchronized boolean remove(final byte[] key) throws StarDBException {
+		
+		checkKeySize(key);
+		
+		if (!getUpdater().update(key, null)) {
+			return false;
+		}
+		
+		locationIndex = null;
+		
+		return true;
 		
 	}
-
+	
+	/**
+	 * Makes every modification since the last commit permanent. The new tree and the free block list are flushed to
+	 * disk first, then the root pointer in the header is replaced with a single write, so the file holds either the old
+	 * or the new tree at every point. Blocks freed by the modifications become available for reuse afterwards.
+	 * @throws StarDBException The database was not opened for writing or an error occurred while writing.
+	 */
+	public synchronized void commit() throws StarDBException {
+		
+		ByteBuffer root = ByteBuffer.allocate(7);
+		root.put((byte) 0);
+		root.put(blockStorage.readUserDataBuffer(29, 1).get(0));
+		root.putInt(rootPointer);
+		root.put((byte) (rootIsLeaf ? 1 : 0));
+		root.flip();
+		
+		blockStorage.commit(28, root);
+		clearCaches();
+		
+	}
+	
+	/**
+	 * Discards every modification since the last commit, returning to the last committed tree.
+	 * @throws StarDBException The database was not opened for writing or an error occurred while reading the root.
+	 */
+	public synchronized void rollback() throws StarDBException {
+		blockStorage.rollback();
+		readRoot();
+		locationIndex = null;
+		clearCaches();
+	}
+	
+	/**
+	 * Returns whether the database may be modified, which requires storage opened for writing.
+	 * @return Whether the database may be modified.
+	 */
+	public boolean isWritable() {
+		return blockStorage.isWritable();
+	}
+	
+	private TreeUpdater getUpdater() throws StarDBException {
+		
+		if (!blockStorage.isWritable()) {
+			throw new StarDBException("The database was not opened for writing.");
+		}
+		
+		if (updater == null) {
+			updater = new TreeUpdater(this, blockStorage);
+		}
+		
+		return updater;
+		
+	}
+	
+	/**
+	 * Frees a block which is no longer part of the tree, removing any node read from it from the caches in case the
+	 * storage reuses the block straight away.
+	 * @param pointer - The index of the block to free.
+	 * @throws StarDBException The storage was not opened for writing.
+	 */
+	protected void freeBlock(final int pointer) throws StarDBException {
+		
+		blockStorage.freeBlock(pointer);
+		indexCache.remove(pointer);
+		
+		LeafCache cache = leafCache;
+		
+		if (cache != null) {
+			cache.remove(pointer);
+		}
+		
+	}
+	
+	private void checkKeySize(final byte[] key) throws StarDBException {
+		if (key.length != getKeySize()) {
+			throw new StarDBException("Key size does not match expected value of " + getKeySize() + " (Got " + key.length + ")");
+		}
+	}
+	
+	private void clearCaches() {
+		
+		indexCache.clear();
+		
+		LeafCache cache = leafCache;
+		
+		if (cache != null) {
+			cache.clear();
+		}
+		
+	}
+	
 	@Override
 	protected IndexNode loadIndex(int pointer) throws StarDBException {
 		
-		if (!indexCache.containsKey(pointer)) {
-			IndexNode index = readIndex(pointer);
-			indexCache.put(pointer, index);
-			return index;
-		} else {
-			return indexCache.get(pointer);
+		IndexNode index = indexCache.get(pointer);
+		
+		if (index == null) {
+			index = indexCache.putIfAbsent(readIndex(pointer));
 		}
 		
+		return index;
+		
 	}
-
+	
 	@Override
 	protected LeafNode loadLeaf(int pointer) throws StarDBException {
 		
-		LeafNode leaf = new LeafNode();
+		LeafCache cache = leafCache;
 		
-		SeekableByteChannel byteChannel = blockStorage.readBlock(pointer);
-
-		ByteBuffer buffer = StarDBUtils.readToBuffer(byteChannel, 2);
+		if (cache == null) {
+			return readLeaf(pointer);
+		}
 		
-		String magic = new String(buffer.array());
+		LeafNode leaf = cache.get(pointer);
 		
-		if (!magic.equals(leafMagic)) {
-			throw new StarDBException("Incorrect leaf block signature.");
+		if (leaf == null) {
+			leaf = readLeaf(pointer);
+			cache.put(leaf);
 		}
-
-		leaf.selfPointer = pointer;
 		
-		SeekableByteChannel leafInput = new LeafByteChannel(blockStorage, byteChannel);
+		return leaf;
+		
+	}
+	
+	/**
+	 * Reads the leaf block at the specified pointer, following its chained blocks, and parses its contents.
+	 * @param pointer - The index of the first block of the leaf in the database file.
+	 * @return The node containing this leaf's keys and data.
+	 * @throws StarDBException - The block is not a leaf block or an error occurred while reading the block data.
+	 */
+	protected LeafNode readLeaf(final int pointer) throws StarDBException {
+		
+		LeafByteChannel leafInput = new LeafByteChannel(blockStorage, pointer);
+		
+		long[] keyOffsets;
+		long[] valueOffsets;
+		int[] valueSizes;
 		
-		buffer = StarDBUtils.readToBuffer(leafInput, 4);
+		try {
+			
+			int count = leafInput.readInt();
+			
+			keyOffsets = new long[count];
+			valueOffsets = new long[count];
+			valueSizes = new int[count];
+			
+			for (int i = 0; i < count; i++) {
+				keyOffsets[i] = leafInput.position();
+				leafInput.skipLoaded(getKeySize());
+				valueSizes[i] = leafInput.readVLQU();
+				valueOffsets[i] = leafInput.position();
+				leafInput.skip(valueSizes[i]);
+			}
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
 		
-		int count = buffer.getInt();
+		return new LeafNode(pointer, blockStorage, getKeySize(), hasUniformKeys(), leafInput, keyOffsets, valueOffsets, valueSizes);
+		
+	}
+	
+	/**
+	 * Opens a cursor which visits every entry of the database in key order, reading each leaf exactly once. This is far
+	 * cheaper than looking every key up individually when the whole database is to be read.
+	 * @return A cursor positioned before the first entry.
+	 */
+	public BTreeCursor cursor() {
+		return new BTreeCursor(this);
+	}
+	
+	/**
+	 * Opens a cursor over every entry whose key lies in the given range, in key order. The tree is descended once to
+	 * find the start of the range, and the following leaves are then read in sequence.
+	 * @param fromKey - The first key of the range, inclusive, or null to start at the first entry.
+	 * @param toKey - The key at which the range ends, exclusive, or null to continue to the last entry.
+	 * @return A cursor positioned before the first entry of the range.
+	 */
+	public BTreeCursor scan(final byte[] fromKey, final byte[] toKey) {
+		return new BTreeCursor(this, fromKey, toKey);
+	}
+	
+	/**
+	 * Opens a cursor over every entry whose key starts with the given prefix, in key order.
+	 * @param prefix - The prefix of the keys to visit.
+	 * @return A cursor positioned before the first entry with the prefix.
+	 */
+	public BTreeCursor scanPrefix(final byte[] prefix) {
+		
+		byte[] end = null;
+		
+		for (int i = prefix.length - 1; i >= 0; i--) {
+			if (prefix[i] != (byte) 0xFF) {
+				end = Arrays.copyOf(prefix, i + 1);
+				end[i]++;
+				break;
+			}
+		}
+		
+		return new BTreeCursor(this, prefix, end);
+		
+	}
+	
+	/**
+	 * Splits the key space into ranges of roughly equal numbers of leaves, so that the ranges can be scanned in
+	 * parallel. The boundaries are the separator keys of the index nodes, taken from the root downwards until there are
+	 * enough of them or the lowest index level is reached.
+	 * @param parts - The desired number of ranges.
+	 * @return The sorted boundary keys. Range i runs from boundary i - 1, inclusive, to boundary i, exclusive, with the
+	 * first and last ranges open ended. An empty list means the whole database is one range.
+	 * @throws StarDBException An error occurred while reading the index nodes.
+	 */
+	protected List<byte[]> getSplitKeys(final int parts) throws StarDBException {
+		
+		List<byte[]> boundaries = new ArrayList<>();
+		
+		if (rootIsLeaf) {
+			return boundaries;
+		}
+		
+		List<IndexNode> level = new ArrayList<>();
+		level.add(loadIndex(rootPointer));
+		
+		while (true) {
+			
+			int children = 0;
+			
+			for (IndexNode index : level) {
+				for (int i = 0; i < index.size() - 1; i++) {
+					boundaries.add(index.key(i));
+				}
+				children += index.size();
+			}
+			
+			if (children >= parts || level.get(0).level == 0) {
+				break;
+			}
+			
+			List<IndexNode> next = new ArrayList<>(children);
+			
+			for (IndexNode index : level) {
+				for (int i = 0; i < index.size(); i++) {
+					next.add(loadIndex(index.pointer(i)));
+				}
+			}
+			
+			level = next;
+			
+		}
+		
+		Collections.sort(boundaries, new Comparator<byte[]>() {
+			@Override
+			public int compare(final byte[] a, final byte[] b) {
+				return StarDBUtils.compareUnsigned(a, b);
+			}
+		});
+		
+		return boundaries;
+		
+	}
+	
+	/**
+	 * Sets the memory budget of the index node cache. By default the cache is unbounded.
+	 * @param bytes - The maximum estimated size of all cached index nodes in bytes.
+	 */
+	public void setIndexCacheSize(final long bytes) {
+		indexCache.setMaximumWeight(bytes);
+	}
+	
+	/**
+	 * Enables the leaf node cache with the given memory budget, replacing any existing leaf cache. The leaf cache is
+	 * disabled by default, since it pays off only when lookups repeatedly land in the same leaves. Budgets of a few
+	 * megabytes or more are split into stripes, so that concurrent lookups do not all wait on one lock.
+	 * @param bytes - The maximum estimated size of all cached leaves in bytes, or zero to disable the cache.
+	 */
+	public void setLeafCacheSize(final long bytes) {
+		leafCache = bytes > 0 ? new LeafCache(bytes) : null;
+	}
+	
+	/**
+	 * Sets the largest number of blocks read at once when following the chain of blocks of a leaf or a large value.
+	 * Consecutive blocks are fetched with a single read, and the chain is read ahead while it keeps continuing into the
+	 * next block of the file. The default is 32 blocks.
+	 * @param blocks - The maximum number of blocks read at once, or 1 to read every block separately.
+	 */
+	public void setReadAheadBlocks(final int blocks) {
+		blockStorage.setReadAheadBlocks(blocks);
+	}
+	
+	/**
+	 * Sets whether streams over stored values start reading their next blocks while the current ones are consumed. This
+	 * is disabled by default, and only overlaps reading with consuming on storage with truly asynchronous reads, such as
+	 * an AsyncBlockFile.
+	 * @param prefetch - Whether to prefetch.
+	 */
+	public void setPrefetchEnabled(final boolean prefetch) {
+		blockStorage.setPrefetchEnabled(prefetch);
+	}
+	
+	/**
+	 * Returns the number of leaf lookups served from the leaf cache since it was enabled.
+	 * @return The number of leaf cache hits, or zero if the cache is disabled.
+	 */
+	public long getLeafCacheHits() {
+		LeafCache cache = leafCache;
+		return cache != null ? cache.hitCount() : 0;
+	}
+	
+	/**
+	 * Returns the number of leaf lookups that missed the leaf cache since it was enabled.
+	 * @return The number of leaf cache misses, or zero if the cache is disabled.
+	 */
+	public long getLeafCacheMisses() {
+		LeafCache cache = leafCache;
+		return cache != null ? cache.missCount() : 0;
+	}
+	
+	/**
+	 * Builds a Bloom filter over every key in the database in a single pass, replacing any existing filter. While the
+	 * filter is in place, most lookups of keys which are not in the database are answered without reading the tree.
+	 * @param falsePositiveRate - The desired chance of a missing key still having to be looked up, such as 0.01.
+	 * @throws StarDBException An error occurred while reading the keys.
+	 */
+	public void buildBloomFilter(final double falsePositiveRate) throws StarDBException {
+		
+		long[] hashes = new long[1024];
+		int count = 0;
+		
+		BTreeCursor cursor = cursor();
+		
+		while (cursor.next()) {
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, count * 2);
+			}
+			hashes[count++] = BloomFilter.hash(cursor.key());
+		}
+		
+		BloomFilter filter = new BloomFilter(count, falsePositiveRate);
 		
 		for (int i = 0; i < count; i++) {
-			byte[] key = readKey(leafInput);
-			byte[] data = readData(leafInput);
-			leaf.addElement(key, data);
+			filter.put(hashes[i]);
 		}
 		
-		return leaf;
+		bloomFilter = filter;
 		
 	}
 	
 	/**
-	 * Returns the size of the key value.
-	 * @return The size of the key value in bytes.
+	 * Saves the Bloom filter to a sidecar file, along with a fingerprint of the database it was built for, so that it
+	 * can be restored with {@link #loadBloomFilter(Path)} instead of being rebuilt.
+	 * @param file - The file to save the filter to.
+	 * @throws StarDBException There is no filter to save or an error occurred while writing the file.
 	 */
-	protected abstract int getKeySize();
+	public void saveBloomFilter(final Path file) throws StarDBException {
+		
+		BloomFilter filter = bloomFilter;
+		
+		if (filter == null) {
+			throw new StarDBException("No Bloom filter has been built.");
+		}
+		
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			output.writeBytes(bloomFilterMagic);
+			writeFingerprint(output);
+			filter.write(output);
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
 	
 	/**
-	 * Returns the content identifier.
-	 * @return The content identifier used to verify the database's contents.
+	 * Restores a Bloom filter saved by {@link #saveBloomFilter(Path)}. The filter is only used if it was saved for this
+	 * exact version of the database; a filter for a database file which has since changed is ignored.
+	 * @param file - The file to load the filter from.
+	 * @return Whether the filter was loaded. False if it belongs to a different version of the database.
+	 * @throws StarDBException The file is not a Bloom filter file or an error occurred while reading it.
 	 */
-	protected abstract String getContentIdentifier();
+	public boolean loadBloomFilter(final Path file) throws StarDBException {
+		
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			
+			byte[] magic = new byte[bloomFilterMagic.length()];
+			input.readFully(magic);
+			
+			if (!new String(magic).equals(bloomFilterMagic)) {
+				throw new StarDBException("File is not a valid Bloom filter file");
+			}
+			
+			if (!checkFingerprint(input)) {
+				return false;
+			}
+			
+			bloomFilter = BloomFilter.read(input);
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Discards the Bloom filter, so that every lookup reads the tree again.
+	 */
+	public void clearBloomFilter() {
+		bloomFilter = null;
+	}
+	
+	/**
+	 * Builds a location index recording where the value of every key is stored, in a single pass over the database,
+	 * and saves it to a sidecar file. The index is then used for lookups in place of the tree. A process which loads the
+	 * index with {@link #loadLocationIndex(Path)} can go straight to the right block from its very first lookup.
+	 * @param file - The file to save the index to.
+	 * @throws StarDBException An error occurred while reading the database or writing the file.
+	 */
+	public void buildLocationIndex(final Path file) throws StarDBException {
+		
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			output.writeBytes(locationIndexMagic);
+			writeFingerprint(output);
+			LocationIndex.write(cursor(), getKeySize(), output);
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		if (!loadLocationIndex(file)) {
+			throw new StarDBException("The location index was not built for this database.");
+		}
+		
+	}
+	
+	/**
+	 * Maps a location index saved by {@link #buildLocationIndex(Path)} into memory and uses it for lookups in place of
+	 * the tree. The index is only used if it was built for this exact version of the database; an index for a database
+	 * file which has since changed is ignored.
+	 * @param file - The file to load the index from.
+	 * @return Whether the index was loaded. False if it belongs to a different version of the database.
+	 * @throws StarDBException The file is not a location index file or an error occurred while reading it.
+	 */
+	public boolean loadLocationIndex(final Path file) throws StarDBException {
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			
+			DataInputStream input = new DataInputStream(Channels.newInputStream(channel));
+			
+			byte[] magic = new byte[locationIndexMagic.length()];
+			input.readFully(magic);
+			
+			if (!new String(magic).equals(locationIndexMagic)) {
+				throw new StarDBException("File is not a valid location index file");
+			}
+			
+			if (!checkFingerprint(input)) {
+				return false;
+			}
+			
+			long position = channel.position();
+			
+			locationIndex = new LocationIndex(blockStorage, channel.map(MapMode.READ_ONLY, position, channel.size() - position));
+			
+		} catch (IOException | BufferUnderflowException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Stops using the location index, so that lookups walk the tree again.
+	 */
+	public void clearLocationIndex() {
+		locationIndex = null;
+	}
+	
+	@Override
+	protected boolean mightContain(final byte[] key) {
+		BloomFilter filter = bloomFilter;
+		return filter == null || filter.mightContain(BloomFilter.hash(key));
+	}
+	
+	/**
+	 * Writes a fingerprint identifying this version of the database, for validating sidecar files built from it.
+	 * @param output - The output to write the fingerprint to.
+	 * @throws IOException An error occurred while writing.
+	 */
+	protected void writeFingerprint(final DataOutput output) throws IOException {
+		output.writeLong(blockStorage.getFileSize());
+		output.writeInt(blockStorage.getBlockSize());
+		output.writeInt(getKeySize());
+		output.writeInt(rootPointer);
+		output.writeBoolean(rootIsLeaf);
+	}
+	
+	/**
+	 * Reads a fingerprint written by {@link #writeFingerprint(DataOutput)} and checks it against this database.
+	 * @param input - The input to read the fingerprint from.
+	 * @return Whether the fingerprint matches this version of the database.
+	 * @throws IOException An error occurred while reading.
+	 */
+	protected boolean checkFingerprint(final DataInput input) throws IOException {
+		
+		long fileSize = input.readLong();
+		int blockSize = input.readInt();
+		int keySize = input.readInt();
+		int root = input.readInt();
+		boolean leaf = input.readBoolean();
+		
+		return fileSize == blockStorage.getFileSize() && blockSize == blockStorage.getBlockSize() && keySize == getKeySize() && root == rootPointer && leaf == rootIsLeaf;
+		
+	}
+	
+	/**
+	 * Pins the top levels of the tree in the index node cache, so that they are never evicted regardless of the budget.
+	 * @param levels - The number of index levels, counting down from the root, to keep cached.
+	 * @throws StarDBException An error occurred while reading the root node.
+	 */
+	public void setPinnedIndexLevels(final int levels) throws StarDBException {
+		
+		if (rootIsLeaf || levels <= 0) {
+			indexCache.setMinimumPinnedLevel(Integer.MAX_VALUE);
+			return;
+		}
+		
+		indexCache.setMinimumPinnedLevel(loadIndex(rootPointer).level - levels + 1);
+		
+	}
+	
+	/**
+	 * Loads every index node in the tree into the index node cache, reading separate subtrees in parallel. Calling this
+	 * right after opening the database gives predictable latency from the first lookup onwards. Nodes beyond the cache
+	 * budget are subject to eviction as usual.
+	 * @param parallelism - The number of threads to use.
+	 * @throws StarDBException An error occurred while reading the index nodes.
+	 */
+	public void preloadIndex(final int parallelism) throws StarDBException {
+		
+		if (rootIsLeaf) {
+			return;
+		}
+		
+		invoke(parallelism, new IndexLoader(rootPointer));
+		
+	}
+	
+	/**
+	 * Runs a task in the shared fork-join pool with the given parallelism and waits for it to complete, as
+	 * {@link StarDBUtils#invoke(ForkJoinPool, ForkJoinTask)} does.
+	 * @param parallelism - The number of threads to use.
+	 * @param task - The task to run.
+	 * @return The result of the task.
+	 * @throws StarDBException The task failed with a StarDBException.
+	 */
+	protected <T> T invoke(final int parallelism, final ForkJoinTask<T> task) throws StarDBException {
+		return StarDBUtils.invoke(StarDBUtils.getPool(parallelism), task);
+	}
+	
+	/**
+	 * Runs a task in the common fork-join pool and waits for it to complete, as
+	 * {@link StarDBUtils#invoke(ForkJoinPool, ForkJoinTask)} does.
+	 * @param task - The task to run.
+	 * @return The result of the task.
+	 * @throws StarDBException The task failed with a StarDBException.
+	 */
+	protected static <T> T invoke(final ForkJoinTask<T> task) throws StarDBException {
+		return StarDBUtils.invoke(ForkJoinPool.commonPool(), task);
+	}
+	
+	private class IndexLoader extends RecursiveAction {
+		
+		private static final long serialVersionUID = 2468042385432427719L;
+		
+		private final int pointer;
+		
+		private IndexLoader(final int pointer) {
+			this.pointer = pointer;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			IndexNode index;
+			
+			try {
+				index = loadIndex(pointer);
+			} catch (StarDBException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			if (index.level == 0) {
+				return;
+			}
+			
+			List<IndexLoader> children = new ArrayList<>();
+			
+			for (int i = 0; i < index.size(); i++) {
+				children.add(new IndexLoader(index.pointer(i)));
+			}
+			
+			invokeAll(children);
+			
+		}
+		
+	}
+	
+	/**
+	 * Returns the size of the key value.
+	 * @return The size of the key value in bytes.
+	 */
+	protected abstract int getKeySize();
 	
 	/**
-	 * Reads the key at the current position in the byteChannel.
-	 * @param byteChannel - The ByteChannel from which to read the key.
-	 * @return The key as a byte array.
-	 * @throws StarDBException - An error occurred while attempting to read the key.
+	 * Returns whether the keys of this database are uniformly distributed, such as cryptographic hashes. Nodes of such
+	 * databases are searched by interpolation rather than plain binary search.
+	 * @return Whether the keys are uniformly distributed.
 	 */
-	protected abstract byte[] readKey(final SeekableByteChannel byteChannel) throws StarDBException;
+	protected boolean hasUniformKeys() {
+		return false;
+	}
 	
 	/**
-	 * Reads the data stored at the current position in the byteChannel.
-	 * @param byteChannel - The ByteChannel from which to read the stored data.
-	 * @return The stored data as a byte array.
-	 * @throws StarDBException - An error occurred while attempting to read the data.
+	 * Returns the content identifier.
+	 * @return The content identifier used to verify the database's contents.
 	 */
-	protected abstract byte[] readData(final SeekableByteChannel byteChannel) throws StarDBException;
+	protected abstract String getContentIdentifier();
 	
 }
\ No newline at end of file
@@ -0,0 +1,466 @@
+package net.krazyweb.stardb.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.krazyweb.stardb.SeekableInMemoryByteChannel;
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Builds a new database file from entries given in ascending key order. The tree is bulk loaded from the bottom up in
+ * a single pass: leaves are packed as the entries arrive, and each level of the index is filled as the level below it
+ * completes nodes, so only one partially filled node per level is held in memory. Blocks are written strictly in
+ * sequence through a large buffer, and the header is written last, so the file only becomes readable once it is
+ * complete.
+ * <p>
+ * Entries are packed into a leaf until the next one no longer fits in the leaf's block. An entry too large for a block
+ * of its own is given a leaf to itself, continued through a chain of overflow blocks, so that looking up any other key
+ * never has to read past a large value.
+ * <p>
+ * A writer is meant to be used by a single thread.
+ */
+public class BTreeDatabaseWriter implements AutoCloseable {
+
+	private static final Charset ascii = Charset.forName("US-ASCII");
+	private static final int headerSize = 512;
+	private static final int prefixHeaderSize = 32;
+	private static final int bufferSize = 1024 * 1024;
+	
+	private final FileChannel file;
+	private final String contentIdentifier;
+	private final int keySize;
+	private final int blockSize;
+	private final int blockDataSize;
+	private final int indexCapacity;
+	
+	private final ByteBuffer output;
+	private long outputPosition;
+	private int blockCount;
+	private int blockFill;
+	
+	private final ByteBuffer leaf;
+	private byte[] leafFirstKey;
+	private int leafCount;
+	private byte[] lastKey;
+	
+	private final List<IndexBuilder> levels;
+	private boolean finished;
+	
+	/**
+	 * Creates a new database file, replacing any existing file.
+	 * @param filePath - The path of the file to create.
+	 * @param contentID - The identifier for the content of the database, at most 12 characters.
+	 * @param keySize - The size of each key in bytes.
+	 * @param blockSize - The size of each block in bytes.
+	 * @throws StarDBException The parameters are invalid or the file could not be created.
+	 */
+	public BTreeDatabaseWriter(final Path filePath, final String contentID, final int keySize, final int blockSize) throws StarDBException {
+		
+		if (contentID.getBytes(ascii).length > 12) {
+			throw new StarDBException("The content identifier must be at most 12 characters.");
+		}
+		
+		if (keySize <= 0 || (blockSize - 11) / (keySize + 4) < 1) {
+			throw new StarDBException("The block size " + blockSize + " is too small for keys of " + keySize + " bytes.");
+		}
+		
+		this.contentIdentifier = contentID;
+		this.keySize = keySize;
+		this.blockSize = blockSize;
+		
+		blockDataSize = blockSize - 6;
+		indexCapacity = (blockSize - 11) / (keySize + 4);
+		
+		output = ByteBuffer.allocate(Math.max(1, bufferSize / blockSize) * blockSize);
+		outputPosition = headerSize;
+		blockCount = 0;
+		blockFill = 0;
+		
+		leaf = ByteBuffer.allocate(blockDataSize);
+		leaf.putInt(0);
+		leafFirstKey = null;
+		leafCount = 0;
+		lastKey = null;
+		
+		levels = new ArrayList<>();
+		finished = false;
+		
+		try {
+			file = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
+	
+	/**
+	 * Adds an entry to the database. Keys must be added in strictly ascending unsigned order.
+	 * @param key - The key of the entry.
+	 * @param value - The value of the entry.
+	 * @throws StarDBException The key is out of order or the wrong size, or an error occurred while writing.
+	 */
+	public void put(final byte[] key, final byte[] value) throws StarDBException {
+		put(key, value.length, new SeekableInMemoryByteChannel(value));
+	}
+	
+	/**
+	 * Adds an entry to the database, streaming its value from a channel straight into the file's blocks. Keys must be
+	 * added in strictly ascending unsigned order.
+	 * @param key - The key of the entry.
+	 * @param size - The size of the value in bytes.
+	 * @param value - The channel to read the value from. Exactly size bytes are read, and the channel is not closed.
+	 * @throws StarDBException The key is out of order or the wrong size, the channel ends early, or an error occurred while writing.
+	 */
+	public void put(final byte[] key, final int size, final ReadableByteChannel value) throws StarDBException {
+		
+		if (finished) {
+			throw new StarDBException("The database has already been finished.");
+		}
+		
+		if (key.length != keySize) {
+			throw new StarDBException("Key size does not match expected value of " + keySize + " (Got " + key.length + ")");
+		}
+		
+		if (lastKey != null && StarDBUtils.compareUnsigned(lastKey, key) >= 0) {
+			throw new StarDBException("Keys must be added in ascending order.");
+		}
+		
+		lastKey = key.clone();
+		
+		byte[] sizeBytes = StarDBUtils.packVLQU(size);
+		long entrySize = (long) keySize + sizeBytes.length + size;
+		
+		try {
+			
+			if (leafCount > 0 && entrySize > leaf.remaining()) {
+				writeLeaf();
+			}
+			
+			if (entrySize > leaf.remaining()) {
+				writeLargeLeaf(key, sizeBytes, size, value);
+				return;
+			}
+			
+			if (leafCount == 0) {
+				leafFirstKey = lastKey;
+			}
+			
+			leaf.put(key);
+			leaf.put(sizeBytes);
+			readFully(value, leaf, size);
+			leafCount++;
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
+	
+	/**
+	 * Writes out the last leaf, completes every level of the index and writes the header, then closes the file.
+	 * @throws StarDBException An error occurred while writing.
+	 */
+	public void finish() throws StarDBException {
+		
+		if (finished) {
+			return;
+		}
+		
+		try {
+			
+			if (leafCount > 0 || levels.isEmpty()) {
+				writeLeaf();
+			}
+			
+			int rootPointer = 0;
+			boolean rootIsLeaf = false;
+			
+			for (int level = 0; level < levels.size(); level++) {
+				
+				IndexBuilder builder = levels.get(level);
+				boolean top = level == levels.size() - 1;
+				
+				if (top && builder.count == 0) {
+					rootPointer = builder.beginPointer;
+					rootIsLeaf = level == 0;
+					break;
+				}
+				
+				int pointer = writeIndex(level, builder);
+				
+				if (top) {
+					rootPointer = pointer;
+					break;
+				}
+				
+				addChild(level + 1, builder.firstKey, pointer);
+				
+			}
+			
+			flush();
+			writeHeader(rootPointer, rootIsLeaf);
+			finished = true;
+			file.close();
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
+	
+	/**
+	 * Closes the file. If {@link #finish()} has not been called, the file is left incomplete and cannot be read.
+	 * @throws StarDBException An error occurred while closing the file.
+	 */
+	@Override
+	public void close() throws StarDBException {
+		try {
+			file.close();
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+	}
+	
+	private void writeLeaf() throws IOException {
+		
+		int pointer = blockCount;
+		
+		leaf.putInt(0, leafCount);
+		leaf.flip();
+		
+		beginBlock("LL");
+		writeData(leaf);
+		endChain();
+		
+		addChild(0, leafFirstKey, pointer);
+		
+		leaf.clear();
+		leaf.putInt(0);
+		leafFirstKey = null;
+		leafCount = 0;
+		
+	}
+	
+	private void writeLargeLeaf(final byte[] key, final byte[] sizeBytes, final int size, final ReadableByteChannel value) throws IOException {
+		
+		int pointer = blockCount;
+		
+		ByteBuffer head = ByteBuffer.allocate(4 + key.length + sizeBytes.length);
+		head.putInt(1).put(key).put(sizeBytes).flip();
+		
+		beginBlock("LL");
+		writeData(head);
+		
+		int remaining = size;
+		
+		while (remaining > 0) {
+			
+			if (blockFill == blockDataSize) {
+				nextBlock();
+			}
+			
+			int chunk = Math.min(remaining, blockDataSize - blockFill);
+			readFully(value, output, chunk);
+			blockFill += chunk;
+			remaining -= chunk;
+			
+		}
+		
+		endChain();
+		addChild(0, key.clone(), pointer);
+		
+	}
+	
+	private void addChild(final int level, final byte[] key, final int pointer) throws IOException {
+		
+		if (levels.size() == level) {
+			levels.add(new IndexBuilder());
+		}
+		
+		IndexBuilder builder = levels.get(level);
+		
+		if (builder.count == indexCapacity) {
+			int indexPointer = writeIndex(level, builder);
+			addChild(level + 1, builder.firstKey, indexPointer);
+			builder.clear();
+		}
+		
+		builder.add(key, pointer);
+		
+	}
+	
+	private int writeIndex(final int level, final IndexBuilder builder) throws IOException {
+		
+		int pointer = blockCount;
+		
+		ensureBlock();
+		blockCount++;
+		
+		output.put((byte) 'I').put((byte) 'I');
+		output.put((byte) level);
+		output.putInt(builder.count);
+		output.putInt(builder.beginPointer);
+		output.put(builder.entries.array(), 0, builder.entries.position());
+		pad(blockSize - 11 - builder.entries.position());
+		
+		return pointer;
+		
+	}
+	
+	private void beginBlock(final String magic) throws IOException {
+		ensureBlock();
+		blockCount++;
+		output.put(magic.getBytes(ascii));
+		blockFill = 0;
+	}
+	
+	private void nextBlock() throws IOException {
+		output.putInt(blockCount);
+		beginBlock("LL");
+	}
+	
+	private void endChain() {
+		pad(blockDataSize - blockFill);
+		output.putInt(-1);
+	}
+	
+	private void writeData(final ByteBuffer data) throws IOException {
+		
+		while (data.hasRemaining()) {
+			
+			if (blockFill == blockDataSize) {
+				nextBlock();
+			}
+			
+			int chunk = Math.min(data.remaining(), blockDataSize - blockFill);
+			int limit = data.limit();
+			
+			data.limit(data.position() + chunk);
+			output.put(data);
+			data.limit(limit);
+			blockFill += chunk;
+			
+		}
+		
+	}
+	
+	private void pad(final int count) {
+		for (int i = 0; i < count; i++) {
+			output.put((byte) 0);
+		}
+	}
+	
+	private void ensureBlock() throws IOException {
+		if (output.remaining() < blockSize) {
+			flush();
+		}
+	}
+	
+	private void flush() throws IOException {
+		
+		output.flip();
+		
+		while (output.hasRemaining()) {
+			outputPosition += file.write(output, outputPosition);
+		}
+		
+		output.clear();
+		
+	}
+	
+	private void writeHeader(final int rootPointer, final boolean rootIsLeaf) throws IOException {
+		
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		
+		header.put("SBBF02".getBytes(ascii));
+		header.putInt(headerSize);
+		header.putInt(blockSize);
+		header.put((byte) 1);
+		
+		header.position(prefixHeaderSize);
+		header.put(padded("BTreeDB4"));
+		header.put(padded(contentIdentifier));
+		header.putInt(keySize);
+		header.put((byte) 0);
+		header.put((byte) 0);
+		header.putInt(rootPointer);
+		header.put((byte) (rootIsLeaf ? 1 : 0));
+		
+		header.clear();
+		
+		while (header.hasRemaining()) {
+			file.write(header, header.position());
+		}
+		
+	}
+	
+	private static byte[] padded(final String identifier) {
+		return Arrays.copyOf(identifier.getBytes(ascii), 12);
+	}
+	
+	private static void readFully(final ReadableByteChannel channel, final ByteBuffer target, final int size) throws IOException {
+		
+		int limit = target.limit();
+		target.limit(target.position() + size);
+		
+		try {
+			while (target.hasRemaining()) {
+				if (channel.read(target) < 0) {
+					throw new IOException("The value ended before its stated size.");
+				}
+			}
+		} finally {
+			target.limit(limit);
+		}
+		
+	}
+	
+	
+	private class IndexBuilder {
+		
+		private final ByteBuffer entries;
+		private byte[] firstKey;
+		private int beginPointer;
+		private int count;
+		private boolean empty;
+		
+		private IndexBuilder() {
+			entries = ByteBuffer.allocate(indexCapacity * (keySize + 4));
+			clear();
+		}
+		
+		private void add(final byte[] key, final int pointer) {
+			
+			if (empty) {
+				firstKey = key;
+				beginPointer = pointer;
+				empty = false;
+				return;
+			}
+			
+			entries.put(key);
+			entries.putInt(pointer);
+			count++;
+			
+		}
+		
+		private void clear() {
+			entries.clear();
+			firstKey = null;
+			beginPointer = -1;
+			count = 0;
+			empty = true;
+		}
+		
+	}
+	
+}
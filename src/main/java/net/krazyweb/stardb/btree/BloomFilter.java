@@ -0,0 +1,143 @@
+package net.krazyweb.stardb.btree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over the keys of a database. A key the filter has not seen is almost always reported as absent, so
+ * most lookups of missing keys can be answered without reading the tree; keys which are present are always reported as
+ * possibly present. The filter is immutable once built and may be read from any number of threads.
+ */
+class BloomFilter {
+
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+	
+	/**
+	 * Creates a new, empty BloomFilter sized for the given number of keys.
+	 * @param expectedKeys - The number of keys that will be added.
+	 * @param falsePositiveRate - The desired chance of a missing key being reported as present, between 0 and 1.
+	 */
+	protected BloomFilter(final long expectedKeys, final double falsePositiveRate) {
+		
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("The false positive rate must be between 0 and 1.");
+		}
+		
+		long n = Math.max(1, expectedKeys);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		
+		bits = new long[(int) Math.max(1, (m + 63) / 64)];
+		bitCount = bits.length * 64L;
+		hashCount = (int) Math.max(1, Math.round((double) bitCount / n * Math.log(2)));
+		
+	}
+	
+	private BloomFilter(final long[] bits, final int hashCount) {
+		this.bits = bits;
+		this.bitCount = bits.length * 64L;
+		this.hashCount = hashCount;
+	}
+	
+	/**
+	 * Hashes a key for use with {@link #put(long)} and {@link #mightContain(long)}.
+	 * @param key - The key to hash.
+	 * @return A 64 bit hash of the key.
+	 */
+	protected static long hash(final byte[] key) {
+		
+		long hash = 0xCBF29CE484222325L;
+		
+		for (byte b : key) {
+			hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+		}
+		
+		return mix(hash);
+		
+	}
+	
+	/**
+	 * Adds a key to the filter.
+	 * @param hash - The hash of the key, as computed by {@link #hash(byte[])}.
+	 */
+	protected void put(final long hash) {
+		
+		long step = mix(hash) | 1;
+		
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((hash + i * step) & Long.MAX_VALUE) % bitCount;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		
+	}
+	
+	/**
+	 * Checks whether a key may have been added to the filter.
+	 * @param hash - The hash of the key, as computed by {@link #hash(byte[])}.
+	 * @return False if the key was definitely never added, true if it may have been.
+	 */
+	protected boolean mightContain(final long hash) {
+		
+		long step = mix(hash) | 1;
+		
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((hash + i * step) & Long.MAX_VALUE) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Writes the filter out so that it can be restored with {@link #read(DataInput)}.
+	 * @param output - The output to write to.
+	 * @throws IOException An error occurred while writing.
+	 */
+	protected void write(final DataOutput output) throws IOException {
+		
+		output.writeInt(hashCount);
+		output.writeInt(bits.length);
+		
+		for (long word : bits) {
+			output.writeLong(word);
+		}
+		
+	}
+	
+	/**
+	 * Reads a filter previously written by {@link #write(DataOutput)}.
+	 * @param input - The input to read from.
+	 * @return The filter.
+	 * @throws IOException An error occurred while reading, or the data is not a valid filter.
+	 */
+	protected static BloomFilter read(final DataInput input) throws IOException {
+		
+		int hashCount = input.readInt();
+		int length = input.readInt();
+		
+		if (hashCount <= 0 || length <= 0) {
+			throw new IOException("Invalid Bloom filter data");
+		}
+		
+		long[] bits = new long[length];
+		
+		for (int i = 0; i < length; i++) {
+			bits[i] = input.readLong();
+		}
+		
+		return new BloomFilter(bits, hashCount);
+		
+	}
+	
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+	
+}
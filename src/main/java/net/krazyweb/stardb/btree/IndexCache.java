@@ -0,0 +1,173 @@
+package net.krazyweb.stardb.btree;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache of parsed index nodes, bounded by an estimated memory budget. Lookups never block. When the
+ * budget is exceeded, unpinned nodes are evicted using the CLOCK (second chance) algorithm, so nodes that were read
+ * since the last sweep survive it. Nodes at or above the pinned level are never evicted.
+ */
+class IndexCache {
+
+	private static class Entry {
+		
+		private final IndexNode node;
+		private final long weight;
+		private volatile boolean referenced;
+		
+		private Entry(final IndexNode node) {
+			this.node = node;
+			this.weight = node.memorySize();
+		}
+		
+	}
+	
+	private final ConcurrentMap<Integer, Entry> entries;
+	private final AtomicLong weight;
+	private final Object evictionLock;
+	
+	private volatile long maximumWeight;
+	private volatile int minimumPinnedLevel;
+	
+	private Iterator<Map.Entry<Integer, Entry>> hand;
+	
+	/**
+	 * Creates a new, unbounded IndexCache with no pinned levels.
+	 */
+	protected IndexCache() {
+		entries = new ConcurrentHashMap<>();
+		weight = new AtomicLong();
+		evictionLock = new Object();
+		maximumWeight = Long.MAX_VALUE;
+		minimumPinnedLevel = Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Retrieves the cached node for the given pointer and marks it as recently used.
+	 * @param pointer - The block index of the index node.
+	 * @return The cached node, or null if it is not cached.
+	 */
+	protected IndexNode get(final int pointer) {
+		
+		Entry entry = entries.get(pointer);
+		
+		if (entry == null) {
+			return null;
+		}
+		
+		entry.referenced = true;
+		
+		return entry.node;
+		
+	}
+	
+	/**
+	 * Adds a node to the cache unless another thread has already cached the same pointer, evicting other nodes if the
+	 * cache is over its budget afterwards.
+	 * @param node - The node to cache.
+	 * @return The node now held by the cache for the node's pointer.
+	 */
+	protected IndexNode putIfAbsent(final IndexNode node) {
+		
+		Entry entry = new Entry(node);
+		Entry existing = entries.putIfAbsent(node.selfPointer, entry);
+		
+		if (existing != null) {
+			existing.referenced = true;
+			return existing.node;
+		}
+		
+		if (weight.addAndGet(entry.weight) > maximumWeight) {
+			evict();
+		}
+		
+		return node;
+		
+	}
+	
+	/**
+	 * Removes the node for the given pointer from the cache, if it is cached.
+	 * @param pointer - The block index of the index node.
+	 */
+	protected void remove(final int pointer) {
+		
+		Entry entry = entries.remove(pointer);
+		
+		if (entry != null) {
+			weight.addAndGet(-entry.weight);
+		}
+		
+	}
+	
+	/**
+	 * Removes every node from the cache, keeping its budget and pinned level.
+	 */
+	protected void clear() {
+		synchronized (evictionLock) {
+			entries.clear();
+			weight.set(0);
+			hand = null;
+		}
+	}
+	
+	/**
+	 * Sets the memory budget of the cache.
+	 * @param maximumWeight - The maximum estimated size of all cached nodes in bytes.
+	 */
+	protected void setMaximumWeight(final long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+		evict();
+	}
+	
+	/**
+	 * Sets the lowest tree level that is exempt from eviction. Levels are counted up from the leaves, so pinning the
+	 * top levels of a tree means pinning every level at or above the root level minus the number of pinned levels.
+	 * @param minimumPinnedLevel - The lowest pinned level, or Integer.MAX_VALUE to pin nothing.
+	 */
+	protected void setMinimumPinnedLevel(final int minimumPinnedLevel) {
+		this.minimumPinnedLevel = minimumPinnedLevel;
+		evict();
+	}
+	
+	private void evict() {
+		
+		synchronized (evictionLock) {
+			
+			int remaining = 2 * entries.size() + 1;
+			
+			while (weight.get() > maximumWeight && remaining-- > 0) {
+				
+				if (hand == null || !hand.hasNext()) {
+					hand = entries.entrySet().iterator();
+					if (!hand.hasNext()) {
+						return;
+					}
+				}
+				
+				Map.Entry<Integer, Entry> candidate = hand.next();
+				Entry entry = candidate.getValue();
+				
+				if (entry.node.level >= minimumPinnedLevel) {
+					continue;
+				}
+				
+				if (entry.referenced) {
+					entry.referenced = false;
+					continue;
+				}
+				
+				if (entries.remove(candidate.getKey(), entry)) {
+					weight.addAndGet(-entry.weight);
+				}
+				
+			}
+			
+		}
+		
+	}
+	
+}
@@ -1,82 +1,137 @@
 package net.krazyweb.stardb.btree;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+
+import net.krazyweb.stardb.StarDBUtils;
 
 public class IndexNode {
-	
-	private class IndexElement implements Comparable<IndexElement> {
-		
-		private byte[] key;
-		private int pointer;
-		
-		private IndexElement(final byte[] key, final int pointer) {
-			this.key = key;
-			this.pointer = pointer;
-		}
 
-		@Override
-		public int compareTo(final IndexElement other) {
-			
-			if (Arrays.equals(key, other.key)) {
-				return 0;
-			}
-			
-			for (int i = 0; i < key.length; i++) {
-				if (key[i] == other.key[i]) {
-					continue;
-				}
-				return (char) key[i] - (char) other.key[i];
-			}
-			
-			return 0;
-			
-		}
-		
-		@Override
-		public boolean equals(final Object other) {
-			if (other instanceof IndexElement) { //TODO Better equals
-				IndexElement i = (IndexElement) other;
-				return Arrays.equals(key, i.key);
-			}
-			return false;
-		}
-		
-	}
-	
 	protected int selfPointer;
 	protected char level;
 	protected int beginPointer;
-	private List<IndexElement> pointers;
+	
+	private final int keySize;
+	private final boolean uniformKeys;
+	private byte[] keys;
+	private int[] pointers;
+	private int count;
 	
 	/**
-	 * Creates a new IndexNode, which contains pointers to other nodes.
+	 * Creates a new IndexNode, which contains pointers to other nodes. The keys are stored back to back in a single
+	 * array, with the pointer following each key stored at the same index in a second array.
+	 * @param keySize - The size of each key in bytes.
+	 * @param capacity - The number of keys the node is expected to hold.
+	 * @param uniformKeys - Whether the keys are uniformly distributed (such as hashes), allowing interpolation search.
 	 */
-	protected IndexNode() {
+	protected IndexNode(final int keySize, final int capacity, final boolean uniformKeys) {
 		selfPointer = 0;
 		level = 0;
 		beginPointer = 0;
-		pointers = new ArrayList<>();
+		this.keySize = keySize;
+		this.uniformKeys = uniformKeys;
+		keys = new byte[keySize * capacity];
+		pointers = new int[capacity];
+		count = 0;
 	}
 	
 	/**
-	 * Finds the index in the list of pointers of the given key.
+	 * Finds the index in the list of pointers of the given key. For uniformly distributed keys, the search starts at the
+	 * position predicted by interpolating the leading bytes of the key between the first and last keys of the node, then
+	 * gallops outwards until the key is bracketed and finishes with a binary search. A bad prediction therefore costs
+	 * no more than a logarithmic number of extra comparisons.
 	 * @param key - The key for which to search in the pointer list.
 	 * @return The index of the given key.
 	 */
 	protected int find(final byte[] key) {
-		int i = Collections.binarySearch(pointers, new IndexElement(key, 0));
-		if (i < 0) {
-			i += 1;
-			i = Math.abs(i);
+		
+		if (!uniformKeys || count < 8) {
+			return find(key, 0, count);
 		}
-		if (i != pointers.size() && Arrays.equals(pointers.get(i).key, key)) {
-			return i + 1;
+		
+		int guess = predict(key);
+		int low;
+		int high;
+		int step = 1;
+		
+		if (compare(guess, key) <= 0) {
+			low = guess + 1;
+			int probe = low;
+			while (probe < count && compare(probe, key) <= 0) {
+				low = probe + 1;
+				probe = low + step;
+				step <<= 1;
+			}
+			high = Math.min(probe, count);
 		} else {
-			return i;
+			high = guess;
+			int probe = high - 1;
+			while (probe >= 0 && compare(probe, key) > 0) {
+				high = probe;
+				probe = high - 1 - step;
+				step <<= 1;
+			}
+			low = Math.max(probe + 1, 0);
 		}
+		
+		return find(key, low, high);
+		
+	}
+	
+	/**
+	 * Counts the keys less than or equal to the given key, which is the index of the pointer covering it, by binary search
+	 * within a range of keys.
+	 * @param key - The key for which to search.
+	 * @param low - The first key to consider; all keys before it must be less than or equal to the given key.
+	 * @param high - The end of the range to consider; all keys from it onwards must be greater than the given key.
+	 * @return The index of the given key.
+	 */
+	private int find(final byte[] key, int low, int high) {
+		
+		while (low < high) {
+			
+			int middle = (low + high) >>> 1;
+			
+			if (compare(middle, key) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+			
+		}
+		
+		return low;
+		
+	}
+	
+	private int compare(final int i, final byte[] key) {
+		
+		int comparison = StarDBUtils.compareUnsigned(keys, i * keySize, key, 0, Math.min(keySize, key.length));
+		
+		if (comparison == 0) {
+			return keySize - key.length;
+		}
+		
+		return comparison;
+		
+	}
+	
+	private int predict(final byte[] key) {
+		
+		double first = StarDBUtils.keyPosition(keys, 0, keySize);
+		double last = StarDBUtils.keyPosition(keys, (count - 1) * keySize, keySize);
+		double target = StarDBUtils.keyPosition(key, 0, key.length);
+		
+		if (target <= first) {
+			return 0;
+		}
+		
+		if (target >= last) {
+			return count - 1;
+		}
+		
+		return (int) ((target - first) / (last - first) * (count - 1));
+		
 	}
 	
 	/**
@@ -84,11 +139,17 @@ public class IndexNode {
 	 * @return The number of pointers within this node.
 	 */
 	protected int size() {
-		if (beginPointer != 0) {
-			return pointers.size() + 1;
-		} else {
-			return 0;
-		}
+		return count + 1;
+	}
+	
+	/**
+	 * Retrieves a copy of the key at the given index. The child at pointer index i + 1 holds the keys from this key up to,
+	 * but not including, the next one.
+	 * @param i - The index of the key to retrieve.
+	 * @return The key at the given index.
+	 */
+	protected byte[] key(final int i) {
+		return Arrays.copyOfRange(keys, i * keySize, (i + 1) * keySize);
 	}
 	
 	/**
@@ -100,17 +161,45 @@ public class IndexNode {
 		if (i == 0) {
 			return beginPointer;
 		} else {
-			return pointers.get(i - 1).pointer;
+			return pointers[i - 1];
 		}
 	}
 	
+	/**
+	 * Estimates the amount of heap used by this node, for use in weighing cache entries.
+	 * @return The approximate size of this node in bytes.
+	 */
+	protected long memorySize() {
+		return 96 + keys.length + pointers.length * 4;
+	}
+	
 	/**
 	 * Adds a pointer to this node's pointers. This should be used with care, as the list *must* remain sorted.
 	 * @param key - The key of the pointer so that it can be retrieved.
 	 * @param pointer - The pointer itself.
 	 */
 	protected void addPointer(final byte[] key, final int pointer) {
-		pointers.add(new IndexElement(key, pointer));
+		ensureCapacity();
+		System.arraycopy(key, 0, keys, count * keySize, keySize);
+		pointers[count++] = pointer;
+	}
+	
+	/**
+	 * Reads a key followed by its pointer from the current position in the buffer and adds them to this node's
+	 * pointers, copying the key straight into place. This should be used with care, as the list *must* remain sorted.
+	 * @param buffer - The buffer holding the key and pointer.
+	 */
+	protected void addPointer(final ByteBuffer buffer) {
+		ensureCapacity();
+		buffer.get(keys, count * keySize, keySize);
+		pointers[count++] = buffer.getInt();
+	}
+	
+	private void ensureCapacity() {
+		if (count == pointers.length) {
+			pointers = Arrays.copyOf(pointers, Math.max(4, count * 2));
+			keys = Arrays.copyOf(keys, pointers.length * keySize);
+		}
 	}
 	
-}
\ No newline at end of file
+}
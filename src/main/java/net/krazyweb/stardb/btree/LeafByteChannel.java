@@ -2,86 +2,517 @@ package net.krazyweb.stardb.btree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import net.krazyweb.stardb.SeekableInMemoryByteChannel;
+import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
 import net.krazyweb.stardb.storage.BlockStorage;
 
-public class LeafByteChannel extends SeekableInMemoryByteChannel {
+/**
+ * Reads the data of a leaf as one continuous stream, following the chain of blocks the leaf is stored in. Each block
+ * starts with the leaf signature and ends with a pointer to the next block, with the leaf data in between.
+ * <p>
+ * Positions are logical offsets into the leaf data. Blocks are only read in full when data is read from them; blocks
+ * that are skipped over entirely only have their next-block pointer read.
+ * <p>
+ * A channel can also be opened over a single value of an already parsed leaf, in which case it streams the value
+ * block by block and lets go of each block once it has been consumed.
+ * <p>
+ * Runs of blocks which follow each other in the file are fetched with a single read. Where the chain is not yet known,
+ * the channel reads ahead speculatively once the chain has been seen continuing into the next block of the file,
+ * doubling the distance with every run that proves right, up to the storage's read-ahead limit. Blocks read ahead which
+ * turn out not to belong to the chain are discarded. A channel over a single value can also prefetch its next run while
+ * the current one is consumed.
+ */
+public class LeafByteChannel implements ReadableByteChannel {
+
+	private static final String leafMagic = "LL";
+	
+	protected static final int dataStart = 2;
+	
+	private final BlockStorage blockStorage;
+	private final int blockDataSize;
 	
-	private String leafMagic = "LL";
+	private int[] blockPointers;
+	private ByteBuffer[] blocks;
+	private int blockCount;
 	
-	private BlockStorage blockStorage;
-	private SeekableByteChannel blockBuffer;
+	private final boolean retainBlocks;
+	private final long limit;
 	
-	protected LeafByteChannel(final BlockStorage blockStorage, final SeekableByteChannel blockBuffer) {
+	private int current;
+	private int offset;
+	private boolean open;
+	
+	private int speculation;
+	private CompletableFuture<ByteBuffer> prefetched;
+	private int prefetchedIndex;
+	
+	/**
+	 * Creates a channel over the leaf starting at the given block.
+	 * @param blockStorage - The storage containing the leaf.
+	 * @param pointer - The block index of the first block of the leaf.
+	 * @throws StarDBException The block is not a leaf block or an error occurred while reading it.
+	 */
+	protected LeafByteChannel(final BlockStorage blockStorage, final int pointer) throws StarDBException {
+		
 		this.blockStorage = blockStorage;
-		this.blockBuffer = blockBuffer;
+		this.blockDataSize = blockStorage.getBlockSize() - dataStart - 4;
+		
+		blockPointers = new int[4];
+		blocks = new ByteBuffer[4];
+		blockPointers[0] = pointer;
+		blockCount = 1;
+		
+		retainBlocks = true;
+		limit = Long.MAX_VALUE;
+		
+		current = 0;
+		offset = 0;
 		open = true;
+		
+		try {
+			load();
+		} catch (IOException e) {
+			throw new StarDBException(e.getMessage(), e);
+		}
+		
+	}
+	
+	/**
+	 * Creates a channel over part of a leaf whose chain of blocks is already known.
+	 * @param blockStorage - The storage containing the leaf.
+	 * @param blockPointers - The block indices of the leaf's blocks, in chain order.
+	 * @param blocks - The contents of the leaf's blocks, or null for blocks which have not been read.
+	 * @param position - The logical position of the first byte to read.
+	 * @param size - The number of bytes to read.
+	 */
+	protected LeafByteChannel(final BlockStorage blockStorage, final int[] blockPointers, final ByteBuffer[] blocks, final long position, final long size) {
+		
+		this.blockStorage = blockStorage;
+		this.blockDataSize = blockStorage.getBlockSize() - dataStart - 4;
+		
+		this.blockPointers = blockPointers;
+		this.blocks = Arrays.copyOf(blocks, blocks.length);
+		blockCount = blockPointers.length;
+		
+		retainBlocks = false;
+		limit = position + size;
+		
+		current = (int) (position / blockDataSize);
+		offset = (int) (position % blockDataSize);
+		open = true;
+		
+		if (offset == 0 && current > 0) {
+			current--;
+			offset = blockDataSize;
+		}
+		
+	}
+	
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+	
+	@Override
+	public int read(final ByteBuffer destination) throws IOException {
+		
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		
+		long available = limit - position();
+		
+		if (available <= 0) {
+			return -1;
+		}
+		
+		int bytesRead = 0;
+		
+		while (destination.hasRemaining() && bytesRead < available) {
+			
+			if (offset == blockDataSize) {
+				next(remainingBlocks());
+			}
+			
+			ByteBuffer block = load().duplicate();
+			
+			int length = (int) Math.min(Math.min(destination.remaining(), blockDataSize - offset), available - bytesRead);
+			
+			block.position(dataStart + offset);
+			block.limit(dataStart + offset + length);
+			destination.put(block);
+			
+			offset += length;
+			bytesRead += length;
+			
+		}
+		
+		return bytesRead;
+		
+	}
+	
+	/**
+	 * Reads a big-endian int from the current position, decoding it directly from the block it is stored in.
+	 * @return The int read.
+	 * @throws IOException The leaf ended before the int or a block could not be read.
+	 */
+	public int readInt() throws IOException {
+		
+		if (offset + 4 <= blockDataSize && position() + 4 <= limit) {
+			int value = load().getInt(dataStart + offset);
+			offset += 4;
+			return value;
+		}
+		
+		return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+		
 	}
 	
-    @Override
-    public int read(final ByteBuffer destination) throws IOException {
-    	
-    	final int size = destination.capacity();
-    	
-		ByteBuffer data = ByteBuffer.allocate(size);
+	/**
+	 * Reads a variable length quantity from the current position, decoding it directly from the blocks it is stored in.
+	 * @return The value read.
+	 * @throws IOException The leaf ended before the quantity or a block could not be read.
+	 */
+	public int readVLQU() throws IOException {
+		
+		int value = 0;
+		int temp;
+		
+		do {
+			temp = readByte();
+			value = (value << 7 | (temp & 0x7f));
+		} while ((temp & 0x80) != 0);
 		
-		long blockDataSize = blockStorage.getBlockSize() - 4;
-		long bytesToRead = size;
+		return value;
 		
-		while (bytesToRead > 0) {
+	}
+	
+	/**
+	 * Returns the current logical position within the leaf data.
+	 * @return The number of bytes of leaf data before the current position.
+	 */
+	public long position() {
+		return (long) current * blockDataSize + offset;
+	}
+	
+	/**
+	 * Advances the position without reading the skipped data. Blocks lying entirely within the skipped range are not read,
+	 * apart from their next-block pointers.
+	 * @param bytes - The number of bytes to skip.
+	 * @throws IOException The leaf ended before the new position or a block could not be read.
+	 */
+	public void skip(long bytes) throws IOException {
+		
+		while (bytes > 0) {
+			
+			if (offset == blockDataSize) {
+				next((int) Math.min(Integer.MAX_VALUE, 1 + (bytes + blockDataSize - 1) / blockDataSize));
+			}
+			
+			int length = (int) Math.min(bytes, blockDataSize - offset);
+			
+			offset += length;
+			bytes -= length;
 			
-			boolean endOfBlock = false;
+		}
+		
+	}
+	
+	/**
+	 * Advances the position like {@link #skip(long)}, but makes sure every block holding the skipped bytes is read, so
+	 * that they can later be accessed through {@link #getBlocks()}.
+	 * @param bytes - The number of bytes to skip.
+	 * @throws IOException The leaf ended before the new position or a block could not be read.
+	 */
+	public void skipLoaded(long bytes) throws IOException {
+		
+		while (bytes > 0) {
+			
+			if (offset == blockDataSize) {
+				next(remainingBlocks());
+			}
+			
+			load();
+			
+			int length = (int) Math.min(bytes, blockDataSize - offset);
+			
+			offset += length;
+			bytes -= length;
+			
+		}
+		
+	}
+	
+	/**
+	 * Returns the block indices of every block of the leaf visited so far, in chain order.
+	 * @return The block indices of the visited blocks.
+	 */
+	public int[] getBlockPointers() {
+		return Arrays.copyOf(blockPointers, blockCount);
+	}
+	
+	/**
+	 * Returns the contents of every block of the leaf visited so far, in chain order. Blocks which were skipped over
+	 * without being read are null.
+	 * @return The contents of the visited blocks.
+	 */
+	public ByteBuffer[] getBlocks() {
+		return Arrays.copyOf(blocks, blockCount);
+	}
+	
+	/**
+	 * Returns the number of leaf data bytes stored in each block.
+	 * @return The number of leaf data bytes stored in each block.
+	 */
+	public int getBlockDataSize() {
+		return blockDataSize;
+	}
+	
+	private int readByte() throws IOException {
+		
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		
+		if (position() >= limit) {
+			throw new IOException("Insufficient leaf data: read past the end of the leaf at block " + blockPointers[0] + ".");
+		}
+		
+		if (offset == blockDataSize) {
+			next(remainingBlocks());
+		}
+		
+		return load().get(dataStart + offset++) & 0xFF;
+		
+	}
+	
+	private ByteBuffer load() throws IOException {
+		
+		if (blocks[current] == null) {
+			fetch(current, remainingBlocks(), true);
+		}
+		
+		return blocks[current];
+		
+	}
+	
+	/**
+	 * Moves on to the next block of the chain, discovering its index if it is not known yet.
+	 * @param wanted - The number of blocks, starting with the current one, which the caller expects to pass through.
+	 * @throws IOException The chain ends here or a block could not be read.
+	 */
+	private void next(final int wanted) throws IOException {
+		
+		if (current + 1 >= blockCount) {
 			
-			if ((blockBuffer.position() + bytesToRead) < blockDataSize) {
-				blockBuffer.read(data);
-                bytesToRead = 0;
+			if (blocks[current] == null) {
+				fetch(current, wanted, false);
 			} else {
-                long bytesAvailable = blockDataSize - blockBuffer.position();
-                ByteBuffer tempBuffer = ByteBuffer.allocate((int) bytesAvailable);
-                blockBuffer.read(tempBuffer);
-                tempBuffer.rewind();
-                data.put(tempBuffer);
-                bytesToRead -= bytesAvailable;
-                endOfBlock = true;
+				extend(current, blocks[current]);
 			}
 			
-			if (endOfBlock && bytesToRead > 0) {
-                ByteBuffer tempBuffer = ByteBuffer.allocate(4);
-                tempBuffer.order(ByteOrder.BIG_ENDIAN);
-                blockBuffer.read(tempBuffer);
-                tempBuffer.rewind();
-                int nextBlockPointer = tempBuffer.getInt();
-                if (nextBlockPointer != -1) {
-                    try {
-						blockBuffer = blockStorage.readBlock(nextBlockPointer);
-					} catch (StarDBException e) {
-						throw new IOException("Error: " + e.getMessage(), e);
-					}
-                    tempBuffer = ByteBuffer.allocate(2);
-                    tempBuffer.order(ByteOrder.BIG_ENDIAN);
-                    blockBuffer.read(tempBuffer);
-                    tempBuffer.rewind();
-                    String magic = new String(tempBuffer.array());
-                    if (!magic.equals(leafMagic)) {
-	                    throw new IOException("Incorrect leaf block signature"); //RUNTIMEEXCEPTION
-                    }
-                } else { 
-                    throw new IOException("Insufficient leaf data"); //RUNTIMEEXCEPTION
-                }
+			if (current + 1 >= blockCount) {
+				throw new IOException("Insufficient leaf data: the chain of the leaf at block " + blockPointers[0] + " ends at block " + blockPointers[current] + ".");
 			}
-
+			
 		}
-
-		data.rewind();
-		destination.put(data);
-		destination.rewind();
 		
-    	return 0;
-    	
-    }
-
+		if (!retainBlocks) {
+			blocks[current] = null;
+		}
+		
+		current++;
+		offset = 0;
+		
+	}
+	
+	/**
+	 * Reads a block of the chain along with as many of the following blocks as can be read in the same request: the
+	 * known blocks which follow it in the file and, past the end of the known chain, blocks read ahead speculatively.
+	 * @param first - The position in the chain of the block to read.
+	 * @param wanted - The number of blocks, starting with this one, which the caller expects to need.
+	 * @param keep - Whether to keep the contents of the blocks read, or only learn the chain from them. The last block
+	 * wanted is kept either way, as that is where reading resumes.
+	 * @throws IOException A block of the chain is not a leaf block or could not be read.
+	 */
+	private void fetch(final int first, final int wanted, final boolean keep) throws IOException {
+		
+		int maximum = Math.max(1, Math.min(wanted, blockStorage.getReadAheadBlocks()));
+		int base = blockPointers[first];
+		int count = 1;
+		
+		while (count < maximum && first + count < blockCount && blocks[first + count] == null && blockPointers[first + count] == base + count) {
+			count++;
+		}
+		
+		if (first + count == blockCount) {
+			count = Math.min(maximum, count + speculation);
+		}
+		
+		ByteBuffer run = prefetched(first);
+		
+		if (run == null) {
+			try {
+				run = count == 1 ? blockStorage.readBlockBuffer(base) : blockStorage.readBlocksBuffer(base, count);
+			} catch (StarDBException e) {
+				throw new IOException("Error: " + e.getMessage(), e);
+			}
+		}
+		
+		int read = run.remaining() / blockStorage.getBlockSize();
+		int blockSize = blockStorage.getBlockSize();
+		
+		for (int k = 0; k < read; k++) {
+			
+			int index = first + k;
+			
+			if (index >= blockCount || blockPointers[index] != base + k) {
+				speculation = 0;
+				break;
+			}
+			
+			ByteBuffer block = run;
+			
+			if (read > 1) {
+				block = slice(run, k * blockSize, blockSize);
+			}
+			
+			if (block.get(0) != leafMagic.charAt(0) || block.get(1) != leafMagic.charAt(1)) {
+				throw new IOException("Incorrect leaf block signature in block " + (base + k) + ".");
+			}
+			
+			if (keep || k == wanted - 1) {
+				blocks[index] = block;
+			}
+			
+			if (index == blockCount - 1 && !extend(index, block)) {
+				break;
+			}
+			
+		}
+		
+		if (keep && prefetch()) {
+			
+			int next = first + read;
+			int remaining = wanted - read;
+			
+			if (remaining > 0 && next < blockCount) {
+				prefetchedIndex = next;
+				prefetched = blockStorage.readBlocksBufferAsync(blockPointers[next], Math.min(remaining, Math.min(1 + speculation, blockStorage.getReadAheadBlocks())));
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Cuts a single block out of a run. Channels which retain their blocks copy blocks out of runs read into the heap,
+	 * so that a leaf held in a cache does not keep the rest of the run alive.
+	 * @param run - The run of blocks.
+	 * @param position - The offset of the block within the run.
+	 * @param size - The size of a block.
+	 * @return The block.
+	 */
+	private ByteBuffer slice(final ByteBuffer run, final int position, final int size) {
+		
+		ByteBuffer block = run.duplicate();
+		block.limit(position + size);
+		block.position(position);
+		
+		if (retainBlocks && !run.isDirect()) {
+			ByteBuffer copy = ByteBuffer.allocate(size);
+			copy.put(block).flip();
+			return copy;
+		}
+		
+		return block.slice();
+		
+	}
+	
+	/**
+	 * Appends the next block named at the end of a block to the known chain, and adjusts how far ahead to read.
+	 * @param index - The position in the chain of the block, which must be the last known one.
+	 * @param block - The contents of the block.
+	 * @return Whether the chain continues.
+	 */
+	private boolean extend(final int index, final ByteBuffer block) {
+		
+		int nextBlockPointer = block.getInt(dataStart + blockDataSize);
+		
+		if (nextBlockPointer == -1) {
+			return false;
+		}
+		
+		if (blockCount == blockPointers.length) {
+			blockPointers = Arrays.copyOf(blockPointers, blockCount * 2);
+			blocks = Arrays.copyOf(blocks, blockCount * 2);
+		}
+		
+		blockPointers[blockCount++] = nextBlockPointer;
+		
+		if (nextBlockPointer == blockPointers[index] + 1) {
+			speculation = Math.min(Math.max(1, speculation * 2), blockStorage.getReadAheadBlocks() - 1);
+		} else {
+			speculation = 0;
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Takes the run prefetched for the given position in the chain, if there is one. A prefetched run for any other
+	 * position is abandoned.
+	 * @param first - The position in the chain of the block about to be read.
+	 * @return The prefetched run, or null if there is none.
+	 * @throws IOException The prefetched read failed.
+	 */
+	private ByteBuffer prefetched(final int first) throws IOException {
+		
+		CompletableFuture<ByteBuffer> future = prefetched;
+		prefetched = null;
+		
+		if (future == null || prefetchedIndex != first) {
+			return null;
+		}
+		
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw new IOException("Error: " + StarDBUtils.unwrap(e).getMessage(), e);
+		}
+		
+	}
+	
+	private boolean prefetch() {
+		return !retainBlocks && blockStorage.isPrefetchEnabled();
+	}
+	
+	/**
+	 * Returns the number of blocks, starting with the current one, which hold data up to the end of the channel.
+	 * @return The number of blocks, or Integer.MAX_VALUE if the channel runs to the end of the leaf.
+	 */
+	private int remainingBlocks() {
+		
+		if (limit == Long.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		
+		long start = (long) current * blockDataSize;
+		
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (limit - start + blockDataSize - 1) / blockDataSize));
+		
+	}
+	
 }
@@ -0,0 +1,249 @@
+package net.krazyweb.stardb.btree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of parsed leaf nodes, bounded by their estimated memory size and managed as a segmented LRU. New leaves
+ * enter a probationary segment and are only promoted to the protected segment when they are read again, so a scan
+ * over many leaves that are each read once cannot flush the frequently read ones.
+ * <p>
+ * Even a hit reorders the LRU lists, so every lookup takes a lock. To keep concurrent readers from all waiting on the
+ * same lock, larger caches are split into stripes by leaf pointer, each with its own lock, lists and share of the
+ * budget. Caches too small to give every stripe a useful budget use a single stripe.
+ */
+class LeafCache {
+
+	private static final double protectedRatio = 0.8;
+	private static final int maximumStripes = 16;
+	private static final long minimumStripeWeight = 1024 * 1024;
+	
+	private final Stripe[] stripes;
+	
+	private static class Stripe {
+		
+		private final LinkedHashMap<Integer, LeafNode> probation;
+		private final LinkedHashMap<Integer, LeafNode> protectedSegment;
+		
+		private final long maximumWeight;
+		private final long maximumProtectedWeight;
+		private long probationWeight;
+		private long protectedWeight;
+		
+		private long hits;
+		private long misses;
+		
+		private Stripe(final long maximumWeight) {
+			this.maximumWeight = maximumWeight;
+			this.maximumProtectedWeight = (long) (maximumWeight * protectedRatio);
+			probation = new LinkedHashMap<>(16, 0.75f, true);
+			protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+		}
+		
+		private synchronized LeafNode get(final int pointer) {
+			
+			LeafNode leaf = protectedSegment.get(pointer);
+			
+			if (leaf != null) {
+				hits++;
+				return leaf;
+			}
+			
+			leaf = probation.remove(pointer);
+			
+			if (leaf == null) {
+				misses++;
+				return null;
+			}
+			
+			hits++;
+			
+			probationWeight -= leaf.memorySize();
+			protectedSegment.put(pointer, leaf);
+			protectedWeight += leaf.memorySize();
+			
+			Iterator<Map.Entry<Integer, LeafNode>> eldest = protectedSegment.entrySet().iterator();
+			
+			while (protectedWeight > maximumProtectedWeight && eldest.hasNext()) {
+				LeafNode demoted = eldest.next().getValue();
+				if (demoted == leaf) {
+					break;
+				}
+				eldest.remove();
+				protectedWeight -= demoted.memorySize();
+				probation.put(demoted.selfPointer, demoted);
+				probationWeight += demoted.memorySize();
+			}
+			
+			evict();
+			
+			return leaf;
+			
+		}
+		
+		private synchronized void put(final LeafNode leaf) {
+			
+			if (leaf.memorySize() > maximumWeight || protectedSegment.containsKey(leaf.selfPointer)) {
+				return;
+			}
+			
+			LeafNode previous = probation.put(leaf.selfPointer, leaf);
+			
+			if (previous != null) {
+				probationWeight -= previous.memorySize();
+			}
+			
+			probationWeight += leaf.memorySize();
+			
+			evict();
+			
+		}
+		
+		private synchronized void remove(final int pointer) {
+			
+			LeafNode leaf = probation.remove(pointer);
+			
+			if (leaf != null) {
+				probationWeight -= leaf.memorySize();
+			}
+			
+			leaf = protectedSegment.remove(pointer);
+			
+			if (leaf != null) {
+				protectedWeight -= leaf.memorySize();
+			}
+			
+		}
+		
+		private synchronized void clear() {
+			probation.clear();
+			protectedSegment.clear();
+			probationWeight = 0;
+			protectedWeight = 0;
+		}
+		
+		private synchronized long hitCount() {
+			return hits;
+		}
+		
+		private synchronized long missCount() {
+			return misses;
+		}
+		
+		private void evict() {
+			
+			Iterator<LeafNode> eldest = probation.values().iterator();
+			
+			while (probationWeight + protectedWeight > maximumWeight && eldest.hasNext()) {
+				probationWeight -= eldest.next().memorySize();
+				eldest.remove();
+			}
+			
+			eldest = protectedSegment.values().iterator();
+			
+			while (probationWeight + protectedWeight > maximumWeight && eldest.hasNext()) {
+				protectedWeight -= eldest.next().memorySize();
+				eldest.remove();
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Creates a new LeafCache.
+	 * @param maximumWeight - The maximum estimated size of all cached leaves in bytes.
+	 */
+	protected LeafCache(final long maximumWeight) {
+		
+		int count = Integer.highestOneBit((int) Math.max(1, Math.min(maximumStripes, maximumWeight / minimumStripeWeight)));
+		
+		stripes = new Stripe[count];
+		
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(maximumWeight / count);
+		}
+		
+	}
+	
+	/**
+	 * Retrieves the cached leaf for the given pointer, promoting it to the protected segment if it was on probation.
+	 * @param pointer - The block index of the leaf.
+	 * @return The cached leaf, or null if it is not cached.
+	 */
+	protected LeafNode get(final int pointer) {
+		return stripe(pointer).get(pointer);
+	}
+	
+	/**
+	 * Adds a leaf to the probationary segment, evicting the least recently used leaves if its stripe is over budget.
+	 * Leaves larger than a whole stripe are not admitted.
+	 * @param leaf - The leaf to cache.
+	 */
+	protected void put(final LeafNode leaf) {
+		stripe(leaf.selfPointer).put(leaf);
+	}
+	
+	/**
+	 * Removes the leaf for the given pointer from the cache, if it is cached.
+	 * @param pointer - The block index of the leaf.
+	 */
+	protected void remove(final int pointer) {
+		stripe(pointer).remove(pointer);
+	}
+	
+	/**
+	 * Removes every leaf from the cache, keeping its hit and miss counts.
+	 */
+	protected void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+	
+	/**
+	 * Returns the number of lookups that were served from the cache.
+	 * @return The number of cache hits.
+	 */
+	protected long hitCount() {
+		
+		long hits = 0;
+		
+		for (Stripe stripe : stripes) {
+			hits += stripe.hitCount();
+		}
+		
+		return hits;
+		
+	}
+	
+	/**
+	 * Returns the number of lookups that had to read the leaf from storage.
+	 * @return The number of cache misses.
+	 */
+	protected long missCount() {
+		
+		long misses = 0;
+		
+		for (Stripe stripe : stripes) {
+			misses += stripe.missCount();
+		}
+		
+		return misses;
+		
+	}
+	
+	/**
+	 * Returns the number of stripes the cache is split into.
+	 * @return The number of stripes, a power of two.
+	 */
+	protected int stripeCount() {
+		return stripes.length;
+	}
+	
+	private Stripe stripe(final int pointer) {
+		return stripes[pointer & (stripes.length - 1)];
+	}
+	
+}
@@ -1,73 +1,104 @@
 package net.krazyweb.stardb.btree;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
+import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
 
 public class LeafNode {
+
+	protected int selfPointer;
+	protected int nextLeaf;
+	
+	private final BlockStorage blockStorage;
+	private final int keySize;
+	private final boolean uniformKeys;
+	private final int blockDataSize;
+	private final int[] blockPointers;
+	private final ByteBuffer[] blocks;
+	
+	private final long[] keyOffsets;
+	private final long[] valueOffsets;
+	private final int[] valueSizes;
 	
-	protected class LeafElement implements Comparable<LeafElement> {
+	private final long memorySize;
+	
+	/**
+	 * Creates a new LeafNode, which contains data at the end of the tree. Keys and data are not copied out of the leaf's
+	 * blocks; the node only records where each of them starts, as a logical offset into the leaf data.
+	 * @param selfPointer - The block index of the first block of the leaf.
+	 * @param blockStorage - The storage containing the leaf, used to read blocks that were not loaded while parsing.
+	 * @param keySize - The size of each key in bytes.
+	 * @param uniformKeys - Whether the keys are uniformly distributed (such as hashes), allowing interpolation search.
+	 * @param leafInput - The channel the leaf was parsed through, holding the leaf's blocks.
+	 * @param keyOffsets - The logical offset of each key. The keys *must* be sorted.
+	 * @param valueOffsets - The logical offset of each value.
+	 * @param valueSizes - The size of each value in bytes.
+	 */
+	protected LeafNode(final int selfPointer, final BlockStorage blockStorage, final int keySize, final boolean uniformKeys, final LeafByteChannel leafInput, final long[] keyOffsets, final long[] valueOffsets, final int[] valueSizes) {
 		
-		private byte[] key;
-		private byte[] data;
+		this.selfPointer = selfPointer;
+		this.nextLeaf = 0;
+		this.blockStorage = blockStorage;
+		this.keySize = keySize;
+		this.uniformKeys = uniformKeys;
+		this.blockDataSize = leafInput.getBlockDataSize();
+		this.blockPointers = leafInput.getBlockPointers();
+		this.blocks = leafInput.getBlocks();
+		this.keyOffsets = keyOffsets;
+		this.valueOffsets = valueOffsets;
+		this.valueSizes = valueSizes;
 		
-		private LeafElement(final byte[] key, final byte[] data) {
-			this.key = key;
-			this.data = data;
-		}
-
-		@Override
-		public int compareTo(final LeafElement other) {
-			
-			if (Arrays.equals(key, other.key)) {
-				return 0;
-			}
-			
-			for (int i = 0; i < key.length; i++) {
-				if (key[i] == other.key[i]) {
-					continue;
-				}
-				return (char) key[i] - (char) other.key[i];
+		long size = 64 + blockPointers.length * 8 + keyOffsets.length * 20;
+		
+		for (ByteBuffer block : blocks) {
+			if (block != null && !block.isDirect()) {
+				size += block.capacity();
 			}
-			
-			return 0;
-			
 		}
 		
+		this.memorySize = size;
+		
 	}
 	
-	protected int selfPointer;
-	protected int nextLeaf;
-	protected List<LeafElement> elements;
-
 	/**
-	 * Creates a new LeafNode, which contains data at the end of the tree.
+	 * Creates a LeafNode over the same blocks and entries as another, searched with or without interpolation.
+	 * @param leaf - The leaf to share the blocks and entries of.
+	 * @param uniformKeys - Whether the keys are uniformly distributed (such as hashes), allowing interpolation search.
 	 */
-	protected LeafNode() {
-		selfPointer = 0;
-		nextLeaf = 0;
-		elements = new ArrayList<>(); //This list must be sorted by key
+	protected LeafNode(final LeafNode leaf, final boolean uniformKeys) {
+		this.selfPointer = leaf.selfPointer;
+		this.nextLeaf = leaf.nextLeaf;
+		this.blockStorage = leaf.blockStorage;
+		this.keySize = leaf.keySize;
+		this.uniformKeys = uniformKeys;
+		this.blockDataSize = leaf.blockDataSize;
+		this.blockPointers = leaf.blockPointers;
+		this.blocks = leaf.blocks;
+		this.keyOffsets = leaf.keyOffsets;
+		this.valueOffsets = leaf.valueOffsets;
+		this.valueSizes = leaf.valueSizes;
+		this.memorySize = leaf.memorySize;
 	}
-
+	
 	/**
 	 * Finds the data for the given key.
 	 * @param key - The key for the data.
 	 * @return The data for the given key as a byte array.
+	 * @throws StarDBException An error occurred while reading the data.
 	 */
-	protected byte[] findData(final byte[] key) {
-		int i = Collections.binarySearch(elements, new LeafElement(key, new byte[] {}));
+	protected byte[] findData(final byte[] key) throws StarDBException {
+		
+		int i = indexOf(key);
+		
 		if (i < 0) {
-			i += 1;
-			i = Math.abs(i);
-		}
-		if (i != elements.size() && Arrays.equals(elements.get(i).key, key)) {
-			return elements.get(i).data;
-		} else {
 			return null;
 		}
+		
+		return getData(i);
+		
 	}
 	
 	/**
@@ -81,12 +112,332 @@ public class LeafNode {
 	}
 	
 	/**
-	 * Adds data to this node for the specified key. This should be used with care, as the list *must* remain sorted.
-	 * @param key - The key of the data so that it can be retrieved.
-	 * @param data - The data itself.
+	 * Searches the keys of this leaf in place. Uniformly distributed keys are searched from an interpolated starting
+	 * point, widening the range exponentially until the key is bracketed, then finishing with a binary search.
+	 * @param key - The key to search for.
+	 * @return The index of the key within this leaf, or -1 if it is not present.
+	 */
+	protected int indexOf(final byte[] key) {
+		
+		int count = keyOffsets.length;
+		
+		if (!uniformKeys || count < 8) {
+			return indexOf(key, 0, count - 1);
+		}
+		
+		int guess = predict(key);
+		int comparison = compareKey(guess, key);
+		int step = 1;
+		
+		if (comparison == 0) {
+			return guess;
+		}
+		
+		if (comparison < 0) {
+			int low = guess + 1;
+			int probe = low;
+			while (probe < count && (comparison = compareKey(probe, key)) < 0) {
+				low = probe + 1;
+				probe = low + step;
+				step <<= 1;
+			}
+			return probe < count && comparison == 0 ? probe : indexOf(key, low, Math.min(probe, count) - 1);
+		} else {
+			int high = guess - 1;
+			int probe = high;
+			while (probe >= 0 && (comparison = compareKey(probe, key)) > 0) {
+				high = probe - 1;
+				probe = high - step;
+				step <<= 1;
+			}
+			return probe >= 0 && comparison == 0 ? probe : indexOf(key, Math.max(probe, -1) + 1, high);
+		}
+		
+	}
+	
+	/**
+	 * Binary searches a range of the keys of this leaf in place.
+	 * @param key - The key to search for.
+	 * @param low - The index of the first key to consider.
+	 * @param high - The index of the last key to consider.
+	 * @return The index of the key within this leaf, or -1 if it is not present.
+	 */
+	private int indexOf(final byte[] key, int low, int high) {
+		
+		while (low <= high) {
+			
+			int middle = (low + high) >>> 1;
+			int comparison = compareKey(middle, key);
+			
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+			
+		}
+		
+		return -1;
+		
+	}
+	
+	/**
+	 * Returns the number of elements stored in this leaf.
+	 * @return The number of elements in this leaf.
+	 */
+	protected int size() {
+		return keyOffsets.length;
+	}
+	
+	/**
+	 * Copies the key stored at the given index out of the leaf.
+	 * @param i - The index of the element within this leaf.
+	 * @return The key as a byte array.
+	 * @throws StarDBException An error occurred while reading a block of the leaf.
+	 */
+	protected byte[] getKey(final int i) throws StarDBException {
+		byte[] key = new byte[keySize];
+		copy(keyOffsets[i], key);
+		return key;
+	}
+	
+	/**
+	 * Returns the size of the data stored at the given index.
+	 * @param i - The index of the element within this leaf.
+	 * @return The size of the data in bytes.
+	 */
+	protected int getDataSize(final int i) {
+		return valueSizes[i];
+	}
+	
+	/**
+	 * Returns the block index of the block in which the data stored at the given index starts. Data which starts
+	 * exactly at a block boundary is counted as starting at the end of the previous block, whose pointer is always known.
+	 * @param i - The index of the element within this leaf.
+	 * @return The block index of the block holding the start of the data.
 	 */
-	protected void addElement(final byte[] key, final byte[] data) {
-		elements.add(new LeafElement(key, data));
+	protected int getDataPointer(final int i) {
+		return blockPointers[(int) ((valueOffsets[i] - 1) / blockDataSize)];
+	}
+	
+	/**
+	 * Returns the offset within its block's leaf data at which the data stored at the given index starts, matching the
+	 * block returned by {@link #getDataPointer(int)}.
+	 * @param i - The index of the element within this leaf.
+	 * @return The offset of the data within the leaf data of its block, between 1 and the block's data size.
+	 */
+	protected int getDataPointerOffset(final int i) {
+		return (int) ((valueOffsets[i] - 1) % blockDataSize) + 1;
+	}
+	
+	/**
+	 * Returns the block indices of the blocks of this leaf which were visited while parsing it, in chain order. This is
+	 * every block holding the leaf's data.
+	 * @return The block indices of the leaf's blocks.
+	 */
+	protected int[] getBlockPointers() {
+		return blockPointers.clone();
+	}
+	
+	/**
+	 * Finds the first key of this leaf which is not less than the given key.
+	 * @param key - The key to search for.
+	 * @return The index of the first key greater than or equal to the given key, or the size of the leaf if there is none.
+	 */
+	protected int lowerBound(final byte[] key) {
+		
+		int low = 0;
+		int high = keyOffsets.length;
+		
+		while (low < high) {
+			
+			int middle = (low + high) >>> 1;
+			
+			if (compareKey(middle, key) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+			
+		}
+		
+		return low;
+		
+	}
+	
+	/**
+	 * Copies the data stored at the given index out of the leaf.
+	 * @param i - The index of the element within this leaf.
+	 * @return The data as a byte array.
+	 * @throws StarDBException An error occurred while reading a block of the leaf.
+	 */
+	protected byte[] getData(final int i) throws StarDBException {
+		byte[] data = new byte[valueSizes[i]];
+		copy(valueOffsets[i], data);
+		return data;
+	}
+	
+	/**
+	 * Opens a channel which streams the data stored at the given index out of the leaf, reading its blocks only as the
+	 * data is consumed.
+	 * @param i - The index of the element within this leaf.
+	 * @return A channel over the data.
+	 */
+	protected ReadableByteChannel openData(final int i) {
+		return new LeafByteChannel(blockStorage, blockPointers, blocks, valueOffsets[i], valueSizes[i]);
+	}
+	
+	/**
+	 * Estimates the amount of heap used by this node and the blocks it holds, for use in weighing cache entries. Blocks
+	 * which are views of a memory mapping are not counted, since they hold no heap and the OS owns their pages.
+	 * @return The approximate size of this node in bytes.
+	 */
+	protected long memorySize() {
+		return memorySize;
+	}
+	
+	/**
+	 * Compares the key stored at the given index with another key, in place. A key which is a prefix of the other is
+	 * the lesser.
+	 * @param i - The index of the element within this leaf.
+	 * @param key - The key to compare with.
+	 * @return A negative number, zero or a positive number if the stored key is less than, equal to or greater than the given key.
+	 */
+	protected int compareKey(final int i, final byte[] key) {
+		
+		long position = keyOffsets[i];
+		int block = (int) (position / blockDataSize);
+		int offset = (int) (position % blockDataSize);
+		ByteBuffer buffer = blocks[block];
+		
+		int length = Math.min(keySize, key.length);
+		
+		for (int j = 0; j < length; j++) {
+			
+			if (offset == blockDataSize) {
+				buffer = blocks[++block];
+				offset = 0;
+			}
+			
+			int comparison = (buffer.get(LeafByteChannel.dataStart + offset++) & 0xFF) - (key[j] & 0xFF);
+			
+			if (comparison != 0) {
+				return comparison;
+			}
+			
+		}
+		
+		return keySize - key.length;
+		
+	}
+	
+	private int predict(final byte[] key) {
+		
+		int count = keyOffsets.length;
+		double first = keyPosition(0);
+		double last = keyPosition(count - 1);
+		double target = StarDBUtils.keyPosition(key, 0, key.length);
+		
+		if (target <= first) {
+			return 0;
+		}
+		
+		if (target >= last) {
+			return count - 1;
+		}
+		
+		return (int) ((target - first) / (last - first) * (count - 1));
+		
+	}
+	
+	private double keyPosition(final int i) {
+		
+		long position = keyOffsets[i];
+		int block = (int) (position / blockDataSize);
+		int offset = (int) (position % blockDataSize);
+		long value = 0;
+		
+		for (int j = 0; j < 8; j++) {
+			
+			value <<= 8;
+			
+			if (j < keySize) {
+				if (offset == blockDataSize) {
+					block++;
+					offset = 0;
+				}
+				value |= blocks[block].get(LeafByteChannel.dataStart + offset++) & 0xFF;
+			}
+			
+		}
+		
+		return value >>> 11;
+		
+	}
+	
+	private void copy(final long position, final byte[] destination) throws StarDBException {
+		
+		int block = (int) (position / blockDataSize);
+		int offset = (int) (position % blockDataSize);
+		int copied = 0;
+		
+		ByteBuffer run = null;
+		int runStart = 0;
+		int runCount = 0;
+		
+		while (copied < destination.length) {
+			
+			if (offset == blockDataSize) {
+				block++;
+				offset = 0;
+			}
+			
+			int length = Math.min(destination.length - copied, blockDataSize - offset);
+			
+			ByteBuffer source;
+			
+			if (blocks[block] != null) {
+				source = blocks[block].duplicate();
+				source.position(LeafByteChannel.dataStart + offset);
+			} else {
+				
+				if (run == null || block >= runStart + runCount) {
+					
+					int wanted = Math.min(blockStorage.getReadAheadBlocks(), (destination.length - copied + offset + blockDataSize - 1) / blockDataSize);
+					int count = 1;
+					
+					while (count < wanted && block + count < blockPointers.length && blocks[block + count] == null && blockPointers[block + count] == blockPointers[block] + count) {
+						count++;
+					}
+					
+					if (count == 1) {
+						run = null;
+					} else {
+						run = blockStorage.readBlocksBuffer(blockPointers[block], count);
+						runStart = block;
+						runCount = run.remaining() / blockStorage.getBlockSize();
+					}
+					
+				}
+				
+				if (run == null) {
+					source = blockStorage.readBlockBuffer(blockPointers[block], LeafByteChannel.dataStart + offset, length);
+				} else {
+					source = run.duplicate();
+					source.position((block - runStart) * blockStorage.getBlockSize() + LeafByteChannel.dataStart + offset);
+				}
+				
+			}
+			
+			source.get(destination, copied, length);
+			
+			offset += length;
+			copied += length;
+			
+		}
+		
 	}
 	
-}
\ No newline at end of file
+}
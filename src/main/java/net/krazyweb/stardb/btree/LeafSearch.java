@@ -0,0 +1,77 @@
+package net.krazyweb.stardb.btree;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Searches one leaf both ways LeafNode can, counting the key comparisons each search makes: from an interpolated
+ * starting point with a gallop, as for uniformly distributed keys, and by plain binary search over the whole leaf.
+ * Reading the leading bytes of keys to interpolate is not counted. This is a diagnostic for benchmarks comparing the
+ * two searches; lookups through a database never use it. Its counts are not synchronized, so an instance must only be
+ * used by one thread at a time.
+ */
+public class LeafSearch {
+
+	private final CountingLeafNode interpolated;
+	private final CountingLeafNode binary;
+	
+	/**
+	 * Reads the leaf in which a key belongs.
+	 * @param database - The opened database to search.
+	 * @param key - The key, as stored in the tree.
+	 * @throws StarDBException An error occurred while reading the tree.
+	 */
+	public LeafSearch(final BTreeDatabase database, final byte[] key) throws StarDBException {
+		LeafNode leaf = database.readLeaf(database.findLeaf(key).selfPointer);
+		interpolated = new CountingLeafNode(leaf, true);
+		binary = new CountingLeafNode(leaf, false);
+	}
+	
+	/**
+	 * @return The block index of the first block of the leaf.
+	 */
+	public int getPointer() {
+		return interpolated.selfPointer;
+	}
+	
+	/**
+	 * Searches the leaf from an interpolated starting point.
+	 * @param key - The key to search for.
+	 * @return The index of the key within the leaf, or -1 if it is not present.
+	 */
+	public int interpolated(final byte[] key) {
+		return interpolated.indexOf(key);
+	}
+	
+	/**
+	 * Searches the leaf by binary search alone.
+	 * @param key - The key to search for.
+	 * @return The index of the key within the leaf, or -1 if it is not present.
+	 */
+	public int binary(final byte[] key) {
+		return binary.indexOf(key);
+	}
+	
+	/**
+	 * @return The number of key comparisons made by both kinds of search so far.
+	 */
+	public long getComparisons() {
+		return interpolated.comparisons + binary.comparisons;
+	}
+	
+	private static class CountingLeafNode extends LeafNode {
+		
+		private long comparisons;
+		
+		private CountingLeafNode(final LeafNode leaf, final boolean uniformKeys) {
+			super(leaf, uniformKeys);
+		}
+		
+		@Override
+		protected int compareKey(final int i, final byte[] key) {
+			comparisons++;
+			return super.compareKey(i, key);
+		}
+		
+	}
+	
+}
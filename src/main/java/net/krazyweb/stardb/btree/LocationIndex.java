@@ -0,0 +1,247 @@
+package net.krazyweb.stardb.btree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * A sorted table recording where the value of every key is stored, read from a memory-mapped sidecar file. A lookup
+ * goes straight to the block holding the value without reading any index or leaf nodes, which makes lookups fast from
+ * the very first one, before any part of the tree has been cached.
+ * <p>
+ * The table holds one record per key: the key, the block in which its value starts, the offset of the value within
+ * that block's leaf data and the size of the value. Records are sorted by key and bucketed by the first two bytes of
+ * the key, so a lookup of uniformly distributed keys only searches a handful of records.
+ * <p>
+ * The table is only read through absolute gets, so it may be used by any number of threads at once.
+ */
+class LocationIndex {
+
+	private static final int bucketCount = 65536;
+	
+	private final BlockStorage blockStorage;
+	private final int keySize;
+	private final int recordSize;
+	private final ByteBuffer buckets;
+	private final ByteBuffer records;
+	
+	/**
+	 * Creates a LocationIndex over table data previously written by {@link #write(BTreeCursor, int, DataOutput)}.
+	 * @param blockStorage - The storage containing the values.
+	 * @param data - The table data, positioned at its start. The buffer's position is advanced past the table.
+	 * @throws IOException The data is not a valid table.
+	 */
+	protected LocationIndex(final BlockStorage blockStorage, final ByteBuffer data) throws IOException {
+		
+		this.blockStorage = blockStorage;
+		
+		keySize = data.getInt();
+		int count = data.getInt();
+		recordSize = keySize + 12;
+		
+		if (keySize <= 0 || count < 0 || data.remaining() < (bucketCount + 1) * 4L + (long) count * recordSize) {
+			throw new IOException("Invalid location index data");
+		}
+		
+		buckets = region(data, (bucketCount + 1) * 4);
+		records = region(data, count * recordSize);
+		
+	}
+	
+	/**
+	 * Writes the table for every entry visited by a cursor.
+	 * @param cursor - A cursor positioned before the first entry of the database.
+	 * @param keySize - The size of each key in bytes.
+	 * @param output - The output to write the table to.
+	 * @throws StarDBException An error occurred while reading the database.
+	 * @throws IOException An error occurred while writing the table.
+	 */
+	protected static void write(final BTreeCursor cursor, final int keySize, final DataOutput output) throws StarDBException, IOException {
+		
+		int[] bucketStarts = new int[bucketCount + 1];
+		int count = 0;
+		
+		byte[] data = new byte[64 * 1024];
+		ByteBuffer table = ByteBuffer.wrap(data);
+		
+		while (cursor.next()) {
+			
+			LeafNode leaf = cursor.currentLeaf();
+			int entry = cursor.currentEntry();
+			byte[] key = leaf.getKey(entry);
+			
+			if (table.remaining() < keySize + 12) {
+				ByteBuffer grown = ByteBuffer.allocate(data.length * 2);
+				table.flip();
+				grown.put(table);
+				table = grown;
+				data = grown.array();
+			}
+			
+			table.put(key);
+			table.putInt(leaf.getDataPointer(entry));
+			table.putInt(leaf.getDataPointerOffset(entry));
+			table.putInt(leaf.getDataSize(entry));
+			
+			bucketStarts[bucket(key) + 1]++;
+			count++;
+			
+		}
+		
+		for (int i = 1; i <= bucketCount; i++) {
+			bucketStarts[i] += bucketStarts[i - 1];
+		}
+		
+		output.writeInt(keySize);
+		output.writeInt(count);
+		
+		for (int start : bucketStarts) {
+			output.writeInt(start);
+		}
+		
+		output.write(data, 0, table.position());
+		
+	}
+	
+	/**
+	 * Retrieves the value for the given key.
+	 * @param key - The key to retrieve the value for.
+	 * @return The value as a byte array, or null if the key is not in the table.
+	 * @throws StarDBException An error occurred while reading the value.
+	 */
+	protected byte[] find(final byte[] key) throws StarDBException {
+		
+		int i = indexOf(key);
+		
+		if (i < 0) {
+			return null;
+		}
+		
+		byte[] data = new byte[records.getInt(i * recordSize + keySize + 8)];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		
+		try (ReadableByteChannel channel = open(i)) {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new StarDBException("Insufficient leaf data");
+				}
+			}
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		return data;
+		
+	}
+	
+	/**
+	 * Opens a channel which streams the value for the given key.
+	 * @param key - The key to retrieve the value for.
+	 * @return A channel over the value, or null if the key is not in the table.
+	 */
+	protected ReadableByteChannel findChannel(final byte[] key) {
+		
+		int i = indexOf(key);
+		
+		if (i < 0) {
+			return null;
+		}
+		
+		return open(i);
+		
+	}
+	
+	/**
+	 * Retrieves the value for the given key without blocking.
+	 * @param key - The key to retrieve the value for.
+	 * @return A future completed with the value, or with null if the key is not in the table.
+	 */
+	protected CompletableFuture<byte[]> findAsync(final byte[] key) {
+		
+		int i = indexOf(key);
+		
+		if (i < 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		int position = i * recordSize + keySize;
+		
+		return AsyncLeafReader.read(blockStorage, records.getInt(position), records.getInt(position + 4), records.getInt(position + 8));
+		
+	}
+	
+	/**
+	 * Checks whether the table holds the given key.
+	 * @param key - The key to search for.
+	 * @return Whether the key is in the table.
+	 */
+	protected boolean contains(final byte[] key) {
+		return indexOf(key) >= 0;
+	}
+	
+	private ReadableByteChannel open(final int i) {
+		int position = i * recordSize + keySize;
+		int[] pointers = { records.getInt(position) };
+		return new LeafByteChannel(blockStorage, pointers, new ByteBuffer[1], records.getInt(position + 4), records.getInt(position + 8));
+	}
+	
+	private int indexOf(final byte[] key) {
+		
+		int bucket = bucket(key);
+		int low = buckets.getInt(bucket * 4);
+		int high = buckets.getInt(bucket * 4 + 4) - 1;
+		
+		while (low <= high) {
+			
+			int middle = (low + high) >>> 1;
+			int comparison = compareKey(middle, key);
+			
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+			
+		}
+		
+		return -1;
+		
+	}
+	
+	private int compareKey(final int i, final byte[] key) {
+		
+		int position = i * recordSize;
+		int length = Math.min(keySize, key.length);
+		
+		for (int j = 0; j < length; j++) {
+			int comparison = (records.get(position + j) & 0xFF) - (key[j] & 0xFF);
+			if (comparison != 0) {
+				return comparison;
+			}
+		}
+		
+		return keySize - key.length;
+		
+	}
+	
+	private static int bucket(final byte[] key) {
+		int first = key.length > 0 ? key[0] & 0xFF : 0;
+		int second = key.length > 1 ? key[1] & 0xFF : 0;
+		return first << 8 | second;
+	}
+	
+	private static ByteBuffer region(final ByteBuffer data, final int size) {
+		ByteBuffer view = data.duplicate();
+		view.limit(view.position() + size);
+		data.position(data.position() + size);
+		return view.slice();
+	}
+	
+}
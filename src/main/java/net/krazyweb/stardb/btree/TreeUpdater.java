@@ -0,0 +1,321 @@
+package net.krazyweb.stardb.btree;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * Applies inserts, replacements and removals to a database by copy-on-write. The leaf holding the key and every index
+ * node on the path down to it are written to newly reserved blocks, and the blocks they replace are freed, so the last
+ * committed tree is left untouched until the new root is committed.
+ * <p>
+ * Leaves which grow beyond a block are split using the same packing as {@link BTreeDatabaseWriter}, index nodes which
+ * grow beyond a block are split evenly, and the tree grows a new root when the old one splits. Empty nodes are removed,
+ * and a root left with a single child is replaced by that child. Underfull nodes are not merged.
+ */
+class TreeUpdater {
+
+	private final BTreeDatabase database;
+	private final BlockStorage blockStorage;
+	private final int keySize;
+	private final int blockSize;
+	private final int blockDataSize;
+	private final int indexCapacity;
+	
+	private static class Child {
+		
+		private byte[] key;
+		private final int pointer;
+		
+		private Child(final byte[] key, final int pointer) {
+			this.key = key;
+			this.pointer = pointer;
+		}
+		
+	}
+	
+	/**
+	 * Creates a new TreeUpdater for the given database.
+	 * @param database - The database to modify.
+	 * @param blockStorage - The writable storage containing the database.
+	 */
+	protected TreeUpdater(final BTreeDatabase database, final BlockStorage blockStorage) {
+		this.database = database;
+		this.blockStorage = blockStorage;
+		keySize = database.getKeySize();
+		blockSize = blockStorage.getBlockSize();
+		blockDataSize = blockSize - 6;
+		indexCapacity = (blockSize - 11) / (keySize + 4);
+	}
+	
+	/**
+	 * Inserts, replaces or removes the entry for a key, updating the database's root to the new tree.
+	 * @param key - The key of the entry.
+	 * @param value - The new value of the entry, or null to remove it.
+	 * @return Whether the tree was changed.
+	 * @throws StarDBException An error occurred while reading or writing the tree.
+	 */
+	protected boolean update(final byte[] key, final byte[] value) throws StarDBException {
+		
+		boolean leaf = database.rootIsLeaf;
+		int level = leaf ? -1 : database.loadIndex(database.rootPointer).level;
+		
+		List<Child> children = leaf ? updateLeaf(database.rootPointer, key, value) : updateIndex(database.rootPointer, key, value);
+		
+		if (children == null) {
+			return false;
+		}
+		
+		if (children.isEmpty()) {
+			database.rootPointer = writeLeaves(new ArrayList<byte[]>(), new ArrayList<byte[]>()).get(0).pointer;
+			database.rootIsLeaf = true;
+			return true;
+		}
+		
+		while (children.size() > 1) {
+			children.get(0).key = null;
+			children = writeIndexes(++level, children);
+			leaf = false;
+		}
+		
+		int root = children.get(0).pointer;
+		
+		while (!leaf) {
+			
+			IndexNode index = database.loadIndex(root);
+			
+			if (index.size() > 1) {
+				break;
+			}
+			
+			database.freeBlock(root);
+			leaf = index.level == 0;
+			root = index.pointer(0);
+			
+		}
+		
+		database.rootPointer = root;
+		database.rootIsLeaf = leaf;
+		
+		return true;
+		
+	}
+	
+	private List<Child> updateIndex(final int pointer, final byte[] key, final byte[] value) throws StarDBException {
+		
+		IndexNode index = database.loadIndex(pointer);
+		int position = index.find(key);
+		int child = index.pointer(position);
+		
+		List<Child> replacement = index.level == 0 ? updateLeaf(child, key, value) : updateIndex(child, key, value);
+		
+		if (replacement == null) {
+			return null;
+		}
+		
+		List<Child> children = new ArrayList<>(index.size() + replacement.size());
+		
+		for (int i = 0; i < index.size(); i++) {
+			
+			Child existing = new Child(i == 0 ? null : index.key(i - 1), index.pointer(i));
+			
+			if (i != position) {
+				children.add(existing);
+				continue;
+			}
+			
+			if (!replacement.isEmpty()) {
+				replacement.get(0).key = existing.key;
+				children.addAll(replacement);
+			}
+			
+		}
+		
+		database.freeBlock(pointer);
+		
+		if (children.isEmpty()) {
+			return children;
+		}
+		
+		if (position == 0 && replacement.isEmpty()) {
+			children.get(0).key = null;
+		}
+		
+		return writeIndexes(index.level, children);
+		
+	}
+	
+	private List<Child> updateLeaf(final int pointer, final byte[] key, final byte[] value) throws StarDBException {
+		
+		LeafNode leaf = database.readLeaf(pointer);
+		int position = leaf.lowerBound(key);
+		boolean found = position < leaf.size() && leaf.compareKey(position, key) == 0;
+		
+		if (!found && value == null) {
+			return null;
+		}
+		
+		if (found && value != null && leaf.getDataSize(position) == value.length && Arrays.equals(leaf.getData(position), value)) {
+			return null;
+		}
+		
+		List<byte[]> keys = new ArrayList<>(leaf.size() + 1);
+		List<byte[]> values = new ArrayList<>(leaf.size() + 1);
+		
+		for (int i = 0; i < leaf.size(); i++) {
+			
+			if (i == position && value != null) {
+				keys.add(key.clone());
+				values.add(value);
+			}
+			
+			if (i == position && found) {
+				continue;
+			}
+			
+			keys.add(leaf.getKey(i));
+			values.add(leaf.getData(i));
+			
+		}
+		
+		if (position == leaf.size()) {
+			keys.add(key.clone());
+			values.add(value);
+		}
+		
+		freeLeaf(leaf);
+		
+		if (keys.isEmpty()) {
+			return new ArrayList<>();
+		}
+		
+		return writeLeaves(keys, values);
+		
+	}
+	
+	private void freeLeaf(final LeafNode leaf) throws StarDBException {
+		
+		int[] pointers = leaf.getBlockPointers();
+		
+		for (int pointer : pointers) {
+			database.freeBlock(pointer);
+		}
+		
+		int next = blockStorage.readBlockBuffer(pointers[pointers.length - 1], blockSize - 4, 4).getInt(0);
+		int remaining = (int) (blockStorage.getFileSize() / blockSize);
+		
+		while (next != -1 && remaining-- > 0) {
+			database.freeBlock(next);
+			next = blockStorage.readBlockBuffer(next, blockSize - 4, 4).getInt(0);
+		}
+		
+	}
+	
+	private List<Child> writeLeaves(final List<byte[]> keys, final List<byte[]> values) throws StarDBException {
+		
+		List<Child> leaves = new ArrayList<>();
+		ByteArrayOutputStream data = new ByteArrayOutputStream(blockDataSize);
+		byte[] firstKey = null;
+		int count = 0;
+		
+		for (int i = 0; i < keys.size(); i++) {
+			
+			byte[] size = StarDBUtils.packVLQU(values.get(i).length);
+			long entrySize = (long) keySize + size.length + values.get(i).length;
+			
+			if (count > 0 && 4 + data.size() + entrySize > blockDataSize) {
+				leaves.add(new Child(firstKey, writeLeaf(count, data.toByteArray())));
+				data.reset();
+				count = 0;
+			}
+			
+			if (count == 0) {
+				firstKey = keys.get(i);
+			}
+			
+			data.write(keys.get(i), 0, keySize);
+			data.write(size, 0, size.length);
+			data.write(values.get(i), 0, values.get(i).length);
+			count++;
+			
+		}
+		
+		if (count > 0 || leaves.isEmpty()) {
+			leaves.add(new Child(firstKey, writeLeaf(count, data.toByteArray())));
+		}
+		
+		return leaves;
+		
+	}
+	
+	private int writeLeaf(final int count, final byte[] entries) throws StarDBException {
+		
+		ByteBuffer data = ByteBuffer.allocate(4 + entries.length);
+		data.putInt(count).put(entries).flip();
+		
+		int blocks = Math.max(1, (data.remaining() + blockDataSize - 1) / blockDataSize);
+		int[] pointers = new int[blocks];
+		
+		for (int i = 0; i < blocks; i++) {
+			pointers[i] = blockStorage.reserveBlock();
+		}
+		
+		for (int i = 0; i < blocks; i++) {
+			
+			ByteBuffer block = ByteBuffer.allocate(blockSize);
+			block.put((byte) 'L').put((byte) 'L');
+			
+			int length = Math.min(blockDataSize, data.remaining());
+			data.get(block.array(), 2, length);
+			
+			block.putInt(blockSize - 4, i + 1 < blocks ? pointers[i + 1] : -1);
+			block.clear();
+			
+			blockStorage.writeBlock(pointers[i], block);
+			
+		}
+		
+		return pointers[0];
+		
+	}
+	
+	private List<Child> writeIndexes(final int level, final List<Child> children) throws StarDBException {
+		
+		int nodes = (children.size() + indexCapacity) / (indexCapacity + 1);
+		List<Child> written = new ArrayList<>(nodes);
+		
+		for (int i = 0; i < nodes; i++) {
+			
+			int start = (int) ((long) children.size() * i / nodes);
+			int end = (int) ((long) children.size() * (i + 1) / nodes);
+			
+			ByteBuffer block = ByteBuffer.allocate(blockSize);
+			block.put((byte) 'I').put((byte) 'I');
+			block.put((byte) level);
+			block.putInt(end - start - 1);
+			block.putInt(children.get(start).pointer);
+			
+			for (int j = start + 1; j < end; j++) {
+				block.put(children.get(j).key);
+				block.putInt(children.get(j).pointer);
+			}
+			
+			block.clear();
+			
+			int pointer = blockStorage.reserveBlock();
+			blockStorage.writeBlock(pointer, block);
+			written.add(new Child(children.get(start).key, pointer));
+			
+		}
+		
+		return written;
+		
+	}
+	
+}
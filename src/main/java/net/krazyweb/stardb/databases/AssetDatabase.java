@@ -1,22 +1,49 @@
 package net.krazyweb.stardb.databases;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.btree.BTreeCursor;
 import net.krazyweb.stardb.exceptions.StarDBException;
 import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
 
+/**
+ * Once opened, an AssetDatabase may be shared between threads and read from concurrently without external locking.
+ * A database opened on a writable BlockFile may also be modified, as long as no reads run at the same time.
+ */
 public class AssetDatabase extends SimpleSha256Database {
+
+	protected volatile AssetFileList fileList;
 	
-	protected List<String> fileList;
+	private final Set<String> addedFiles;
+	private final Set<String> removedFiles;
 	
-	protected AssetDatabase(final BlockFile blockFile, final String ID) {
-		super(blockFile, ID);
+	protected AssetDatabase(final BlockStorage blockStorage, final String ID) {
+		super(blockStorage, ID);
 		fileList = null;
+		addedFiles = new HashSet<>();
+		removedFiles = new HashSet<>();
 	}
 	
 	/**
@@ -27,18 +54,38 @@ public class AssetDatabase extends SimpleSha256Database {
 	 * @throws StarDBException An error occurred while trying to read the database file.
 	 */
 	public static AssetDatabase open(final Path databaseFile) throws IOException, StarDBException {
+		return open(new BlockFile(databaseFile));
+	}
+	
+	/**
+	 * Creates a new AssetDatabase for the database file specified, then opens it and readies it for reading.
+	 * @param databaseFile - The path of the database file.
+	 * @return An AssetDatabase file from which to read Starbound asset files.
+	 * @throws IOException An error occurred while trying to read the database file.
+	 * @throws StarDBException An error occurred while trying to read the database file.
+	 */
+	public static AssetDatabase open(final String databaseFile) throws IOException, StarDBException {
+		return open(Paths.get(databaseFile));
+	}
+	
+	/**
+	 * Creates a new AssetDatabase backed by the given storage, then opens it and readies it for reading.
+	 * This allows an alternative storage implementation such as a MappedBlockFile to be used.
+	 * @param blockStorage - The unopened storage containing the database.
+	 * @return An AssetDatabase file from which to read Starbound asset files.
+	 * @throws StarDBException An error occurred while trying to read the database file.
+	 */
+	public static AssetDatabase open(final BlockStorage blockStorage) throws StarDBException {
 		
-		BlockFile bf = new BlockFile(databaseFile);
-		
-		AssetDatabase tempDB = new AssetDatabase(bf, "Assets1");
+		AssetDatabase tempDB = new AssetDatabase(blockStorage, "Assets1");
 		AssetDatabase db = null;
 		
 		String id = tempDB.getContentID();
 		
 		if (id.startsWith("Assets1")) {
-			db = new AssetDatabase1(bf);
+			db = new AssetDatabase1(blockStorage);
 		} else if (id.startsWith("Assets2")) {
-			db = new AssetDatabase2(bf);
+			db = new AssetDatabase2(blockStorage);
 		}
 		
 		if (db == null) {
@@ -51,24 +98,295 @@ public class AssetDatabase extends SimpleSha256Database {
 	}
 	
 	/**
-	 * Creates a new AssetDatabase for the database file specified, then opens it and readies it for reading.
-	 * @param databaseFile - The path of the database file.
-	 * @return An AssetDatabase file from which to read Starbound asset files.
-	 * @throws IOException An error occurred while trying to read the database file.
-	 * @throws StarDBException An error occurred while trying to read the database file.
+	 * Retrieves a file from the database.
+	 * @param file - The path of the file to retrieve.
+	 * @return The contents of the file as a byte array.
+	 * @throws StarDBException An error occurred while reading the database.
 	 */
-	public static AssetDatabase open(final String databaseFile) throws IOException, StarDBException {
-		return open(Paths.get(databaseFile));
+	public byte[] getAsset(final String file) throws StarDBException {
+		return getItem(file.getBytes(StarDBUtils.utf8));
 	}
 	
 	/**
-	 * Retrieves a file from the database.
+	 * Checks whether a file is in the database, without reading its contents. With a Bloom filter built, most checks
+	 * for files which are not in the database do not read the database at all.
+	 * @param file - The path of the file to check.
+	 * @return Whether the file is in the database.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public boolean hasAsset(final String file) throws StarDBException {
+		return contains(file.getBytes(StarDBUtils.utf8));
+	}
+	
+	/**
+	 * Retrieves many files from the database at once. The tree is descended once for the whole batch, so files which
+	 * share a leaf are served by a single read of it, and blocks are read in ascending order.
+	 * @param files - The paths of the files to retrieve.
+	 * @return A map from each path to the contents of the file. Files which are not found are left out of the map.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public Map<String, byte[]> getAssets(final Collection<String> files) throws StarDBException {
+		
+		List<String> paths = new ArrayList<>(files);
+		byte[][] data = findAllByHash(hashPaths(paths));
+		
+		Map<String, byte[]> assets = new HashMap<>(paths.size() * 2);
+		
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != null) {
+				assets.put(paths.get(i), data[i]);
+			}
+		}
+		
+		return assets;
+		
+	}
+	
+	/**
+	 * Retrieves a file from the database without blocking the calling thread. Combined with an AsyncBlockFile, many
+	 * lookups can be in flight at once while sharing a small pool of I/O threads.
 	 * @param file - The path of the file to retrieve.
-	 * @return The contents of the file as a byte array.
+	 * @return A future completed with the contents of the file, or with null if the file is not found. If the database
+	 * cannot be read, the future completes exceptionally with a StarDBException.
+	 */
+	public CompletableFuture<byte[]> getAssetAsync(final String file) {
+		return findAsync(file.getBytes(StarDBUtils.utf8));
+	}
+	
+	/**
+	 * Retrieves many files from the database without blocking the calling thread. Every lookup is started at once.
+	 * @param files - The paths of the files to retrieve.
+	 * @return A future completed with a map from each path to the contents of the file. Files which are not found are
+	 * left out of the map. If the database cannot be read, the future completes exceptionally with a StarDBException.
+	 */
+	public CompletableFuture<Map<String, byte[]>> getAssetsAsync(final Collection<String> files) {
+		
+		final List<String> paths = new ArrayList<>(files);
+		
+		CompletableFuture<byte[][]> lookup;
+		
+		try {
+			lookup = findAllByHashAsync(hashPaths(paths));
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+		
+		return lookup.thenApply(new Function<byte[][], Map<String, byte[]>>() {
+			@Override
+			public Map<String, byte[]> apply(final byte[][] data) {
+				
+				Map<String, byte[]> assets = new HashMap<>(paths.size() * 2);
+				
+				for (int i = 0; i < data.length; i++) {
+					if (data[i] != null) {
+						assets.put(paths.get(i), data[i]);
+					}
+				}
+				
+				return assets;
+				
+			}
+		});
+		
+	}
+	
+	/**
+	 * Opens a channel which streams a file from the database. The file's blocks are only read as the channel is
+	 * consumed, so the file is never held in memory as a whole.
+	 * @param file - The path of the file to retrieve.
+	 * @return A channel over the contents of the file, or null if the file is not found.
 	 * @throws StarDBException An error occurred while reading the database.
 	 */
-	public byte[] getAsset(final String file) throws StarDBException {
-		return getItem(file.getBytes());
+	public ReadableByteChannel getAssetChannel(final String file) throws StarDBException {
+		return findChannel(file.getBytes(StarDBUtils.utf8));
+	}
+	
+	/**
+	 * Opens an InputStream which streams a file from the database. The file's blocks are only read as the stream is
+	 * consumed, so the file is never held in memory as a whole.
+	 * @param file - The path of the file to retrieve.
+	 * @return A stream over the contents of the file, or null if the file is not found.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public InputStream getAssetStream(final String file) throws StarDBException {
+		
+		ReadableByteChannel channel = getAssetChannel(file);
+		
+		if (channel == null) {
+			return null;
+		}
+		
+		return Channels.newInputStream(channel);
+		
+	}
+	
+	/**
+	 * Computes the database keys for many file paths at once, hashing large batches in parallel. The keys can be kept
+	 * and passed to {@link #getAssetByHash(byte[])} so that paths which are looked up repeatedly are only hashed once.
+	 * @param files - The paths of the files.
+	 * @return The key of each file, in the same order as the paths.
+	 * @throws StarDBException The SHA256 algorithm is not available.
+	 */
+	public byte[][] hashPaths(final List<String> files) throws StarDBException {
+		
+		List<byte[]> keys = new ArrayList<>(files.size());
+		
+		for (String file : files) {
+			keys.add(file.getBytes(StarDBUtils.utf8));
+		}
+		
+		return hash(keys);
+		
+	}
+	
+	/**
+	 * Retrieves a file from the database by its precomputed key, skipping the hashing of its path.
+	 * @param hash - The key of the file, as returned by {@link #hashPaths(List)}.
+	 * @return The contents of the file as a byte array, or null if the file is not found.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public byte[] getAssetByHash(final byte[] hash) throws StarDBException {
+		return findByHash(hash);
+	}
+	
+	/**
+	 * Extracts every file in the database into a directory, preserving the files' paths.
+	 * @param targetDirectory - The directory to extract the files into.
+	 * @param parallelism - The number of threads to use.
+	 * @return The number of files extracted.
+	 * @throws StarDBException A file could not be written, a path would leave the target directory, or an error occurred while reading the database.
+	 * @see #extractAll(Path, int, ExtractionListener)
+	 */
+	public long extractAll(final Path targetDirectory, final int parallelism) throws StarDBException {
+		return extractAll(targetDirectory, parallelism, null);
+	}
+	
+	/**
+	 * Extracts every file in the database into a directory, preserving the files' paths. The tree is split into
+	 * disjoint key ranges which are scanned in parallel, each reading its leaves once and in order, and every file is
+	 * streamed straight from its blocks to disk.
+	 * @param targetDirectory - The directory to extract the files into.
+	 * @param parallelism - The number of threads to use.
+	 * @param listener - The listener to report progress to, or null.
+	 * @return The number of files extracted.
+	 * @throws StarDBException A file could not be written, a path would leave the target directory, or an error occurred while reading the database.
+	 * @throws IllegalArgumentException The parallelism is not positive.
+	 */
+	public long extractAll(final Path targetDirectory, final int parallelism, final ExtractionListener listener) throws StarDBException {
+		
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be positive.");
+		}
+		
+		List<String> files = getFileList();
+		byte[][] hashes = hashPaths(files);
+		
+		Map<ByteBuffer, String> paths = new HashMap<>(files.size() * 2);
+		
+		for (int i = 0; i < hashes.length; i++) {
+			paths.put(ByteBuffer.wrap(hashes[i]), files.get(i));
+		}
+		
+		Extraction extraction = new Extraction(targetDirectory.toAbsolutePath().normalize(), paths, listener);
+		List<byte[]> boundaries = getSplitKeys(parallelism * 4);
+		
+		invoke(parallelism, new Extractor(extraction, boundaries, 0, boundaries.size() + 1));
+		
+		return extraction.filesExtracted.get();
+		
+	}
+	
+	/**
+	 * Adds a file to the database, or replaces its contents if it is already there. The change is made by copy-on-write
+	 * and only becomes permanent once {@link #commit()} is called, which also updates the database's file index.
+	 * @param file - The path of the file.
+	 * @param data - The new contents of the file.
+	 * @throws StarDBException The database was not opened for writing, the file is new and the database's file index cannot be changed, or an error occurred while updating the database.
+	 */
+	public synchronized void putAsset(final String file, final byte[] data) throws StarDBException {
+		
+		boolean existed = hasAsset(file);
+		
+		if (!existed) {
+			checkFileListWritable();
+		}
+		
+		put(file.getBytes(StarDBUtils.utf8), data);
+		
+		if (!existed && !removedFiles.remove(file)) {
+			addedFiles.add(file);
+		}
+		
+	}
+	
+	/**
+	 * Removes a file from the database. The change is made by copy-on-write and only becomes permanent once
+	 * {@link #commit()} is called, which also updates the database's file index.
+	 * @param file - The path of the file.
+	 * @return Whether the file was found and removed.
+	 * @throws StarDBException The database was not opened for writing, its file index cannot be changed, or an error occurred while updating the database.
+	 */
+	public synchronized boolean removeAsset(final String file) throws StarDBException {
+		
+		checkFileListWritable();
+		
+		if (!remove(file.getBytes(StarDBUtils.utf8))) {
+			return false;
+		}
+		
+		if (!addedFiles.remove(file)) {
+			removedFiles.add(file);
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Writes the database's file index if files were added or removed, then commits every change since the last commit.
+	 * The digest is left as it was.
+	 * @throws StarDBException The database was not opened for writing or an error occurred while writing.
+	 */
+	@Override
+	public synchronized void commit() throws StarDBException {
+		
+		if (!addedFiles.isEmpty() || !removedFiles.isEmpty()) {
+			
+			List<String> files = new ArrayList<>(getFileList().size() + addedFiles.size());
+			
+			for (String file : getFileList()) {
+				if (!removedFiles.contains(file)) {
+					files.add(file);
+				}
+			}
+			
+			files.addAll(addedFiles);
+			
+			put("_index".getBytes(StarDBUtils.utf8), StarDBUtils.packStringList(files));
+			
+		}
+		
+		super.commit();
+		
+		addedFiles.clear();
+		removedFiles.clear();
+		fileList = null;
+		
+	}
+	
+	@Override
+	public synchronized void rollback() throws StarDBException {
+		super.rollback();
+		addedFiles.clear();
+		removedFiles.clear();
+	}
+	
+	/**
+	 * Checks that files may be added to and removed from the database's file index.
+	 * @throws StarDBException The file index of this kind of database cannot be changed.
+	 */
+	protected void checkFileListWritable() throws StarDBException {
+		
 	}
 	
 	/**
@@ -77,23 +395,82 @@ public class AssetDatabase extends SimpleSha256Database {
 	 * @throws StarDBException An error occurred while reading the database.
 	 */
 	public byte[] getDigest() throws StarDBException {
-		return getItem("_digest".getBytes());
+		return getItem("_digest".getBytes(StarDBUtils.utf8));
 	}
 	
 	/**
-	 * Gets the set of files from the database's index.
-	 * @return A set containing the file paths of every file in the database.
+	 * Gets the set of files from the database's index. The list is read once and then kept as a compact, sorted table
+	 * of paths, so reading it creates Strings only for the entries which are accessed.
+	 * @return A list containing the file paths of every file in the database, in sorted order.
 	 * @throws StarDBException An error occurred while reading the database.
 	 */
 	public List<String> getFileList() throws StarDBException {
+		return getFileTable();
+	}
+	
+	/**
+	 * Checks whether a file is listed in the database's index. Unlike {@link #hasAsset(String)}, this only searches the
+	 * file list, which is read into memory on first use.
+	 * @param file - The path of the file.
+	 * @return Whether the file is listed.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public boolean exists(final String file) throws StarDBException {
+		return getFileTable().exists(file);
+	}
+	
+	/**
+	 * Lists the files directly inside a directory of the database, along with its subdirectories.
+	 * @param directory - The path of the directory, such as "/items".
+	 * @return The full paths of the files in the directory and of its subdirectories, in sorted order. Subdirectory paths
+	 * end with a slash.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public List<String> listDirectory(final String directory) throws StarDBException {
+		return getFileTable().listDirectory(directory);
+	}
+	
+	/**
+	 * Reads the database's index of files.
+	 * @return The file list.
+	 * @throws StarDBException The database has no index or an error occurred while reading it.
+	 */
+	protected AssetFileList readFileList() throws StarDBException {
+		return readFileList(1);
+	}
+	
+	/**
+	 * Reads the database's index of files, which is stored as a list with the given number of entries per file.
+	 * @param multiplier - The entries per file in the stored list. Only the first entry of each file is its path.
+	 * @return The file list.
+	 * @throws StarDBException The database has no index or an error occurred while reading it.
+	 */
+	protected AssetFileList readFileList(final int multiplier) throws StarDBException {
+		
+		ReadableByteChannel channel = getAssetChannel("_index");
+		
+		if (channel == null) {
+			throw new StarDBException("The database has no file index.");
+		}
 		
-		if (fileList != null) {
-			return fileList;
+		try {
+			return AssetFileList.read(channel, multiplier);
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
 		}
 		
-		fileList = StarDBUtils.unpackStringList(getItem("_index".getBytes()), 1);
+	}
+	
+	private AssetFileList getFileTable() throws StarDBException {
+		
+		AssetFileList files = fileList;
+		
+		if (files == null) {
+			files = readFileList();
+			fileList = files;
+		}
 		
-		return fileList;
+		return files;
 		
 	}
 	
@@ -107,4 +484,121 @@ public class AssetDatabase extends SimpleSha256Database {
 		return new ArrayList<String>();
 	}
 	
+	/**
+	 * The state shared by the tasks of one extraction.
+	 */
+	private static class Extraction {
+		
+		private final Path target;
+		private final Map<ByteBuffer, String> paths;
+		private final ExtractionListener listener;
+		private final long startTime;
+		private final AtomicLong filesExtracted;
+		private final AtomicLong bytesExtracted;
+		
+		private Extraction(final Path target, final Map<ByteBuffer, String> paths, final ExtractionListener listener) {
+			this.target = target;
+			this.paths = paths;
+			this.listener = listener;
+			this.startTime = System.nanoTime();
+			this.filesExtracted = new AtomicLong();
+			this.bytesExtracted = new AtomicLong();
+		}
+		
+	}
+	
+	/**
+	 * Extracts the files in a run of consecutive key ranges, splitting the run between subtasks until it is a single range.
+	 */
+	private class Extractor extends RecursiveAction {
+		
+		private static final long serialVersionUID = 3618407512563907224L;
+		
+		private final Extraction extraction;
+		private final List<byte[]> boundaries;
+		private final int start;
+		private final int end;
+		
+		private Extractor(final Extraction extraction, final List<byte[]> boundaries, final int start, final int end) {
+			this.extraction = extraction;
+			this.boundaries = boundaries;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Extractor(extraction, boundaries, start, middle), new Extractor(extraction, boundaries, middle, end));
+				return;
+			}
+			
+			byte[] from = start > 0 ? boundaries.get(start - 1) : null;
+			byte[] to = start < boundaries.size() ? boundaries.get(start) : null;
+			
+			try {
+				
+				BTreeCursor cursor = scan(from, to);
+				
+				while (cursor.next()) {
+					
+					String file = extraction.paths.get(ByteBuffer.wrap(cursor.key()));
+					
+					if (file != null) {
+						extract(file, cursor);
+					}
+					
+				}
+				
+			} catch (StarDBException e) {
+				throw new IllegalStateException(e);
+			}
+			
+		}
+		
+		private void extract(final String file, final BTreeCursor cursor) throws StarDBException {
+			
+			Path output = extraction.target.resolve(file.replaceFirst("^/+", "")).normalize();
+			
+			if (!output.startsWith(extraction.target) || output.equals(extraction.target)) {
+				throw new StarDBException("Refusing to extract " + file + " outside of " + extraction.target);
+			}
+			
+			long size = cursor.valueSize();
+			
+			try {
+				
+				Files.createDirectories(output.getParent());
+				
+				try (ReadableByteChannel input = cursor.openValue(); FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					
+					long written = 0;
+					
+					while (written < size) {
+						long transferred = out.transferFrom(input, written, size - written);
+						if (transferred <= 0) {
+							throw new StarDBException("Error: Unexpected end of data for " + file);
+						}
+						written += transferred;
+					}
+					
+				}
+				
+			} catch (IOException e) {
+				throw new StarDBException("Error: " + e.getMessage(), e);
+			}
+			
+			long files = extraction.filesExtracted.incrementAndGet();
+			long bytes = extraction.bytesExtracted.addAndGet(size);
+			
+			if (extraction.listener != null) {
+				extraction.listener.fileExtracted(file, files, extraction.paths.size(), bytes, System.nanoTime() - extraction.startTime);
+			}
+			
+		}
+		
+	}
+	
 }
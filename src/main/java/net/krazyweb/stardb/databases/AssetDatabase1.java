@@ -1,11 +1,11 @@
 package net.krazyweb.stardb.databases;
 
-import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
 
 public class AssetDatabase1 extends AssetDatabase {
 
-	protected AssetDatabase1(final BlockFile blockFile) {
-		super(blockFile, "Assets1");
+	protected AssetDatabase1(final BlockStorage blockStorage) {
+		super(blockStorage, "Assets1");
 	}
 	
 }
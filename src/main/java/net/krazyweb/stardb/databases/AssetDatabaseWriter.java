@@ -0,0 +1,274 @@
+package net.krazyweb.stardb.databases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.krazyweb.stardb.SeekableInMemoryByteChannel;
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.btree.BTreeDatabaseWriter;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Packs files into a new asset database which AssetDatabase can read. Files are collected first and then written in a
+ * single pass: the paths are hashed and sorted in parallel, and each file is then streamed from its source into the
+ * database's blocks in key order. The database's file index is written along with the files, as is its digest: the
+ * SHA256 hash of the path and contents of every file, in path order.
+ */
+public class AssetDatabaseWriter {
+
+	private final int blockSize;
+	private final List<Asset> assets;
+	private final Set<String> paths;
+	
+	/**
+	 * Creates a new AssetDatabaseWriter which writes databases with 2048 byte blocks.
+	 */
+	public AssetDatabaseWriter() {
+		this(2048);
+	}
+	
+	/**
+	 * Creates a new AssetDatabaseWriter.
+	 * @param blockSize - The size of each block in the written database, in bytes.
+	 */
+	public AssetDatabaseWriter(final int blockSize) {
+		this.blockSize = blockSize;
+		assets = new ArrayList<>();
+		paths = new HashSet<>();
+	}
+	
+	/**
+	 * Adds a file held in memory.
+	 * @param path - The path of the file within the database, such as "/player.config".
+	 * @param data - The contents of the file.
+	 * @throws StarDBException A file with the same path has already been added.
+	 */
+	public void addAsset(final String path, final byte[] data) throws StarDBException {
+		add(new Asset(path, data, null));
+	}
+	
+	/**
+	 * Adds a file on disk. The file is only read while the database is being written.
+	 * @param path - The path of the file within the database, such as "/player.config".
+	 * @param file - The file to read the contents from.
+	 * @throws StarDBException A file with the same path has already been added.
+	 */
+	public void addAsset(final String path, final Path file) throws StarDBException {
+		add(new Asset(path, null, file));
+	}
+	
+	/**
+	 * Adds every file beneath a directory, using each file's path relative to the directory as its path within the
+	 * database.
+	 * @param directory - The directory to add.
+	 * @return The number of files added.
+	 * @throws StarDBException The directory could not be read or a file with the same path has already been added.
+	 */
+	public int addDirectory(final Path directory) throws StarDBException {
+		
+		final Path root = directory.toAbsolutePath().normalize();
+		final List<Path> files = new ArrayList<>();
+		
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+					if (attributes.isRegularFile()) {
+						files.add(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		for (Path file : files) {
+			
+			StringBuilder path = new StringBuilder();
+			
+			for (Path part : root.relativize(file)) {
+				path.append('/').append(part.toString());
+			}
+			
+			addAsset(path.toString(), file);
+			
+		}
+		
+		return files.size();
+		
+	}
+	
+	/**
+	 * Writes every added file to a new database, replacing any existing file.
+	 * @param databaseFile - The path of the database file to write.
+	 * @param parallelism - The number of threads to use for hashing and sorting.
+	 * @return The number of files written.
+	 * @throws StarDBException A file could not be read or an error occurred while writing the database.
+	 * @throws IllegalArgumentException The parallelism is not positive.
+	 */
+	public long write(final Path databaseFile, final int parallelism) throws StarDBException {
+		
+		Asset[] entries = assets.toArray(new Asset[assets.size() + 2]);
+		Asset[] byPath = Arrays.copyOf(entries, assets.size());
+		
+		List<byte[]> pathBytes = new ArrayList<>(assets.size());
+		byte[][] hashes = new byte[assets.size()][];
+		
+		for (Asset asset : assets) {
+			pathBytes.add(asset.pathBytes);
+		}
+		
+		StarDBUtils.invoke(StarDBUtils.getPool(parallelism), new SimpleSha256Database.Hasher(pathBytes, hashes, 0, hashes.length));
+		
+		for (int i = 0; i < hashes.length; i++) {
+			entries[i].key = hashes[i];
+		}
+		
+		Arrays.parallelSort(byPath, new Comparator<Asset>() {
+			@Override
+			public int compare(final Asset a, final Asset b) {
+				return StarDBUtils.compareUnsigned(a.pathBytes, b.pathBytes);
+			}
+		});
+		
+		entries[entries.length - 2] = new Asset("_index", index(byPath), null);
+		entries[entries.length - 1] = new Asset("_digest", digest(byPath), null);
+		
+		for (int i = entries.length - 2; i < entries.length; i++) {
+			entries[i].key = SimpleSha256Database.sha256(entries[i].pathBytes);
+		}
+		
+		Arrays.parallelSort(entries, new Comparator<Asset>() {
+			@Override
+			public int compare(final Asset a, final Asset b) {
+				return StarDBUtils.compareUnsigned(a.key, b.key);
+			}
+		});
+		
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(databaseFile, "Assets1", 32, blockSize);
+		
+		try {
+			
+			for (Asset asset : entries) {
+				try (ReadableByteChannel channel = asset.open()) {
+					writer.put(asset.key, asset.size(channel), channel);
+				} catch (IOException e) {
+					throw new StarDBException("Error: " + e.getMessage(), e);
+				}
+			}
+			
+			writer.finish();
+			
+		} finally {
+			writer.close();
+		}
+		
+		return assets.size();
+		
+	}
+	
+	private void add(final Asset asset) throws StarDBException {
+		
+		if (asset.path.startsWith("_") || !paths.add(asset.path)) {
+			throw new StarDBException("The path " + asset.path + " is reserved or has already been added.");
+		}
+		
+		assets.add(asset);
+		
+	}
+	
+	private static byte[] index(final Asset[] byPath) {
+		
+		List<String> paths = new ArrayList<>(byPath.length);
+		
+		for (Asset asset : byPath) {
+			paths.add(asset.path);
+		}
+		
+		return StarDBUtils.packStringList(paths);
+		
+	}
+	
+	private static byte[] digest(final Asset[] byPath) throws StarDBException {
+		
+		MessageDigest md;
+		
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		
+		for (Asset asset : byPath) {
+			
+			md.update(asset.pathBytes);
+			
+			try (ReadableByteChannel channel = asset.open()) {
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					md.update(buffer);
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				throw new StarDBException("Error: " + e.getMessage(), e);
+			}
+			
+		}
+		
+		return md.digest();
+		
+	}
+	
+	private static class Asset {
+		
+		private final String path;
+		private final byte[] pathBytes;
+		private final byte[] data;
+		private final Path file;
+		private byte[] key;
+		
+		private Asset(final String path, final byte[] data, final Path file) {
+			this.path = path;
+			this.pathBytes = path.getBytes(StarDBUtils.utf8);
+			this.data = data;
+			this.file = file;
+		}
+		
+		private ReadableByteChannel open() throws IOException {
+			return data != null ? new SeekableInMemoryByteChannel(data) : FileChannel.open(file, StandardOpenOption.READ);
+		}
+		
+		private int size(final ReadableByteChannel channel) throws IOException {
+			
+			long size = data != null ? data.length : ((FileChannel) channel).size();
+			
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("The file " + path + " is too large to be stored.");
+			}
+			
+			return (int) size;
+			
+		}
+		
+	}
+	
+}
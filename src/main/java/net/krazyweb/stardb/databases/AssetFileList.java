@@ -0,0 +1,282 @@
+package net.krazyweb.stardb.databases;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.krazyweb.stardb.StarDBUtils;
+
+/**
+ * The list of files in an asset database, held as one sorted table of UTF-8 encoded paths rather than as separate
+ * String objects. Strings are only created for the entries which are actually read, and lookups and directory listings
+ * are binary searches over the table. The list is immutable and may be shared between threads.
+ */
+public class AssetFileList extends AbstractList<String> implements RandomAccess {
+
+	
+	private final byte[] data;
+	private final int[] offsets;
+	
+	private AssetFileList(final byte[] data, final int[] offsets) {
+		this.data = data;
+		this.offsets = offsets;
+	}
+	
+	/**
+	 * Reads a file list in Starbound's stored list format in a single streaming pass.
+	 * @param channel - The channel to read the stored list from.
+	 * @param multiplier - The entries per file in the stored list. Only the first entry of each file is its path.
+	 * @return The file list.
+	 * @throws IOException The list is truncated or an error occurred while reading it.
+	 */
+	protected static AssetFileList read(final ReadableByteChannel channel, final int multiplier) throws IOException {
+		
+		InputStream input = new BufferedInputStream(Channels.newInputStream(channel));
+		
+		int count = readVLQU(input);
+		
+		byte[] data = new byte[Math.max(16, count * 32)];
+		int[] offsets = new int[count + 1];
+		int size = 0;
+		
+		for (int i = 0; i < count; i++) {
+			
+			offsets[i] = size;
+			
+			for (int j = 0; j < multiplier; j++) {
+				
+				int length = readVLQU(input);
+				
+				if (j > 0) {
+					skipFully(input, length);
+					continue;
+				}
+				
+				if (size + length > data.length) {
+					data = Arrays.copyOf(data, Math.max(size + length, data.length * 2));
+				}
+				
+				readFully(input, data, size, length);
+				size += length;
+				
+			}
+			
+		}
+		
+		offsets[count] = size;
+		
+		return sort(Arrays.copyOf(data, size), offsets);
+		
+	}
+	
+	@Override
+	public String get(final int index) {
+		return new String(data, offsets[index], offsets[index + 1] - offsets[index], StarDBUtils.utf8);
+	}
+	
+	@Override
+	public int size() {
+		return offsets.length - 1;
+	}
+	
+	@Override
+	public boolean contains(final Object o) {
+		return o instanceof String && exists((String) o);
+	}
+	
+	/**
+	 * Checks whether the given file is in the list.
+	 * @param path - The path of the file.
+	 * @return Whether the file is in the list.
+	 */
+	public boolean exists(final String path) {
+		byte[] key = path.getBytes(StarDBUtils.utf8);
+		int i = lowerBound(key);
+		return i < size() && compare(i, key, key.length) == 0 && length(i) == key.length;
+	}
+	
+	/**
+	 * Lists the contents of a directory: the files directly inside it, and its subdirectories. Only the entries of the
+	 * directory itself are visited; the contents of each subdirectory are skipped over with a single search.
+	 * @param directory - The path of the directory, such as "/items" or "/items/".
+	 * @return The full paths of the files in the directory and of its subdirectories, in sorted order. Subdirectory paths
+	 * end with a slash.
+	 */
+	public List<String> listDirectory(final String directory) {
+		
+		byte[] prefix = (directory.endsWith("/") ? directory : directory + "/").getBytes(StarDBUtils.utf8);
+		
+		List<String> entries = new ArrayList<>();
+		int i = lowerBound(prefix);
+		
+		while (i < size() && length(i) >= prefix.length && compare(i, prefix, prefix.length) == 0) {
+			
+			int separator = indexOf(i, (byte) '/', prefix.length);
+			
+			if (separator < 0) {
+				entries.add(get(i));
+				i++;
+				continue;
+			}
+			
+			entries.add(new String(data, offsets[i], separator + 1, StarDBUtils.utf8));
+			
+			byte[] next = Arrays.copyOfRange(data, offsets[i], offsets[i] + separator + 1);
+			next[next.length - 1]++;
+			i = lowerBound(next);
+			
+		}
+		
+		return entries;
+		
+	}
+	
+	private int length(final int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+	
+	private int compare(final int i, final byte[] key, final int length) {
+		
+		int comparison = StarDBUtils.compareUnsigned(data, offsets[i], key, 0, Math.min(length, length(i)));
+		
+		if (comparison != 0) {
+			return comparison;
+		}
+		
+		return Math.min(length, length(i)) - length;
+		
+	}
+	
+	private int indexOf(final int i, final byte value, final int from) {
+		
+		for (int j = from; j < length(i); j++) {
+			if (data[offsets[i] + j] == value) {
+				return j;
+			}
+		}
+		
+		return -1;
+		
+	}
+	
+	private int lowerBound(final byte[] key) {
+		
+		int low = 0;
+		int high = size();
+		
+		while (low < high) {
+			
+			int middle = (low + high) >>> 1;
+			
+			if (compare(middle, key, key.length) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+			
+		}
+		
+		return low;
+		
+	}
+	
+	private static AssetFileList sort(final byte[] data, final int[] offsets) {
+		
+		final int count = offsets.length - 1;
+		
+		Comparator<Integer> order = new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				int aLength = offsets[a + 1] - offsets[a];
+				int bLength = offsets[b + 1] - offsets[b];
+				int comparison = StarDBUtils.compareUnsigned(data, offsets[a], data, offsets[b], Math.min(aLength, bLength));
+				return comparison != 0 ? comparison : aLength - bLength;
+			}
+		};
+		
+		boolean sorted = true;
+		
+		for (int i = 1; i < count && sorted; i++) {
+			sorted = order.compare(i - 1, i) <= 0;
+		}
+		
+		if (sorted) {
+			return new AssetFileList(data, offsets);
+		}
+		
+		Integer[] indices = new Integer[count];
+		
+		for (int i = 0; i < count; i++) {
+			indices[i] = i;
+		}
+		
+		Arrays.sort(indices, order);
+		
+		byte[] sortedData = new byte[data.length];
+		int[] sortedOffsets = new int[offsets.length];
+		int size = 0;
+		
+		for (int i = 0; i < count; i++) {
+			int length = offsets[indices[i] + 1] - offsets[indices[i]];
+			System.arraycopy(data, offsets[indices[i]], sortedData, size, length);
+			sortedOffsets[i] = size;
+			size += length;
+		}
+		
+		sortedOffsets[count] = size;
+		
+		return new AssetFileList(sortedData, sortedOffsets);
+		
+	}
+	
+	private static int readVLQU(final InputStream input) throws IOException {
+		
+		int value = 0;
+		int temp;
+		
+		do {
+			temp = input.read();
+			if (temp < 0) {
+				throw new EOFException("Truncated file list");
+			}
+			value = (value << 7 | (temp & 0x7f));
+		} while ((temp & 0x80) != 0);
+		
+		return value;
+		
+	}
+	
+	private static void readFully(final InputStream input, final byte[] destination, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = input.read(destination, offset, length);
+			if (read < 0) {
+				throw new EOFException("Truncated file list");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+	
+	private static void skipFully(final InputStream input, long length) throws IOException {
+		while (length > 0) {
+			long skipped = input.skip(length);
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException("Truncated file list");
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+	
+}
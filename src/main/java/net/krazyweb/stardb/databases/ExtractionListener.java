@@ -0,0 +1,19 @@
+package net.krazyweb.stardb.databases;
+
+/**
+ * Receives progress reports while an AssetDatabase is being extracted. Reports are made from the extracting threads,
+ * so implementations must be thread safe and should return quickly.
+ */
+public interface ExtractionListener {
+
+	/**
+	 * Called after each file has been written.
+	 * @param file - The path of the file within the database.
+	 * @param filesExtracted - The number of files written so far.
+	 * @param totalFiles - The number of files listed in the database.
+	 * @param bytesExtracted - The number of bytes written so far.
+	 * @param elapsedNanos - The time since the extraction started, in nanoseconds.
+	 */
+	void fileExtracted(String file, long filesExtracted, long totalFiles, long bytesExtracted, long elapsedNanos);
+	
+}
@@ -0,0 +1,103 @@
+package net.krazyweb.stardb.databases;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A bounded pool of zlib Inflaters. An Inflater holds native memory which is only released when it is ended, so
+ * creating one per value is costly when many small values are read; the pool instead resets and reuses them. The pool
+ * may be shared between threads.
+ */
+public class InflaterPool {
+
+	private static final int bufferSize = 8192;
+	
+	private final BlockingQueue<Inflater> inflaters;
+	
+	/**
+	 * Creates a new InflaterPool.
+	 * @param maxPooled - The most idle Inflaters to keep. Inflaters released beyond this are ended.
+	 */
+	public InflaterPool(final int maxPooled) {
+		
+		if (maxPooled <= 0) {
+			throw new IllegalArgumentException("The pool size must be positive.");
+		}
+		
+		inflaters = new ArrayBlockingQueue<>(maxPooled);
+		
+	}
+	
+	/**
+	 * Takes an Inflater from the pool, creating a new one if none is idle.
+	 * @return A reset Inflater.
+	 */
+	public Inflater acquire() {
+		
+		Inflater inflater = inflaters.poll();
+		
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		
+		return inflater;
+		
+	}
+	
+	/**
+	 * Returns an Inflater to the pool. The Inflater must not be used by the caller afterwards.
+	 * @param inflater - The Inflater to return.
+	 */
+	public void release(final Inflater inflater) {
+		
+		inflater.reset();
+		
+		if (!inflaters.offer(inflater)) {
+			inflater.end();
+		}
+		
+	}
+	
+	/**
+	 * Opens a stream which decompresses zlib data using a pooled Inflater. The Inflater is returned to the pool when the
+	 * stream is closed.
+	 * @param compressed - The stream of compressed data.
+	 * @return A stream of the decompressed data.
+	 */
+	public InputStream inflate(final InputStream compressed) {
+		return new PooledInflaterInputStream(compressed, acquire());
+	}
+	
+	private class PooledInflaterInputStream extends InflaterInputStream {
+		
+		private boolean closed;
+		
+		private PooledInflaterInputStream(final InputStream input, final Inflater inflater) {
+			super(input, inflater, bufferSize);
+			closed = false;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			
+			if (closed) {
+				return;
+			}
+			
+			closed = true;
+			
+			try {
+				super.close();
+			} finally {
+				release(inf);
+			}
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,22 @@
+package net.krazyweb.stardb.databases;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the sectors of a region read from a WorldDatabase. Sectors are visited one at a time, in key order.
+ */
+public interface SectorVisitor {
+
+	/**
+	 * Called for each stored sector in the region.
+	 * @param layer - The layer of the sector.
+	 * @param x - The horizontal position of the sector.
+	 * @param y - The vertical position of the sector.
+	 * @param data - A stream of the decompressed sector data. It is only valid until this method returns, and is closed
+	 * afterwards by the caller.
+	 * @throws IOException An error occurred while processing the sector. Reading the region stops.
+	 */
+	void visitSector(int layer, int x, int y, InputStream data) throws IOException;
+	
+}
@@ -1,39 +1,144 @@
 package net.krazyweb.stardb.databases;
 
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RecursiveAction;
 
+import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
-import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
 
 public class SimpleSha256Database extends SimpleDatabase {
+
+	private static final int parallelHashThreshold = 4096;
+	
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
 	
 	/**
 	 * Creates a database that uses SHA256 hashes as keys.
-	 * @param blockFile - The file containing the database.
+	 * @param blockStorage - The storage containing the database.
 	 * @param contentID - The identifier for the content of the database.
 	 */
-	protected SimpleSha256Database(final BlockFile blockFile, String contentID) {
-		super(blockFile, contentID, 32);
+	protected SimpleSha256Database(final BlockStorage blockStorage, String contentID) {
+		super(blockStorage, contentID, 32);
 	}
 	
 	@Override
 	protected byte[] find(final byte[] key) throws StarDBException {
+		return super.find(hash(key));
+	}
+	
+	@Override
+	protected boolean contains(final byte[] key) throws StarDBException {
+		return super.contains(hash(key));
+	}
+	
+	@Override
+	protected byte[][] findAll(final byte[][] keys) throws StarDBException {
+		return super.findAll(hash(Arrays.asList(keys)));
+	}
+	
+	@Override
+	protected ReadableByteChannel findChannel(final byte[] key) throws StarDBException {
+		return super.findChannel(hash(key));
+	}
+	
+	@Override
+	protected CompletableFuture<byte[]> findAsync(final byte[] key) {
+		try {
+			return super.findAsync(hash(key));
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+	}
+	
+	@Override
+	protected CompletableFuture<byte[][]> findAllAsync(final byte[][] keys) {
+		try {
+			return super.findAllAsync(hash(Arrays.asList(keys)));
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+	}
+	
+	@Override
+	protected void put(final byte[] key, final byte[] value) throws StarDBException {
+		super.put(hash(key), value);
+	}
+	
+	@Override
+	protected boolean remove(final byte[] key) throws StarDBException {
+		return super.remove(hash(key));
+	}
+	
+	@Override
+	protected boolean hasUniformKeys() {
+		return true;
+	}
+	
+	/**
+	 * Computes the SHA256 hash used as the database key for the given key. Each thread reuses its own MessageDigest.
+	 * @param key - The key to hash.
+	 * @return The SHA256 hash of the key.
+	 * @throws StarDBException The SHA256 algorithm is not available.
+	 */
+	protected byte[] hash(final byte[] key) throws StarDBException {
+		return sha256(key);
+	}
+	
+	/**
+	 * Computes the SHA256 hash of the given data, reusing a MessageDigest per thread.
+	 * @param data - The data to hash.
+	 * @return The SHA256 hash of the data.
+	 * @throws StarDBException The SHA256 algorithm is not available.
+	 */
+	static byte[] sha256(final byte[] data) throws StarDBException {
 		
-		MessageDigest md = null;
+		MessageDigest md = digests.get();
 		
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
+		if (md == null) {
+			
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new StarDBException("Error: " + e.getMessage(), e);
+			}
+			
+			digests.set(md);
+			
 		}
 		
-		byte[] digest = md.digest(key);
+		return md.digest(data);
 		
-		return super.find(digest);
+	}
+	
+	/**
+	 * Computes the SHA256 hashes used as the database keys for many keys at once. Large batches are hashed in parallel,
+	 * in the common fork-join pool.
+	 * @param keys - The keys to hash.
+	 * @return The SHA256 hash of each key, in the same order as the keys.
+	 * @throws StarDBException The SHA256 algorithm is not available.
+	 */
+	protected byte[][] hash(final List<byte[]> keys) throws StarDBException {
+		
+		byte[][] hashes = new byte[keys.size()][];
+		
+		if (keys.size() < parallelHashThreshold) {
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = hash(keys.get(i));
+			}
+		} else {
+			invoke(new Hasher(keys, hashes, 0, hashes.length));
+		}
+		
+		return hashes;
 		
 	}
-
+	
 	/**
 	 * Finds the data for a given hash value.
 	 * @param hash - The hash key to search for.
@@ -44,4 +149,71 @@ public class SimpleSha256Database extends SimpleDatabase {
 		return super.find(hash);
 	}
 	
+	/**
+	 * Finds the data for many hash values at once.
+	 * @param hashes - The hash keys to search for.
+	 * @return The data for each hash value, in the same order, with null for hash values which were not found.
+	 * @throws StarDBException An error occurred while retrieving the data.
+	 */
+	protected byte[][] findAllByHash(final byte[][] hashes) throws StarDBException {
+		return super.findAll(hashes);
+	}
+	
+	/**
+	 * Finds the data for many hash values at once without blocking.
+	 * @param hashes - The hash keys to search for.
+	 * @return A future completed with the data for each hash value, in the same order, with null for hash values which
+	 * were not found.
+	 */
+	protected CompletableFuture<byte[][]> findAllByHashAsync(final byte[][] hashes) {
+		return super.findAllAsync(hashes);
+	}
+	
+	/**
+	 * Computes the SHA256 hash of every key in a range, splitting large ranges into halves which are hashed in parallel.
+	 */
+	static class Hasher extends RecursiveAction {
+		
+		private static final long serialVersionUID = -5232947617203716125L;
+		
+		private final List<byte[]> keys;
+		private final byte[][] hashes;
+		private final int start;
+		private final int end;
+		
+		/**
+		 * Creates a new Hasher.
+		 * @param keys - The keys to hash.
+		 * @param hashes - The array to store the hash of each key in, at the same index as the key.
+		 * @param start - The index of the first key to hash.
+		 * @param end - The index after the last key to hash.
+		 */
+		Hasher(final List<byte[]> keys, final byte[][] hashes, final int start, final int end) {
+			this.keys = keys;
+			this.hashes = hashes;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (end - start > parallelHashThreshold / 4) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Hasher(keys, hashes, start, middle), new Hasher(keys, hashes, middle, end));
+				return;
+			}
+			
+			try {
+				for (int i = start; i < end; i++) {
+					hashes[i] = sha256(keys.get(i));
+				}
+			} catch (StarDBException e) {
+				throw new IllegalStateException(e);
+			}
+			
+		}
+		
+	}
+	
 }
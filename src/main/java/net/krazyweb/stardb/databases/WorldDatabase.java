@@ -0,0 +1,237 @@
+package net.krazyweb.stardb.databases;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import net.krazyweb.stardb.btree.BTreeCursor;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * A Starbound world database. Worlds are divided into sectors, each stored under a five byte key made of a layer byte
+ * followed by the sector's x and y positions as unsigned shorts, and every value is zlib compressed. Layer 0 holds the
+ * world's metadata at sector (0, 0).
+ * <p>
+ * Values are decompressed as streams, using Inflaters from a shared pool, so reading a world does not allocate an
+ * Inflater or a temporary array per sector. Once opened, a WorldDatabase may be shared between threads.
+ */
+public class WorldDatabase extends SimpleDatabase {
+
+	public static final int metadataLayer = 0;
+	public static final int tileLayer = 1;
+	public static final int entityLayer = 2;
+	
+	private static final InflaterPool inflaters = new InflaterPool(Runtime.getRuntime().availableProcessors() * 2);
+	
+	protected WorldDatabase(final BlockStorage blockStorage, final String ID) {
+		super(blockStorage, ID, 5);
+	}
+	
+	/**
+	 * Creates a new WorldDatabase for the world file specified, then opens it and readies it for reading.
+	 * @param databaseFile - The path of the world file.
+	 * @return A WorldDatabase from which to read world sectors.
+	 * @throws IOException An error occurred while trying to read the world file.
+	 * @throws StarDBException An error occurred while trying to read the world file.
+	 */
+	public static WorldDatabase open(final Path databaseFile) throws IOException, StarDBException {
+		return open(new BlockFile(databaseFile));
+	}
+	
+	/**
+	 * Creates a new WorldDatabase for the world file specified, then opens it and readies it for reading.
+	 * @param databaseFile - The path of the world file.
+	 * @return A WorldDatabase from which to read world sectors.
+	 * @throws IOException An error occurred while trying to read the world file.
+	 * @throws StarDBException An error occurred while trying to read the world file.
+	 */
+	public static WorldDatabase open(final String databaseFile) throws IOException, StarDBException {
+		return open(Paths.get(databaseFile));
+	}
+	
+	/**
+	 * Creates a new WorldDatabase backed by the given storage, then opens it and readies it for reading.
+	 * @param blockStorage - The unopened storage containing the world.
+	 * @return A WorldDatabase from which to read world sectors.
+	 * @throws StarDBException The file is not a world database or an error occurred while reading it.
+	 */
+	public static WorldDatabase open(final BlockStorage blockStorage) throws StarDBException {
+		
+		WorldDatabase tempDB = new WorldDatabase(blockStorage, "World");
+		
+		String id = tempDB.getContentID().trim();
+		
+		if (!id.startsWith("World")) {
+			throw new StarDBException("Could not read the database content type.");
+		}
+		
+		WorldDatabase db = new WorldDatabase(blockStorage, id);
+		db.open();
+		return db;
+		
+	}
+	
+	/**
+	 * Opens a stream which decompresses a sector as it is read. The stream must be closed to return its Inflater to the
+	 * pool.
+	 * @param layer - The layer of the sector.
+	 * @param x - The horizontal position of the sector.
+	 * @param y - The vertical position of the sector.
+	 * @return A stream of the decompressed sector data, or null if the sector is not stored.
+	 * @throws StarDBException An error occurred while reading the database.
+	 */
+	public InputStream openSector(final int layer, final int x, final int y) throws StarDBException {
+		
+		ReadableByteChannel channel = findChannel(key(layer, x, y));
+		
+		if (channel == null) {
+			return null;
+		}
+		
+		return inflate(channel);
+		
+	}
+	
+	/**
+	 * Retrieves and decompresses a sector.
+	 * @param layer - The layer of the sector.
+	 * @param x - The horizontal position of the sector.
+	 * @param y - The vertical position of the sector.
+	 * @return The decompressed sector data, or null if the sector is not stored.
+	 * @throws StarDBException The sector data is not valid zlib data or an error occurred while reading the database.
+	 */
+	public byte[] getSector(final int layer, final int x, final int y) throws StarDBException {
+		
+		ReadableByteChannel channel = findChannel(key(layer, x, y));
+		
+		if (channel == null) {
+			return null;
+		}
+		
+		try (InputStream input = inflate(channel)) {
+			
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			
+			while ((read = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, read);
+			}
+			
+			return output.toByteArray();
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
+	
+	/**
+	 * Retrieves and decompresses the world's metadata.
+	 * @return The decompressed metadata, or null if the world has none.
+	 * @throws StarDBException The metadata is not valid zlib data or an error occurred while reading the database.
+	 */
+	public byte[] getMetadata() throws StarDBException {
+		return getSector(metadataLayer, 0, 0);
+	}
+	
+	/**
+	 * Reads every stored sector of a layer within a rectangular region. Each column of the region is read with a single
+	 * scan, which descends the tree once and then reads the column's leaves in order, and a region covering every row
+	 * is read with one scan. Each sector is decompressed as it is streamed to the visitor.
+	 * @param layer - The layer to read.
+	 * @param minX - The first column of the region, inclusive.
+	 * @param minY - The first row of the region, inclusive.
+	 * @param maxX - The last column of the region, inclusive.
+	 * @param maxY - The last row of the region, inclusive.
+	 * @param visitor - The visitor to pass each sector to.
+	 * @return The number of sectors visited.
+	 * @throws StarDBException A sector is not valid zlib data, the visitor failed or an error occurred while reading the database.
+	 */
+	public long readRegion(final int layer, final int minX, final int minY, final int maxX, final int maxY, final SectorVisitor visitor) throws StarDBException {
+		
+		checkPosition(layer, minX, minY);
+		checkPosition(layer, maxX, maxY);
+		
+		if (minY == 0 && maxY == 0xFFFF) {
+			return visit(scan(key(layer, minX, minY), keyAfter(layer, maxX, maxY)), visitor);
+		}
+		
+		long visited = 0;
+		
+		for (int x = minX; x <= maxX; x++) {
+			visited += visit(scan(key(layer, x, minY), keyAfter(layer, x, maxY)), visitor);
+		}
+		
+		return visited;
+		
+	}
+	
+	private long visit(final BTreeCursor cursor, final SectorVisitor visitor) throws StarDBException {
+		
+		long visited = 0;
+		
+		while (cursor.next()) {
+			
+			byte[] key = cursor.key();
+			
+			try (InputStream input = inflate(cursor.openValue())) {
+				visitor.visitSector(key[0] & 0xFF, (key[1] & 0xFF) << 8 | (key[2] & 0xFF), (key[3] & 0xFF) << 8 | (key[4] & 0xFF), input);
+			} catch (IOException e) {
+				throw new StarDBException("Error: " + e.getMessage(), e);
+			}
+			
+			visited++;
+			
+		}
+		
+		return visited;
+		
+	}
+	
+	/**
+	 * Wraps a channel of compressed data in a stream which decompresses it using a pooled Inflater.
+	 * @param channel - The channel of compressed data.
+	 * @return A stream of the decompressed data. Closing it returns the Inflater to the pool.
+	 */
+	protected InputStream inflate(final ReadableByteChannel channel) {
+		return inflaters.inflate(Channels.newInputStream(channel));
+	}
+	
+	/**
+	 * Builds the database key of a sector.
+	 * @param layer - The layer of the sector.
+	 * @param x - The horizontal position of the sector.
+	 * @param y - The vertical position of the sector.
+	 * @return The five byte key.
+	 */
+	protected static byte[] key(final int layer, final int x, final int y) {
+		checkPosition(layer, x, y);
+		return new byte[] { (byte) layer, (byte) (x >>> 8), (byte) x, (byte) (y >>> 8), (byte) y };
+	}
+	
+	private static byte[] keyAfter(final int layer, final int x, final int y) {
+		
+		long next = ((long) layer << 32 | (long) x << 16 | y) + 1;
+		
+		if (next >= 1L << 40) {
+			return null;
+		}
+		
+		return key((int) (next >>> 32), (int) (next >>> 16) & 0xFFFF, (int) next & 0xFFFF);
+		
+	}
+	
+	private static void checkPosition(final int layer, final int x, final int y) {
+		if (layer < 0 || layer > 0xFF || x < 0 || x > 0xFFFF || y < 0 || y > 0xFFFF) {
+			throw new IllegalArgumentException("Sector (" + layer + ", " + x + ", " + y + ") is out of range.");
+		}
+	}
+	
+}
@@ -0,0 +1,203 @@
+package net.krazyweb.stardb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Reads a Starbound database file through an AsynchronousFileChannel. Asynchronous reads return as soon as they are
+ * issued and complete on the channel's thread pool, so any number of lookups can be in flight at once without each
+ * holding a thread while it waits for the disk. The synchronous reads wait for the same asynchronous reads to complete.
+ * <p>
+ * Once opened, an AsyncBlockFile may be read from any number of threads concurrently.
+ */
+public class AsyncBlockFile extends BlockStorage {
+
+	private final AsynchronousFileChannel channel;
+	
+	/**
+	 * Creates a new AsyncBlockFile instance which completes its reads on the default thread pool.
+	 * @param filePath - The path to the database file on disk.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public AsyncBlockFile(final Path filePath) throws IOException {
+		this(AsynchronousFileChannel.open(filePath, StandardOpenOption.READ));
+	}
+	
+	/**
+	 * Creates a new AsyncBlockFile instance which completes its reads on the given thread pool. A handful of threads is
+	 * enough to serve many concurrent lookups.
+	 * @param filePath - The path to the database file on disk.
+	 * @param executor - The thread pool on which reads are performed and completed.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public AsyncBlockFile(final Path filePath, final ExecutorService executor) throws IOException {
+		this(AsynchronousFileChannel.open(filePath, Collections.singleton(StandardOpenOption.READ), executor));
+	}
+	
+	/**
+	 * Creates a new AsyncBlockFile instance which completes its reads on the default thread pool.
+	 * @param filePath - The path to the database file on disk.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public AsyncBlockFile(final String filePath) throws IOException {
+		this(Paths.get(filePath));
+	}
+	
+	private AsyncBlockFile(final AsynchronousFileChannel channel) {
+		
+		this.channel = channel;
+		
+		open = false;
+		headerSize = 256;
+		headFreeIndexBlock = -1;
+		blockSize = 1024;
+		blockStart = 0;
+		blockEnd = 0;
+		blockCount = 0;
+		
+	}
+	
+	@Override
+	public ByteBuffer readBlockBuffer(final int blockIndex, final int blockOffset, final int size) throws StarDBException {
+		return await(readBlockBufferAsync(blockIndex, blockOffset, size));
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readBlockBufferAsync(final int blockIndex, int blockOffset, int size) {
+		
+		try {
+			
+			checkIfOpen(true);
+			
+			if (blockIndex > blockCount) {
+				throw new StarDBException("Block index: " + blockIndex + " out of block range.");
+			}
+			
+			if (size == 0) {
+				size = blockSize - blockOffset;
+			}
+			
+			blockOffset = Math.min(blockSize, blockOffset);
+			size = Math.min(blockSize - blockOffset, size);
+			
+			if (size <= 0) {
+				throw new StarDBException("No data would be read (" + blockOffset + ", " + size + ")");
+			}
+			
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+		
+		return read(blockStart + ((long) blockIndex * blockSize) + blockOffset, size);
+		
+	}
+	
+	@Override
+	public ByteBuffer readBlocksBuffer(final int firstBlockIndex, final int count) throws StarDBException {
+		return await(readBlocksBufferAsync(firstBlockIndex, count));
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> readBlocksBufferAsync(final int firstBlockIndex, final int count) {
+		
+		try {
+			checkIfOpen(true);
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+		
+		int available = availableBlocks(firstBlockIndex, count);
+		
+		if (available <= 0) {
+			return StarDBUtils.failedFuture(new StarDBException("Block index: " + firstBlockIndex + " out of block range."));
+		}
+		
+		return read(blockStart + ((long) firstBlockIndex * blockSize), available * blockSize);
+		
+	}
+	
+	@Override
+	public ByteBuffer readUserDataBuffer(final int dataOffset, final int size) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		if (dataOffset + size > getUserHeaderSize()) {
+			throw new StarDBException("readUserDataBuffer() called outside of bounds of user header");
+		}
+		
+		return await(read(prefixHeaderSize + dataOffset, size));
+		
+	}
+	
+	@Override
+	public void open() throws StarDBException {
+		
+		checkIfOpen(false);
+		
+		readHeader(await(read(0, 19)));
+		
+		try {
+			setExtents(headerSize, channel.size());
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		open = true;
+		
+	}
+	
+	private CompletableFuture<ByteBuffer> read(final long position, final int size) {
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		
+		final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+		
+		channel.read(buffer, position, future, new CompletionHandler<Integer, CompletableFuture<ByteBuffer>>() {
+			
+			@Override
+			public void completed(final Integer result, final CompletableFuture<ByteBuffer> attachment) {
+				
+				if (result >= 0 && buffer.hasRemaining()) {
+					channel.read(buffer, position + buffer.position(), attachment, this);
+					return;
+				}
+				
+				buffer.rewind();
+				attachment.complete(buffer);
+				
+			}
+			
+			@Override
+			public void failed(final Throwable e, final CompletableFuture<ByteBuffer> attachment) {
+				attachment.completeExceptionally(StarDBUtils.unwrap(e));
+			}
+			
+		});
+		
+		return future;
+		
+	}
+	
+	private static ByteBuffer await(final CompletableFuture<ByteBuffer> future) throws StarDBException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw StarDBUtils.unwrap(e);
+		}
+	}
+	
+}
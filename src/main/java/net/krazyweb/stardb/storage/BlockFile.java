@@ -2,20 +2,38 @@ package net.krazyweb.stardb.storage;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
-import net.krazyweb.stardb.SeekableInMemoryByteChannel;
 import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
 
+/**
+ * Reads a Starbound database file using positional reads, so that no cursor state is shared between callers.
+ * Once opened, a BlockFile may be read from any number of threads concurrently.
+ * <p>
+ * A BlockFile opened for writing also manages the file's free block list. Each free list block holds the magic "FF",
+ * the index of the next free list block (or -1), a count and then that many free block indices. Blocks freed during a
+ * transaction are held back until it is committed, so the last committed version of the database is never overwritten.
+ * Blocks which were both reserved and freed within the same transaction never became part of a committed database, so
+ * they are reused straight away.
+ */
 public class BlockFile extends BlockStorage {
 
-	private final String headerMagic = "SBBF02";
-	private final int prefixHeaderSize = 32;
+	private static final String freeIndexMagic = "FF";
+	
+	private final boolean writable;
+	private final List<Integer> available;
+	private final Set<Integer> reserved;
+	private final List<Integer> released;
+	private final List<Integer> freeIndexBlocks;
+	private boolean freeListLoaded;
 	
 	/**
 	 * Creates a new BlockFile instance from which to read a Starbound database file.
@@ -23,12 +41,33 @@ public class BlockFile extends BlockStorage {
 	 * @throws IOException - Could not open the database file.
 	 */
 	public BlockFile(final Path filePath) throws IOException {
+		this(filePath, false);
+	}
+	
+	/**
+	 * Creates a new BlockFile instance from which to read, and optionally modify, a Starbound database file.
+	 * @param filePath - The path to the database file on disk.
+	 * @param writable - Whether to open the file for writing as well as reading.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public BlockFile(final Path filePath, final boolean writable) throws IOException {
 		
-		dataFile = Files.newByteChannel(filePath, StandardOpenOption.READ);
+		if (writable) {
+			dataFile = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} else {
+			dataFile = FileChannel.open(filePath, StandardOpenOption.READ);
+		}
+		
+		this.writable = writable;
+		available = new ArrayList<>();
+		reserved = new HashSet<>();
+		released = new ArrayList<>();
+		freeIndexBlocks = new ArrayList<>();
+		freeListLoaded = false;
 		
 		open = false;
 		headerSize = 256;
-		headFreeIndexBlock = 0; //TODO (self.headFreeIndexBlock = None)
+		headFreeIndexBlock = -1;
 		blockSize = 1024;
 		blockStart = 0;
 		blockEnd = 0;
@@ -45,29 +84,8 @@ public class BlockFile extends BlockStorage {
 		this(Paths.get(filePath));
 	}
 	
-	private void setExtents(final long start, final long end) {
-		
-		blockStart = start;
-		blockEnd = end;
-		
-		if (blockEnd < blockStart) {
-			blockEnd = blockStart;
-		}
-		
-		blockCount = blockEnd - blockStart; //(blockSize)
-		
-	}
-	
-	/**
-	 * Returns the total size of the user header.
-	 * @return - The size of the user header in bytes.
-	 */
-	public int getUserHeaderSize() {
-		return headerSize - prefixHeaderSize;
-	}
-	
 	@Override
-	public SeekableByteChannel readBlock(int blockIndex, int blockOffset, int size) throws StarDBException {
+	public ByteBuffer readBlockBuffer(int blockIndex, int blockOffset, int size) throws StarDBException {
 		
 		checkIfOpen(true);
 		
@@ -86,64 +104,172 @@ public class BlockFile extends BlockStorage {
 			throw new StarDBException("No data would be read (" + blockOffset + ", " + size + ")");
 		}
 		
-		ByteBuffer buffer = ByteBuffer.allocate(size);
+		return StarDBUtils.readToBuffer(dataFile, blockStart + ((long) blockIndex * blockSize) + blockOffset, size);
 		
-		try {
-			dataFile.position(blockStart + (blockIndex * blockSize) + blockOffset);
-			buffer = StarDBUtils.readToBuffer(dataFile, size);
-		} catch (IOException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
+	}
+	
+	@Override
+	public ByteBuffer readBlocksBuffer(final int firstBlockIndex, final int count) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		int available = availableBlocks(firstBlockIndex, count);
+		
+		if (available <= 0) {
+			throw new StarDBException("Block index: " + firstBlockIndex + " out of block range.");
 		}
 		
-		SeekableInMemoryByteChannel output = new SeekableInMemoryByteChannel();
+		return StarDBUtils.readToBuffer(dataFile, blockStart + ((long) firstBlockIndex * blockSize), available * blockSize);
 		
-		try {
-			output.write(buffer);
-			output.position(0);
-		} catch (IOException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
+	}
+	
+	@Override
+	public ByteBuffer readUserDataBuffer(int dataOffset, int size) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		if (dataOffset + size > getUserHeaderSize()) {
+			throw new StarDBException("readUserDataBuffer() called outside of bounds of user header");
 		}
 		
-		return output;
+		return StarDBUtils.readToBuffer(dataFile, prefixHeaderSize + dataOffset, size);
 		
 	}
 	
 	@Override
-	public SeekableByteChannel readBlock(int blockIndex) throws StarDBException {
-		return readBlock(blockIndex, 0, 0);
+	public boolean isWritable() {
+		return writable;
 	}
 	
 	@Override
-	public SeekableByteChannel readUserData(int dataOffset, int size) throws StarDBException {
+	public synchronized int reserveBlock() throws StarDBException {
 		
-		checkIfOpen(true);
+		checkWritable();
+		loadFreeList();
 		
-		if (dataOffset + size > getUserHeaderSize()) {
-			throw new StarDBException("readUserData() called outside of bounds of user header");
+		int blockIndex;
+		
+		if (available.isEmpty()) {
+			blockIndex = appendBlock();
+		} else {
+			blockIndex = available.remove(available.size() - 1);
 		}
 		
-		ByteBuffer buffer;
+		reserved.add(blockIndex);
 		
-		try {
-			dataFile.position(prefixHeaderSize + dataOffset);
-			buffer = StarDBUtils.readToBuffer(dataFile, size);
-		} catch (IOException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
+		return blockIndex;
+		
+	}
+	
+	@Override
+	public synchronized void freeBlock(final int blockIndex) throws StarDBException {
+		
+		checkWritable();
+		
+		if (reserved.remove(blockIndex)) {
+			available.add(blockIndex);
+		} else {
+			released.add(blockIndex);
+		}
+		
+	}
+	
+	@Override
+	public void writeBlock(final int blockIndex, final ByteBuffer data) throws StarDBException {
+		
+		checkWritable();
+		
+		if (data.remaining() > blockSize) {
+			throw new StarDBException("Block data of " + data.remaining() + " bytes does not fit in a block.");
+		}
+		
+		write(blockStart + (long) blockIndex * blockSize, data);
+		
+	}
+	
+	@Override
+	public synchronized void commit(final int dataOffset, final ByteBuffer userData) throws StarDBException {
+		
+		checkWritable();
+		loadFreeList();
+		
+		if (dataOffset + userData.remaining() > getUserHeaderSize()) {
+			throw new StarDBException("commit() called with user data outside of bounds of user header");
+		}
+		
+		List<Integer> free = new ArrayList<>(available.size() + released.size() + freeIndexBlocks.size());
+		free.addAll(released);
+		free.addAll(freeIndexBlocks);
+		
+		int capacity = (blockSize - 10) / 4;
+		int indexBlockCount = 0;
+		
+		while ((long) indexBlockCount * capacity < free.size() + available.size() - Math.min(indexBlockCount, available.size())) {
+			indexBlockCount++;
+		}
+		
+		List<Integer> indexBlocks = new ArrayList<>(indexBlockCount);
+		
+		for (int i = 0; i < indexBlockCount; i++) {
+			indexBlocks.add(available.isEmpty() ? appendBlock() : available.remove(available.size() - 1));
+		}
+		
+		free.addAll(available);
+		
+		for (int i = 0; i < indexBlockCount; i++) {
+			
+			int start = i * capacity;
+			int end = Math.min(free.size(), start + capacity);
+			
+			ByteBuffer block = ByteBuffer.allocate(blockSize);
+			block.put(freeIndexMagic.getBytes());
+			block.putInt(i + 1 < indexBlockCount ? indexBlocks.get(i + 1) : -1);
+			block.putInt(end - start);
+			
+			for (int j = start; j < end; j++) {
+				block.putInt(free.get(j));
+			}
+			
+			block.clear();
+			write(blockStart + (long) indexBlocks.get(i) * blockSize, block);
+			
 		}
-
-		SeekableByteChannel output = new SeekableInMemoryByteChannel();
+		
+		int head = indexBlockCount > 0 ? indexBlocks.get(0) : -1;
+		
+		ByteBuffer header = StarDBUtils.readToBuffer(dataFile, 0, prefixHeaderSize + dataOffset + userData.remaining());
+		header.put(14, (byte) (head < 0 ? 1 : 0));
+		header.putInt(15, head < 0 ? 0 : head);
+		header.position(prefixHeaderSize + dataOffset);
+		header.put(userData);
+		header.clear();
 		
 		try {
-			output.write(buffer);
-			output.position(0);
+			dataFile.force(false);
+			write(0, header);
+			dataFile.force(false);
 		} catch (IOException e) {
 			throw new StarDBException("Error: " + e.getMessage(), e);
 		}
 		
-		return output;
+		headFreeIndexBlock = head;
+		available.clear();
+		available.addAll(free);
+		reserved.clear();
+		released.clear();
+		freeIndexBlocks.clear();
+		freeIndexBlocks.addAll(indexBlocks);
 		
 	}
-
+	
+	@Override
+	public synchronized void rollback() throws StarDBException {
+		checkWritable();
+		available.addAll(reserved);
+		reserved.clear();
+		released.clear();
+	}
+	
 	@Override
 	public void open() throws StarDBException {
 		
@@ -153,49 +279,80 @@ public class BlockFile extends BlockStorage {
 			throw new StarDBException("open() called with no file set.");
 		}
 		
-		long previousPosition = -1;
+		readHeader(StarDBUtils.readToBuffer(dataFile, 0, 19));
 		
 		try {
-			previousPosition = dataFile.position();
-			dataFile.position(0);
+			setExtents(headerSize, dataFile.size());
 		} catch (IOException e) {
 			throw new StarDBException("Error: " + e.getMessage(), e);
 		}
 		
-		ByteBuffer buffer = null;
+		open = true;
 		
-		buffer = StarDBUtils.readToBuffer(dataFile, 6);
+	}
+	
+	private void checkWritable() throws StarDBException {
 		
-		String magic = new String(buffer.array());
+		checkIfOpen(true);
 		
-		if (!magic.equals(headerMagic)) {
-			throw new StarDBException("File is not a valid BlockFile");
+		if (!writable) {
+			throw new StarDBException("The storage was not opened for writing.");
 		}
 		
-		buffer = StarDBUtils.readToBuffer(dataFile, 13);
-		
-		headerSize = buffer.getInt();
-		blockSize = buffer.getInt();
+	}
+	
+	private void loadFreeList() throws StarDBException {
 		
-		byte noFreeIndexBlock = buffer.get();
-		if (noFreeIndexBlock == 0) {
-			headFreeIndexBlock = buffer.getInt();
+		if (freeListLoaded) {
+			return;
 		}
 		
-		try {
-			setExtents(headerSize, dataFile.size());
-		} catch (IOException e) {
-			throw new StarDBException("Error: " + e.getMessage(), e);
+		int pointer = headFreeIndexBlock;
+		
+		while (pointer >= 0) {
+			
+			if (freeIndexBlocks.size() > blockCount / blockSize) {
+				throw new StarDBException("The free block list is circular.");
+			}
+			
+			ByteBuffer block = readBlockBuffer(pointer);
+			
+			if (!StarDBUtils.matches(block, 0, freeIndexMagic)) {
+				throw new StarDBException("Incorrect free index block signature");
+			}
+			
+			freeIndexBlocks.add(pointer);
+			
+			int next = block.getInt(2);
+			int count = block.getInt(6);
+			block.position(10);
+			
+			for (int i = 0; i < count; i++) {
+				available.add(block.getInt());
+			}
+			
+			pointer = next;
+			
 		}
 		
-		open = true;
+		freeListLoaded = true;
 		
+	}
+	
+	private int appendBlock() {
+		int blockIndex = (int) ((blockEnd - blockStart + blockSize - 1) / blockSize);
+		setExtents(blockStart, blockStart + (long) (blockIndex + 1) * blockSize);
+		return blockIndex;
+	}
+	
+	private void write(long position, final ByteBuffer data) throws StarDBException {
 		try {
-			dataFile.position(previousPosition);
+			while (data.hasRemaining()) {
+				position += dataFile.write(data, position);
+			}
 		} catch (IOException e) {
 			throw new StarDBException("Error: " + e.getMessage(), e);
 		}
-		
 	}
 	
 }
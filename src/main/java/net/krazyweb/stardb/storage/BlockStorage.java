@@ -1,13 +1,20 @@
 package net.krazyweb.stardb.storage;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
+import net.krazyweb.stardb.SeekableInMemoryByteChannel;
+import net.krazyweb.stardb.StarDBUtils;
 import net.krazyweb.stardb.exceptions.StarDBException;
 
 public abstract class BlockStorage {
+
+	protected final String headerMagic = "SBBF02";
+	protected final int prefixHeaderSize = 32;
 	
-	protected SeekableByteChannel dataFile;
+	protected FileChannel dataFile;
 	protected boolean open;
 	protected int headerSize;
 	protected int headFreeIndexBlock;
@@ -16,11 +23,16 @@ public abstract class BlockStorage {
 	protected long blockEnd;
 	protected long blockCount;
 	
+	protected volatile int readAheadBlocks;
+	protected volatile boolean prefetch;
+	
 	/**
 	 * Creates a new BlockStorage instance from which to access a Starbound database file's contents.
 	 */
 	protected BlockStorage() {
 		open = false;
+		readAheadBlocks = 32;
+		prefetch = false;
 	}
 	
 	/**
@@ -37,6 +49,60 @@ public abstract class BlockStorage {
 		}
 	}
 	
+	/**
+	 * Parses the prefix header (magic, header size, block size and free block index) from the start of the file.
+	 * @param buffer - A buffer positioned at the start of the file containing at least the first 19 bytes.
+	 * @throws StarDBException The file is not a valid BlockFile.
+	 */
+	protected void readHeader(final ByteBuffer buffer) throws StarDBException {
+		
+		if (!StarDBUtils.matches(buffer, buffer.position(), headerMagic)) {
+			throw new StarDBException("File is not a valid BlockFile");
+		}
+		
+		buffer.position(buffer.position() + headerMagic.length());
+		
+		headerSize = buffer.getInt();
+		blockSize = buffer.getInt();
+		
+		byte noFreeIndexBlock = buffer.get();
+		if (noFreeIndexBlock == 0) {
+			headFreeIndexBlock = buffer.getInt();
+		} else {
+			headFreeIndexBlock = -1;
+		}
+		
+	}
+	
+	protected void setExtents(final long start, final long end) {
+		
+		blockStart = start;
+		blockEnd = end;
+		
+		if (blockEnd < blockStart) {
+			blockEnd = blockStart;
+		}
+		
+		blockCount = blockEnd - blockStart; //(blockSize)
+		
+	}
+	
+	/**
+	 * Returns the total size of the user header.
+	 * @return - The size of the user header in bytes.
+	 */
+	public int getUserHeaderSize() {
+		return headerSize - prefixHeaderSize;
+	}
+	
+	/**
+	 * Returns the size of the database file, as of when it was opened.
+	 * @return - The size of the file in bytes.
+	 */
+	public long getFileSize() {
+		return blockEnd;
+	}
+	
 	/**
 	 * Returns the block size.
 	 * @return - The size of each block of data in bytes.
@@ -45,6 +111,143 @@ public abstract class BlockStorage {
 		return blockSize;
 	}
 	
+	/**
+	 * Reads a block of data into a ByteBuffer. The returned buffer is positioned at zero, uses big-endian byte order
+	 * and may be a view of shared memory, so callers must not write to it.
+	 * @param blockIndex - The index of the block in the database file.
+	 * @param blockOffset - The offset in bytes from which to start reading in data.
+	 * @param size - The amount of data to read in bytes, or zero to read to the end of the block.
+	 * @return - A ByteBuffer containing the data of the specified block.
+	 * @throws StarDBException The block index is either out of range, no data would be read, or an error occurred while reading the data.
+	 */
+	public abstract ByteBuffer readBlockBuffer(final int blockIndex, final int blockOffset, final int size) throws StarDBException;
+	
+	/**
+	 * Reads a whole block of data into a ByteBuffer. The returned buffer is positioned at zero, uses big-endian byte
+	 * order and may be a view of shared memory, so callers must not write to it.
+	 * @param blockIndex - The index of the block in the database file.
+	 * @return - A ByteBuffer containing the data of the specified block.
+	 * @throws StarDBException The block index is either out of range or an error occurred while reading the data.
+	 */
+	public ByteBuffer readBlockBuffer(final int blockIndex) throws StarDBException {
+		return readBlockBuffer(blockIndex, 0, 0);
+	}
+	
+	/**
+	 * Reads a block of data into a ByteBuffer without waiting for the read to complete. Storage which has no truly
+	 * asynchronous reads performs the read straight away and returns a completed future.
+	 * @param blockIndex - The index of the block in the database file.
+	 * @param blockOffset - The offset in bytes from which to start reading in data.
+	 * @param size - The amount of data to read in bytes, or zero to read to the end of the block.
+	 * @return - A future completed with the data, as returned by {@link #readBlockBuffer(int, int, int)}, or completed
+	 * exceptionally with a StarDBException if the data could not be read.
+	 */
+	public CompletableFuture<ByteBuffer> readBlockBufferAsync(final int blockIndex, final int blockOffset, final int size) {
+		try {
+			return CompletableFuture.completedFuture(readBlockBuffer(blockIndex, blockOffset, size));
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Reads a run of consecutive whole blocks into a single ByteBuffer, so that a chain of neighbouring blocks costs one
+	 * read instead of one read per block. The returned buffer is positioned at zero, uses big-endian byte order and may
+	 * be a view of shared memory, so callers must not write to it.
+	 * @param firstBlockIndex - The index of the first block of the run.
+	 * @param count - The number of blocks to read. Fewer blocks are read if the file ends first.
+	 * @return - A ByteBuffer containing the data of the blocks, one after another.
+	 * @throws StarDBException The first block index is out of range or an error occurred while reading the data.
+	 */
+	public ByteBuffer readBlocksBuffer(final int firstBlockIndex, final int count) throws StarDBException {
+		
+		int available = availableBlocks(firstBlockIndex, count);
+		
+		if (available <= 0) {
+			throw new StarDBException("Block index: " + firstBlockIndex + " out of block range.");
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(available * blockSize);
+		
+		for (int i = 0; i < available; i++) {
+			buffer.put(readBlockBuffer(firstBlockIndex + i));
+		}
+		
+		buffer.flip();
+		
+		return buffer;
+		
+	}
+	
+	/**
+	 * Reads a run of consecutive whole blocks without waiting for the read to complete. Storage which has no truly
+	 * asynchronous reads performs the read straight away and returns a completed future.
+	 * @param firstBlockIndex - The index of the first block of the run.
+	 * @param count - The number of blocks to read. Fewer blocks are read if the file ends first.
+	 * @return - A future completed with the data, as returned by {@link #readBlocksBuffer(int, int)}, or completed
+	 * exceptionally with a StarDBException if the data could not be read.
+	 */
+	public CompletableFuture<ByteBuffer> readBlocksBufferAsync(final int firstBlockIndex, final int count) {
+		try {
+			return CompletableFuture.completedFuture(readBlocksBuffer(firstBlockIndex, count));
+		} catch (StarDBException e) {
+			return StarDBUtils.failedFuture(e);
+		}
+	}
+	
+	/**
+	 * Returns the largest number of blocks which leaf readers fetch with a single read when following a chain of
+	 * consecutive blocks.
+	 * @return - The maximum number of blocks read at once.
+	 */
+	public int getReadAheadBlocks() {
+		return readAheadBlocks;
+	}
+	
+	/**
+	 * Sets the largest number of blocks which leaf readers fetch with a single read when following a chain of
+	 * consecutive blocks. Readers start by reading one block at a time, and read further ahead while the chain keeps
+	 * continuing into the next block of the file.
+	 * @param readAheadBlocks - The maximum number of blocks read at once, or 1 to read every block separately.
+	 */
+	public void setReadAheadBlocks(final int readAheadBlocks) {
+		this.readAheadBlocks = Math.max(1, readAheadBlocks);
+	}
+	
+	/**
+	 * Returns whether streams over stored values start reading their next blocks while the current ones are consumed.
+	 * @return - Whether prefetching is enabled.
+	 */
+	public boolean isPrefetchEnabled() {
+		return prefetch;
+	}
+	
+	/**
+	 * Sets whether streams over stored values start reading their next blocks while the current ones are consumed. The
+	 * next read is issued through {@link #readBlocksBufferAsync(int, int)}, so this only overlaps reading with consuming
+	 * on storage with truly asynchronous reads, such as an AsyncBlockFile.
+	 * @param prefetch - Whether to prefetch.
+	 */
+	public void setPrefetchEnabled(final boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+	
+	/**
+	 * Clamps a run of blocks to the blocks present in the file.
+	 * @param firstBlockIndex - The index of the first block of the run.
+	 * @param count - The number of blocks in the run.
+	 * @return The number of blocks of the run which are present in the file, or zero if the run starts outside of it.
+	 */
+	protected int availableBlocks(final int firstBlockIndex, final int count) {
+		
+		if (firstBlockIndex < 0) {
+			return 0;
+		}
+		
+		return (int) Math.max(0, Math.min(count, (blockEnd - blockStart) / blockSize - firstBlockIndex));
+		
+	}
+	
 	/**
 	 * Reads a block of data into a SeekableByteChannel for further manipulation.
 	 * @param blockIndex - The index of the block in the database file.
@@ -53,16 +256,29 @@ public abstract class BlockStorage {
 	 * @return - A SeekableByteChannel containing the data of the specified block.
 	 * @throws StarDBException The block index is either out of range, no data would be read, or an error occurred while reading the data.
 	 */
-	public abstract SeekableByteChannel readBlock(final int blockIndex, final int blockOffset, final int size) throws StarDBException;
+	public SeekableByteChannel readBlock(final int blockIndex, final int blockOffset, final int size) throws StarDBException {
+		return new SeekableInMemoryByteChannel(readBlockBuffer(blockIndex, blockOffset, size).asReadOnlyBuffer());
+	}
 	
 	/**
 	 * Reads a block of data into a SeekableByteChannel for further manipulation.
 	 * @param blockIndex - The index of the block in the database file.
 	 * @return - A SeekableByteChannel containing the data of the specified block.
 	 * @throws StarDBException The block index is either out of range or no data would be read.
-	 * @throws IOException An IO problem occurred while trying to access the data channel.
 	 */
-	public abstract SeekableByteChannel readBlock(final int blockIndex) throws StarDBException;
+	public SeekableByteChannel readBlock(final int blockIndex) throws StarDBException {
+		return readBlock(blockIndex, 0, 0);
+	}
+	
+	/**
+	 * Reads the specified portion of the user data header in the file into a ByteBuffer. The returned buffer is
+	 * positioned at zero, uses big-endian byte order and may be a view of shared memory, so callers must not write to it.
+	 * @param dataOffset - The offset in bytes from which to begin reading data.
+	 * @param size - The amount of data to read in bytes.
+	 * @return A ByteBuffer containing the header information for the userdata.
+	 * @throws StarDBException The method was called outside of the bounds of the user header or an error occurred while reading the data.
+	 */
+	public abstract ByteBuffer readUserDataBuffer(final int dataOffset, final int size) throws StarDBException;
 	
 	/**
 	 * Reads the specified portion of the user data header in the file.
@@ -71,7 +287,65 @@ public abstract class BlockStorage {
 	 * @return A SeekableByteChannel containing the header information for the userdata.
 	 * @throws StarDBException The method was called outside of the bounds of the user header or an error occurred while reading the data.
 	 */
-	public abstract SeekableByteChannel readUserData(final int dataOffset, final int size) throws StarDBException;
+	public SeekableByteChannel readUserData(final int dataOffset, final int size) throws StarDBException {
+		return new SeekableInMemoryByteChannel(readUserDataBuffer(dataOffset, size).asReadOnlyBuffer());
+	}
+	
+	/**
+	 * Returns whether this storage was opened for writing.
+	 * @return Whether blocks may be written to this storage.
+	 */
+	public boolean isWritable() {
+		return false;
+	}
+	
+	/**
+	 * Takes a block which may be written as part of the current transaction, reusing a free block where possible.
+	 * @return The index of the block.
+	 * @throws StarDBException The storage is read only or an error occurred while reading the free block list.
+	 */
+	public int reserveBlock() throws StarDBException {
+		throw new StarDBException("The storage was not opened for writing.");
+	}
+	
+	/**
+	 * Marks a block as no longer used by the database. The block only becomes free for reuse once the current
+	 * transaction is committed, since the last committed version of the database may still refer to it.
+	 * @param blockIndex - The index of the block.
+	 * @throws StarDBException The storage is read only.
+	 */
+	public void freeBlock(final int blockIndex) throws StarDBException {
+		throw new StarDBException("The storage was not opened for writing.");
+	}
+	
+	/**
+	 * Writes a whole block of data. Only blocks reserved in the current transaction should be written.
+	 * @param blockIndex - The index of the block.
+	 * @param data - The contents of the block, at most one block in size.
+	 * @throws StarDBException The storage is read only or an error occurred while writing.
+	 */
+	public void writeBlock(final int blockIndex, final ByteBuffer data) throws StarDBException {
+		throw new StarDBException("The storage was not opened for writing.");
+	}
+	
+	/**
+	 * Commits the current transaction. The free block list is written to fresh blocks and everything is flushed to disk,
+	 * after which the header, including the given user data, is rewritten with a single write.
+	 * @param dataOffset - The offset in the user header at which to write the user data.
+	 * @param userData - The user data to write.
+	 * @throws StarDBException The storage is read only or an error occurred while writing.
+	 */
+	public void commit(final int dataOffset, final ByteBuffer userData) throws StarDBException {
+		throw new StarDBException("The storage was not opened for writing.");
+	}
+	
+	/**
+	 * Abandons the current transaction, making every block reserved by it free again.
+	 * @throws StarDBException The storage is read only.
+	 */
+	public void rollback() throws StarDBException {
+		throw new StarDBException("The storage was not opened for writing.");
+	}
 	
 	/**
 	 * Opens the database file and retrieves necessary data from it.
@@ -0,0 +1,190 @@
+package net.krazyweb.stardb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Reads a Starbound database file through read-only memory mappings. Every read returns an independent view of the
+ * mapping, so once opened a MappedBlockFile may be read from any number of threads concurrently.
+ */
+public class MappedBlockFile extends BlockStorage {
+
+	private static final long defaultChunkSize = 1L << 30;
+	
+	private final long chunkSize;
+	
+	private ByteBuffer header;
+	private ByteBuffer[] chunks;
+	private int blocksPerChunk;
+	
+	/**
+	 * Creates a new MappedBlockFile instance which maps a Starbound database file into memory instead of reading it
+	 * through the heap. Blocks are returned as read-only views of the mapping, so reads are served by the OS page cache.
+	 * @param filePath - The path to the database file on disk.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public MappedBlockFile(final Path filePath) throws IOException {
+		this(filePath, defaultChunkSize);
+	}
+	
+	/**
+	 * Creates a new MappedBlockFile instance which maps a Starbound database file into memory instead of reading it
+	 * through the heap. Blocks are returned as read-only views of the mapping, so reads are served by the OS page cache.
+	 * @param filePath - The path to the database file on disk.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public MappedBlockFile(final String filePath) throws IOException {
+		this(Paths.get(filePath));
+	}
+	
+	/**
+	 * Creates a new MappedBlockFile instance which maps the file in chunks of at most the given size. A single mapping
+	 * cannot exceed 2GB, so larger files are split into several mappings, each holding a whole number of blocks.
+	 * @param filePath - The path to the database file on disk.
+	 * @param chunkSize - The maximum size of each mapping in bytes.
+	 * @throws IOException - Could not open the database file.
+	 */
+	public MappedBlockFile(final Path filePath, final long chunkSize) throws IOException {
+		
+		if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Chunk size must be between 1 and Integer.MAX_VALUE.");
+		}
+		
+		dataFile = FileChannel.open(filePath, StandardOpenOption.READ);
+		this.chunkSize = chunkSize;
+		
+		open = false;
+		headerSize = 256;
+		headFreeIndexBlock = -1;
+		blockSize = 1024;
+		blockStart = 0;
+		blockEnd = 0;
+		blockCount = 0;
+		
+	}
+	
+	@Override
+	public ByteBuffer readBlockBuffer(final int blockIndex, int blockOffset, int size) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		if (blockIndex > blockCount || blockIndex < 0) {
+			throw new StarDBException("Block index: " + blockIndex + " out of block range.");
+		}
+		
+		if (size == 0) {
+			size = blockSize - blockOffset;
+		}
+		
+		blockOffset = Math.min(blockSize, blockOffset);
+		size = Math.min(blockSize - blockOffset, size);
+		
+		if (size <= 0) {
+			throw new StarDBException("No data would be read (" + blockOffset + ", " + size + ")");
+		}
+		
+		int chunk = blockIndex / blocksPerChunk;
+		int position = (blockIndex % blocksPerChunk) * blockSize + blockOffset;
+		
+		if (chunk >= chunks.length || position + size > chunks[chunk].capacity()) {
+			throw new StarDBException("Block index: " + blockIndex + " out of block range.");
+		}
+		
+		return slice(chunks[chunk], position, size);
+		
+	}
+	
+	@Override
+	public ByteBuffer readBlocksBuffer(final int firstBlockIndex, final int count) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		int available = availableBlocks(firstBlockIndex, count);
+		int chunk = firstBlockIndex / blocksPerChunk;
+		int first = firstBlockIndex % blocksPerChunk;
+		
+		if (available > 0 && first + available <= blocksPerChunk && chunk < chunks.length) {
+			return slice(chunks[chunk], first * blockSize, available * blockSize);
+		}
+		
+		return super.readBlocksBuffer(firstBlockIndex, count);
+		
+	}
+	
+	@Override
+	public ByteBuffer readUserDataBuffer(final int dataOffset, final int size) throws StarDBException {
+		
+		checkIfOpen(true);
+		
+		if (dataOffset + size > getUserHeaderSize()) {
+			throw new StarDBException("readUserDataBuffer() called outside of bounds of user header");
+		}
+		
+		return slice(header, prefixHeaderSize + dataOffset, size);
+		
+	}
+	
+	@Override
+	public void open() throws StarDBException {
+		
+		checkIfOpen(false);
+		
+		try {
+			
+			long fileSize = dataFile.size();
+			
+			if (fileSize < prefixHeaderSize) {
+				throw new StarDBException("File is not a valid BlockFile");
+			}
+			
+			readHeader(dataFile.map(MapMode.READ_ONLY, 0, prefixHeaderSize));
+			
+			if (headerSize > fileSize || blockSize <= 0) {
+				throw new StarDBException("File is not a valid BlockFile");
+			}
+			
+			header = dataFile.map(MapMode.READ_ONLY, 0, headerSize);
+			
+			setExtents(headerSize, fileSize);
+			
+			blocksPerChunk = (int) Math.max(1, chunkSize / blockSize);
+			long bytesPerChunk = (long) blocksPerChunk * blockSize;
+			int chunkCount = (int) ((blockEnd - blockStart + bytesPerChunk - 1) / bytesPerChunk);
+			
+			chunks = new ByteBuffer[chunkCount];
+			
+			for (int i = 0; i < chunkCount; i++) {
+				long start = blockStart + i * bytesPerChunk;
+				chunks[i] = dataFile.map(MapMode.READ_ONLY, start, Math.min(bytesPerChunk, blockEnd - start));
+			}
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		open = true;
+		
+	}
+	
+	/**
+	 * Creates an independent view of a region of a mapping without touching the shared buffer's position or limit.
+	 * @param buffer - The mapped buffer to view.
+	 * @param position - The offset of the region within the buffer.
+	 * @param size - The size of the region in bytes.
+	 * @return A read-only ByteBuffer over the region.
+	 */
+	private static ByteBuffer slice(final ByteBuffer buffer, final int position, final int size) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(position + size);
+		view.position(position);
+		return view.slice().asReadOnlyBuffer();
+	}
+	
+}
@@ -0,0 +1,85 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Looks keys up through {@link BTreeDatabase#findAsync(byte[])}, which parses leaves with {@link AsyncLeafReader}.
+ */
+public class AsyncLeafReaderTest {
+
+	private static final int entries = 500;
+	private static final int blockSize = 512;
+	
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static TestDatabase db;
+	private static byte[][] keys;
+	private static byte[][] values;
+	
+	@BeforeClass
+	public static void writeDatabase() throws Exception {
+		
+		Random random = new Random(5);
+		keys = new byte[entries][];
+		values = new byte[entries][];
+		
+		for (int i = 0; i < entries; i++) {
+			
+			keys[i] = new byte[TestDatabase.keySize];
+			keys[i][0] = (byte) (i >> 8);
+			keys[i][1] = (byte) i;
+			
+			values[i] = new byte[i % 50 == 0 ? blockSize * 3 : random.nextInt(100)];
+			random.nextBytes(values[i]);
+			
+		}
+		
+		Path database = folder.getRoot().toPath().resolve("async.db");
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (int i = 0; i < entries; i++) {
+			writer.put(keys[i], values[i]);
+		}
+		
+		writer.finish();
+		
+		db = TestDatabase.open(new BlockFile(database));
+		
+	}
+	
+	@Test
+	public void findsEveryKey() throws Exception {
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Entry " + i, values[i], db.findAsync(keys[i]).get());
+		}
+	}
+	
+	@Test
+	public void shortKeyIsNotFound() throws Exception {
+		for (int i = 0; i < entries; i += 7) {
+			assertNull("Entry " + i, db.findAsync(Arrays.copyOf(keys[i], 2)).get());
+			assertNull("Entry " + i, db.findAsync(Arrays.copyOf(keys[i], TestDatabase.keySize - 1)).get());
+		}
+	}
+	
+	@Test
+	public void longKeyIsNotFound() throws Exception {
+		for (int i = 0; i < entries; i += 7) {
+			assertNull("Entry " + i, db.findAsync(Arrays.copyOf(keys[i], TestDatabase.keySize + 1)).get());
+		}
+	}
+	
+}
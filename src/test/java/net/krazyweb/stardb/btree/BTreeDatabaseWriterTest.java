@@ -0,0 +1,169 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.MappedBlockFile;
+
+/**
+ * Writes databases with {@link BTreeDatabaseWriter} and reads them back through {@link BTreeDatabase}.
+ */
+public class BTreeDatabaseWriterTest {
+
+	private static final int entries = 3000;
+	private static final int blockSize = 512;
+	
+	private static final Comparator<byte[]> unsigned = new Comparator<byte[]>() {
+		@Override
+		public int compare(final byte[] a, final byte[] b) {
+			return StarDBUtils.compareUnsigned(a, b);
+		}
+	};
+	
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static Path database;
+	private static byte[][] keys;
+	private static byte[][] values;
+	
+	@BeforeClass
+	public static void writeDatabase() throws Exception {
+		
+		Random random = new Random(3);
+		TreeMap<byte[], byte[]> sorted = new TreeMap<>(unsigned);
+		
+		while (sorted.size() < entries) {
+			
+			byte[] key = new byte[TestDatabase.keySize];
+			random.nextBytes(key);
+			
+			byte[] value = new byte[sorted.size() % 100 == 0 ? blockSize * 4 + random.nextInt(blockSize * 8) : random.nextInt(300)];
+			random.nextBytes(value);
+			
+			sorted.put(key, value);
+			
+		}
+		
+		keys = sorted.keySet().toArray(new byte[entries][]);
+		values = sorted.values().toArray(new byte[entries][]);
+		
+		database = folder.getRoot().toPath().resolve("writer.db");
+		
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (int i = 0; i < entries; i++) {
+			writer.put(keys[i], values[i]);
+		}
+		
+		writer.finish();
+		
+	}
+	
+	@Test
+	public void findReturnsEveryValue() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Entry " + i, values[i], db.find(keys[i]));
+		}
+		
+		byte[] missing = keys[entries / 2].clone();
+		missing[TestDatabase.keySize - 1] ^= 1;
+		
+		if (Arrays.binarySearch(keys, missing, unsigned) < 0) {
+			assertNull(db.find(missing));
+		}
+		
+	}
+	
+	@Test
+	public void cursorVisitsEveryEntryInOrder() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new MappedBlockFile(database));
+		BTreeCursor cursor = db.cursor();
+		
+		for (int i = 0; i < entries; i++) {
+			assertTrue("Entry " + i, cursor.next());
+			assertArrayEquals("Entry " + i, keys[i], cursor.key());
+			assertEquals("Entry " + i, values[i].length, cursor.valueSize());
+			assertArrayEquals("Entry " + i, values[i], cursor.value());
+		}
+		
+		assertFalse(cursor.next());
+		
+	}
+	
+	@Test
+	public void splitKeysAreSortedKeysOfTheDatabase() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		List<byte[]> boundaries = db.getSplitKeys(8);
+		
+		assertTrue("Only " + boundaries.size() + " boundaries", boundaries.size() >= 7);
+		
+		for (int i = 0; i < boundaries.size(); i++) {
+			
+			assertTrue(Arrays.binarySearch(keys, boundaries.get(i), unsigned) >= 0);
+			
+			if (i > 0) {
+				assertTrue(StarDBUtils.compareUnsigned(boundaries.get(i - 1), boundaries.get(i)) < 0);
+			}
+			
+		}
+		
+		int total = 0;
+		List<byte[]> edges = new ArrayList<>();
+		edges.add(null);
+		edges.addAll(boundaries);
+		edges.add(null);
+		
+		for (int i = 0; i + 1 < edges.size(); i++) {
+			
+			BTreeCursor cursor = db.scan(edges.get(i), edges.get(i + 1));
+			
+			while (cursor.next()) {
+				total++;
+			}
+			
+		}
+		
+		assertEquals(entries, total);
+		
+	}
+	
+	@Test
+	public void emptyDatabaseHasNoEntries() throws Exception {
+		
+		Path empty = folder.getRoot().toPath().resolve("empty.db");
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(empty, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		writer.finish();
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(empty));
+		
+		assertNull(db.find(keys[0]));
+		assertFalse(db.cursor().next());
+		assertTrue(db.getSplitKeys(8).isEmpty());
+		
+	}
+	
+}
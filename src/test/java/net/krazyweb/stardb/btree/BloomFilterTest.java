@@ -0,0 +1,181 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Checks that {@link BloomFilter} survives being written out and read back, and that keys added to a database after
+ * its filter was built are still found once the changes are committed.
+ */
+public class BloomFilterTest {
+
+	private static final int entries = 2000;
+	private static final int blockSize = 512;
+	private static final double falsePositiveRate = 0.01;
+	
+	private static final Comparator<byte[]> unsigned = new Comparator<byte[]>() {
+		@Override
+		public int compare(final byte[] a, final byte[] b) {
+			return StarDBUtils.compareUnsigned(a, b);
+		}
+	};
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	private Path database;
+	private TreeMap<byte[], byte[]> expected;
+	private Random random;
+	
+	@Before
+	public void writeDatabase() throws Exception {
+		
+		random = new Random(16);
+		expected = new TreeMap<>(unsigned);
+		
+		while (expected.size() < entries) {
+			expected.put(randomKey(), randomValue());
+		}
+		
+		database = folder.getRoot().toPath().resolve("bloom.db");
+		
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			writer.put(entry.getKey(), entry.getValue());
+		}
+		
+		writer.finish();
+		
+	}
+	
+	@Test
+	public void serializedFilterRoundTrips() throws Exception {
+		
+		BloomFilter filter = new BloomFilter(entries, falsePositiveRate);
+		
+		for (byte[] key : expected.keySet()) {
+			filter.put(BloomFilter.hash(key));
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			filter.write(output);
+		}
+		
+		BloomFilter read = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		
+		for (byte[] key : expected.keySet()) {
+			assertTrue(read.mightContain(BloomFilter.hash(key)));
+		}
+		
+		for (int i = 0; i < entries; i++) {
+			long hash = BloomFilter.hash(randomKey());
+			assertEquals(filter.mightContain(hash), read.mightContain(hash));
+		}
+		
+	}
+	
+	@Test(expected = IOException.class)
+	public void invalidFilterIsRejected() throws Exception {
+		BloomFilter.read(new DataInputStream(new ByteArrayInputStream(new byte[8])));
+	}
+	
+	@Test
+	public void keysPutAfterBuildingArePresentAfterCommit() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		db.buildBloomFilter(falsePositiveRate);
+		
+		TreeMap<byte[], byte[]> added = new TreeMap<>(unsigned);
+		
+		while (added.size() < entries / 4) {
+			byte[] key = randomKey();
+			if (!expected.containsKey(key)) {
+				added.put(key, randomValue());
+			}
+		}
+		
+		for (Map.Entry<byte[], byte[]> entry : added.entrySet()) {
+			db.put(entry.getKey(), entry.getValue());
+		}
+		
+		db.commit();
+		
+		for (Map.Entry<byte[], byte[]> entry : added.entrySet()) {
+			assertTrue(db.mightContain(entry.getKey()));
+			assertTrue(db.contains(entry.getKey()));
+			assertArrayEquals(entry.getValue(), db.find(entry.getKey()));
+		}
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			assertArrayEquals(entry.getValue(), db.find(entry.getKey()));
+		}
+		
+		Path filter = folder.getRoot().toPath().resolve("bloom.filter");
+		db.saveBloomFilter(filter);
+		
+		TestDatabase reopened = TestDatabase.open(new BlockFile(database));
+		assertTrue(reopened.loadBloomFilter(filter));
+		
+		for (Map.Entry<byte[], byte[]> entry : added.entrySet()) {
+			assertTrue(reopened.mightContain(entry.getKey()));
+			assertArrayEquals(entry.getValue(), reopened.find(entry.getKey()));
+		}
+		
+	}
+	
+	@Test
+	public void filterSavedBeforeCommitIsIgnored() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		db.buildBloomFilter(falsePositiveRate);
+		
+		Path filter = folder.getRoot().toPath().resolve("stale.filter");
+		db.saveBloomFilter(filter);
+		
+		byte[] key = randomKey();
+		db.put(key, randomValue());
+		db.commit();
+		
+		TestDatabase reopened = TestDatabase.open(new BlockFile(database));
+		assertFalse(reopened.loadBloomFilter(filter));
+		assertTrue(reopened.contains(key));
+		
+	}
+	
+	private byte[] randomKey() {
+		byte[] key = new byte[TestDatabase.keySize];
+		random.nextBytes(key);
+		return key;
+	}
+	
+	private byte[] randomValue() {
+		byte[] value = new byte[random.nextInt(100)];
+		random.nextBytes(value);
+		return value;
+	}
+	
+}
@@ -0,0 +1,222 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Checks the admission, promotion and eviction rules of {@link LeafCache} and its hit and miss counts.
+ */
+public class LeafCacheTest {
+
+	private static final int entries = 2000;
+	private static final int blockSize = 512;
+	
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static List<LeafNode> leaves;
+	private static long leafSize;
+	
+	@BeforeClass
+	public static void readLeaves() throws Exception {
+		
+		Random random = new Random(6);
+		Path database = folder.getRoot().toPath().resolve("cache.db");
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (int i = 0; i < entries; i++) {
+			byte[] key = new byte[TestDatabase.keySize];
+			key[0] = (byte) (i >> 8);
+			key[1] = (byte) i;
+			byte[] value = new byte[40];
+			random.nextBytes(value);
+			writer.put(key, value);
+		}
+		
+		writer.finish();
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		Set<Integer> pointers = new LinkedHashSet<>();
+		
+		for (int i = 0; i < entries; i++) {
+			byte[] key = new byte[TestDatabase.keySize];
+			key[0] = (byte) (i >> 8);
+			key[1] = (byte) i;
+			pointers.add(db.findLeaf(key).selfPointer);
+		}
+		
+		leaves = new ArrayList<>();
+		
+		for (int pointer : pointers) {
+			LeafNode leaf = db.readLeaf(pointer);
+			leaves.add(leaf);
+			leafSize = Math.max(leafSize, leaf.memorySize());
+		}
+		
+	}
+	
+	@Test
+	public void hitsAndMissesAreCounted() {
+		
+		LeafCache cache = new LeafCache(leafSize * 100);
+		LeafNode leaf = leaves.get(0);
+		
+		assertNull(cache.get(leaf.selfPointer));
+		cache.put(leaf);
+		assertSame(leaf, cache.get(leaf.selfPointer));
+		assertSame(leaf, cache.get(leaf.selfPointer));
+		assertNull(cache.get(leaves.get(1).selfPointer));
+		
+		assertEquals(2, cache.hitCount());
+		assertEquals(2, cache.missCount());
+		
+		cache.clear();
+		
+		assertNull(cache.get(leaf.selfPointer));
+		assertEquals(2, cache.hitCount());
+		assertEquals(3, cache.missCount());
+		
+	}
+	
+	@Test
+	public void leafLargerThanTheCacheIsNotAdmitted() {
+		
+		LeafNode leaf = leaves.get(0);
+		LeafCache cache = new LeafCache(leaf.memorySize() - 1);
+		
+		cache.put(leaf);
+		
+		assertNull(cache.get(leaf.selfPointer));
+		
+	}
+	
+	@Test
+	public void scanEvictsLeastRecentlyUsedProbationLeaves() {
+		
+		LeafCache cache = new LeafCache(leafSize * 10);
+		
+		for (LeafNode leaf : leaves) {
+			cache.put(leaf);
+		}
+		
+		assertNull(cache.get(leaves.get(0).selfPointer));
+		assertSame(leaves.get(leaves.size() - 1), cache.get(leaves.get(leaves.size() - 1).selfPointer));
+		
+	}
+	
+	@Test
+	public void scanDoesNotFlushProtectedLeaves() {
+		
+		LeafCache cache = new LeafCache(leafSize * 10);
+		LeafNode hot = leaves.get(0);
+		
+		cache.put(hot);
+		assertSame(hot, cache.get(hot.selfPointer));
+		
+		for (int i = 1; i < leaves.size(); i++) {
+			cache.put(leaves.get(i));
+		}
+		
+		assertSame(hot, cache.get(hot.selfPointer));
+		assertNull(cache.get(leaves.get(1).selfPointer));
+		
+	}
+	
+	@Test
+	public void removedLeafIsNotReturned() {
+		
+		LeafCache cache = new LeafCache(leafSize * 10);
+		LeafNode leaf = leaves.get(0);
+		
+		cache.put(leaf);
+		cache.get(leaf.selfPointer);
+		cache.remove(leaf.selfPointer);
+		
+		assertNull(cache.get(leaf.selfPointer));
+		
+	}
+	
+	@Test
+	public void largeCacheIsStriped() {
+		assertEquals(1, new LeafCache(1024 * 1024).stripeCount());
+		assertEquals(4, new LeafCache(4 * 1024 * 1024 + 1).stripeCount());
+		assertEquals(16, new LeafCache(1024L * 1024 * 1024).stripeCount());
+	}
+	
+	@Test
+	public void concurrentLookupsAreAllCounted() throws Exception {
+		
+		final LeafCache cache = new LeafCache(64 * 1024 * 1024);
+		final int threads = 8;
+		final int lookups = 20000;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		try {
+			
+			List<Future<Integer>> results = new ArrayList<>();
+			
+			for (int t = 0; t < threads; t++) {
+				
+				final long seed = t;
+				
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						
+						Random random = new Random(seed);
+						
+						for (int i = 0; i < lookups; i++) {
+							
+							LeafNode leaf = leaves.get(random.nextInt(leaves.size()));
+							
+							if (cache.get(leaf.selfPointer) == null) {
+								cache.put(leaf);
+							}
+							
+						}
+						
+						return lookups;
+						
+					}
+				}));
+				
+			}
+			
+			for (Future<Integer> result : results) {
+				assertEquals(lookups, (int) result.get());
+			}
+			
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertEquals((long) threads * lookups, cache.hitCount() + cache.missCount());
+		
+		for (LeafNode leaf : leaves) {
+			assertNotNull(cache.get(leaf.selfPointer));
+		}
+		
+	}
+	
+}
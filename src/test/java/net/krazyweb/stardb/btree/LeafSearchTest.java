@@ -0,0 +1,80 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Checks that both searches of {@link LeafSearch} find the same entries and that their comparisons are counted.
+ */
+public class LeafSearchTest {
+
+	private static final int entries = 1000;
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void searchesAgreeAndAreCounted() throws Exception {
+		
+		Random random = new Random(8);
+		TreeSet<byte[]> keys = new TreeSet<>(new Comparator<byte[]>() {
+			@Override
+			public int compare(final byte[] a, final byte[] b) {
+				return StarDBUtils.compareUnsigned(a, b);
+			}
+		});
+		
+		while (keys.size() < entries) {
+			byte[] key = new byte[TestDatabase.keySize];
+			random.nextBytes(key);
+			keys.add(key);
+		}
+		
+		Path database = folder.getRoot().toPath().resolve("search.db");
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, 4096);
+		
+		for (byte[] key : keys) {
+			writer.put(key, new byte[4]);
+		}
+		
+		writer.finish();
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		
+		for (byte[] key : keys) {
+			
+			LeafSearch search = new LeafSearch(db, key);
+			
+			int index = search.interpolated(key);
+			long comparisons = search.getComparisons();
+			
+			assertTrue(index >= 0);
+			assertTrue(comparisons > 0);
+			assertEquals(index, search.binary(key));
+			assertTrue(search.getComparisons() > comparisons);
+			
+			byte[] missing = key.clone();
+			missing[TestDatabase.keySize - 1] ^= 1;
+			
+			if (!keys.contains(missing)) {
+				assertEquals(-1, search.interpolated(missing));
+				assertEquals(-1, search.binary(missing));
+			}
+			
+		}
+		
+	}
+	
+}
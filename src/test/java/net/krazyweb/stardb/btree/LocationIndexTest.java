@@ -0,0 +1,215 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Writes location indexes for a database, reads them back, and checks that damaged or stale sidecar files are not used.
+ */
+public class LocationIndexTest {
+
+	private static final int entries = 1500;
+	private static final int blockSize = 512;
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	private Path database;
+	private Path sidecar;
+	private byte[][] keys;
+	private byte[][] values;
+	
+	@Before
+	public void writeDatabase() throws Exception {
+		
+		Random random = new Random(9);
+		keys = new byte[entries][];
+		values = new byte[entries][];
+		
+		for (int i = 0; i < entries; i++) {
+			
+			keys[i] = new byte[TestDatabase.keySize];
+			random.nextBytes(keys[i]);
+			keys[i][0] = (byte) (i * 65536 / entries >> 8);
+			keys[i][1] = (byte) (i * 65536 / entries);
+			
+			values[i] = new byte[i % 40 == 0 ? blockSize * 5 : random.nextInt(200)];
+			random.nextBytes(values[i]);
+			
+		}
+		
+		database = folder.getRoot().toPath().resolve("location.db");
+		sidecar = folder.getRoot().toPath().resolve("location.idx");
+		
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (int i = 0; i < entries; i++) {
+			writer.put(keys[i], values[i]);
+		}
+		
+		writer.finish();
+		
+	}
+	
+	@Test
+	public void tableRoundTrips() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			LocationIndex.write(db.cursor(), TestDatabase.keySize, output);
+		}
+		
+		BlockFile storage = new BlockFile(database);
+		storage.open();
+		
+		LocationIndex index = new LocationIndex(storage, ByteBuffer.wrap(bytes.toByteArray()));
+		
+		for (int i = 0; i < entries; i++) {
+			assertTrue(index.contains(keys[i]));
+			assertArrayEquals("Entry " + i, values[i], index.find(keys[i]));
+			assertArrayEquals("Entry " + i, values[i], index.findAsync(keys[i]).get());
+			assertArrayEquals("Entry " + i, values[i], read(index.findChannel(keys[i]), values[i].length));
+		}
+		
+		byte[] missing = keys[entries / 2].clone();
+		missing[TestDatabase.keySize - 1] ^= 1;
+		
+		assertFalse(index.contains(missing));
+		assertNull(index.find(missing));
+		assertNull(index.findAsync(missing).get());
+		assertNull(index.findChannel(missing));
+		assertNull(index.find(Arrays.copyOf(keys[0], 2)));
+		
+	}
+	
+	@Test
+	public void sidecarRoundTrips() throws Exception {
+		
+		TestDatabase.open(new BlockFile(database)).buildLocationIndex(sidecar);
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		assertTrue(db.loadLocationIndex(sidecar));
+		
+		for (int i = 0; i < entries; i++) {
+			assertArrayEquals("Entry " + i, values[i], db.find(keys[i]));
+			assertArrayEquals("Entry " + i, values[i], db.findAsync(keys[i]).get());
+		}
+		
+	}
+	
+	@Test(expected = IOException.class)
+	public void truncatedTableIsRejected() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		try (DataOutputStream output = new DataOutputStream(bytes)) {
+			LocationIndex.write(db.cursor(), TestDatabase.keySize, output);
+		}
+		
+		byte[] table = bytes.toByteArray();
+		
+		new LocationIndex(null, ByteBuffer.wrap(Arrays.copyOf(table, table.length - 1)));
+		
+	}
+	
+	@Test(expected = IOException.class)
+	public void negativeCountIsRejected() throws Exception {
+		ByteBuffer table = ByteBuffer.allocate(8 + 65537 * 4);
+		table.putInt(TestDatabase.keySize).putInt(-1).clear();
+		new LocationIndex(null, table);
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void sidecarWithoutTheMagicIsRejected() throws Exception {
+		Files.write(sidecar, new byte[4096]);
+		TestDatabase.open(new BlockFile(database)).loadLocationIndex(sidecar);
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void shortSidecarIsRejected() throws Exception {
+		
+		TestDatabase.open(new BlockFile(database)).buildLocationIndex(sidecar);
+		
+		byte[] data = Files.readAllBytes(sidecar);
+		Files.write(sidecar, Arrays.copyOf(data, data.length / 2));
+		
+		TestDatabase.open(new BlockFile(database)).loadLocationIndex(sidecar);
+		
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void sidecarCutOffInTheFingerprintIsRejected() throws Exception {
+		
+		TestDatabase.open(new BlockFile(database)).buildLocationIndex(sidecar);
+		
+		byte[] data = Files.readAllBytes(sidecar);
+		Files.write(sidecar, Arrays.copyOf(data, 12));
+		
+		TestDatabase.open(new BlockFile(database)).loadLocationIndex(sidecar);
+		
+	}
+	
+	@Test
+	public void staleSidecarIsIgnoredAfterCommit() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		db.buildLocationIndex(sidecar);
+		
+		byte[] value = new byte[] { 1, 2, 3 };
+		
+		db.put(keys[0], value);
+		assertArrayEquals(value, db.find(keys[0]));
+		
+		db.commit();
+		
+		assertFalse(db.loadLocationIndex(sidecar));
+		assertArrayEquals(value, db.find(keys[0]));
+		
+		TestDatabase reopened = TestDatabase.open(new BlockFile(database));
+		
+		assertFalse(reopened.loadLocationIndex(sidecar));
+		assertArrayEquals(value, reopened.find(keys[0]));
+		assertArrayEquals(value, reopened.findAsync(keys[0]).get());
+		
+	}
+	
+	private static byte[] read(final ReadableByteChannel channel, final int size) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		
+		channel.close();
+		
+		return buffer.array();
+		
+	}
+	
+}
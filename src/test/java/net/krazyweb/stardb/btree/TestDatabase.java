@@ -0,0 +1,33 @@
+package net.krazyweb.stardb.btree;
+
+import net.krazyweb.stardb.databases.SimpleDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * A database of fixed size keys and raw values, opened from the test package so that tests can reach the protected
+ * lookup and modification methods.
+ */
+class TestDatabase extends SimpleDatabase {
+
+	static final String contentID = "Test";
+	static final int keySize = 16;
+	
+	private TestDatabase(final BlockStorage blockStorage) {
+		super(blockStorage, contentID, keySize);
+	}
+	
+	/**
+	 * Opens the storage and the database in it.
+	 * @param blockStorage - The storage containing the database.
+	 * @return The opened database.
+	 * @throws StarDBException The storage does not contain a valid test database.
+	 */
+	static TestDatabase open(final BlockStorage blockStorage) throws StarDBException {
+		blockStorage.open();
+		TestDatabase db = new TestDatabase(blockStorage);
+		db.open();
+		return db;
+	}
+	
+}
@@ -0,0 +1,242 @@
+package net.krazyweb.stardb.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Modifies databases written by {@link BTreeDatabaseWriter} through {@link TreeUpdater}, commits or rolls the changes
+ * back, and checks what a freshly opened file holds afterwards.
+ */
+public class TreeUpdaterTest {
+
+	private static final int entries = 2000;
+	private static final int blockSize = 512;
+	
+	private static final Comparator<byte[]> unsigned = new Comparator<byte[]>() {
+		@Override
+		public int compare(final byte[] a, final byte[] b) {
+			return StarDBUtils.compareUnsigned(a, b);
+		}
+	};
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	private Path database;
+	private TreeMap<byte[], byte[]> expected;
+	private Random random;
+	
+	@Before
+	public void writeDatabase() throws Exception {
+		
+		random = new Random(4);
+		expected = new TreeMap<>(unsigned);
+		
+		while (expected.size() < entries) {
+			expected.put(randomKey(), randomValue());
+		}
+		
+		database = folder.getRoot().toPath().resolve("updater.db");
+		
+		BTreeDatabaseWriter writer = new BTreeDatabaseWriter(database, TestDatabase.contentID, TestDatabase.keySize, blockSize);
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			writer.put(entry.getKey(), entry.getValue());
+		}
+		
+		writer.finish();
+		
+	}
+	
+	@Test
+	public void splitsAndRootCollapseSurviveReopening() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		int level = db.loadIndex(db.rootPointer).level;
+		
+		for (int i = 0; i < entries * 3; i++) {
+			
+			byte[] key = randomKey();
+			byte[] value = i % 200 == 0 ? new byte[blockSize * 3] : randomValue();
+			
+			db.put(key, value);
+			expected.put(key, value);
+			
+		}
+		
+		List<byte[]> removed = new ArrayList<>();
+		
+		for (byte[] key : new ArrayList<>(expected.keySet())) {
+			if (random.nextInt(4) == 0) {
+				assertTrue(db.remove(key));
+				expected.remove(key);
+				removed.add(key);
+			}
+		}
+		
+		assertFalse(db.rootIsLeaf);
+		assertTrue("The root did not split", db.loadIndex(db.rootPointer).level > level);
+		
+		db.commit();
+		checkContents(removed);
+		
+		List<byte[]> keys = new ArrayList<>(expected.keySet());
+		
+		for (int i = 0; i < keys.size() - 1; i++) {
+			assertTrue(db.remove(keys.get(i)));
+			expected.remove(keys.get(i));
+			removed.add(keys.get(i));
+		}
+		
+		assertTrue("The root did not collapse to a leaf", db.rootIsLeaf);
+		
+		db.commit();
+		checkContents(removed);
+		
+		for (byte[] key : new ArrayList<>(expected.keySet())) {
+			assertTrue(db.remove(key));
+			expected.remove(key);
+			removed.add(key);
+		}
+		
+		db.commit();
+		checkContents(removed);
+		
+	}
+	
+	@Test
+	public void rollbackRestoresThePreviousRoot() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		int root = db.rootPointer;
+		boolean rootIsLeaf = db.rootIsLeaf;
+		
+		List<byte[]> added = new ArrayList<>();
+		
+		for (int i = 0; i < entries; i++) {
+			byte[] key = randomKey();
+			db.put(key, randomValue());
+			added.add(key);
+		}
+		
+		for (byte[] key : expected.keySet()) {
+			db.remove(key);
+		}
+		
+		db.rollback();
+		
+		assertEquals(root, db.rootPointer);
+		assertEquals(rootIsLeaf, db.rootIsLeaf);
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			assertArrayEquals(entry.getValue(), db.find(entry.getKey()));
+		}
+		
+		for (byte[] key : added) {
+			if (!expected.containsKey(key)) {
+				assertNull(db.find(key));
+			}
+		}
+		
+		checkContents(added);
+		
+	}
+	
+	@Test
+	public void laterCommitsReuseFreedBlocks() throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database, true));
+		List<byte[]> keys = new ArrayList<>(expected.keySet());
+		long[] sizes = new long[4];
+		
+		// The first commit has nothing to reuse yet, since blocks freed from committed data are only available once the
+		// commit has made them unreachable. Every later commit should fit in the blocks the one before it freed.
+		
+		for (int round = 0; round < sizes.length; round++) {
+			
+			for (int i = 0; i < entries / 10; i++) {
+				
+				byte[] key = keys.get(random.nextInt(keys.size()));
+				byte[] value = expected.get(key).clone();
+				
+				if (value.length > 0) {
+					value[random.nextInt(value.length)]++;
+				}
+				
+				db.put(key, value);
+				expected.put(key, value);
+				
+			}
+			
+			db.commit();
+			sizes[round] = Files.size(database);
+			
+		}
+		
+		for (int round = 2; round < sizes.length; round++) {
+			assertEquals("Round " + round, sizes[1], sizes[round]);
+		}
+		
+		checkContents(new ArrayList<byte[]>());
+		
+	}
+	
+	private void checkContents(final List<byte[]> removed) throws Exception {
+		
+		TestDatabase db = TestDatabase.open(new BlockFile(database));
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			assertArrayEquals(entry.getValue(), db.find(entry.getKey()));
+		}
+		
+		for (byte[] key : removed) {
+			if (!expected.containsKey(key)) {
+				assertNull(db.find(key));
+			}
+		}
+		
+		BTreeCursor cursor = db.cursor();
+		
+		for (Map.Entry<byte[], byte[]> entry : expected.entrySet()) {
+			assertTrue(cursor.next());
+			assertArrayEquals(entry.getKey(), cursor.key());
+			assertArrayEquals(entry.getValue(), cursor.value());
+		}
+		
+		assertFalse(cursor.next());
+		
+	}
+	
+	private byte[] randomKey() {
+		byte[] key = new byte[TestDatabase.keySize];
+		random.nextBytes(key);
+		return key;
+	}
+	
+	private byte[] randomValue() {
+		byte[] value = new byte[random.nextInt(100)];
+		random.nextBytes(value);
+		return value;
+	}
+	
+}
@@ -0,0 +1,178 @@
+package net.krazyweb.stardb.databases;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.krazyweb.stardb.StarDBUtils;
+
+/**
+ * Checks the ordering, lookups and directory listings of {@link AssetFileList}.
+ */
+public class AssetFileListTest {
+
+	private static final List<String> paths = Arrays.asList(
+		"/items/sword.item",
+		"/items",
+		"/items0/axe.item",
+		"/items-old/bow.item",
+		"/items/weapons/melee/dagger.item",
+		"/items/weapons/ranged/gun.item",
+		"/items/weapons/melee/spear.item",
+		"/items/armor/head.item",
+		"/items/shield.item",
+		"/player.config",
+		"/d\u00E9j\u00E0/file.txt",
+		"/\uFF5E/wide.txt",
+		"/\uD83D\uDE00/emoji.txt",
+		"/z/last.txt"
+	);
+	
+	@Test
+	public void listIsSortedByUtf8Bytes() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		List<String> expected = new ArrayList<>(paths);
+		
+		Collections.sort(expected, new Comparator<String>() {
+			@Override
+			public int compare(final String a, final String b) {
+				return StarDBUtils.compareUnsigned(a.getBytes(StarDBUtils.utf8), b.getBytes(StarDBUtils.utf8));
+			}
+		});
+		
+		assertEquals(expected, list);
+		assertTrue(list.indexOf("/\uFF5E/wide.txt") < list.indexOf("/\uD83D\uDE00/emoji.txt"));
+		
+	}
+	
+	@Test
+	public void existsFindsOnlyWholePaths() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		
+		for (String path : paths) {
+			assertTrue(path, list.exists(path));
+			assertTrue(path, list.contains(path));
+		}
+		
+		assertFalse(list.exists("/items/"));
+		assertFalse(list.exists("/items/weapons"));
+		assertFalse(list.exists("/items/sword.ite"));
+		assertFalse(list.exists("/items/sword.items"));
+		assertFalse(list.exists(""));
+		assertFalse(list.exists("/zz"));
+		assertFalse(list.contains(null));
+		assertFalse(list.contains(1));
+		
+	}
+	
+	@Test
+	public void listingIsTheSameWithOrWithoutTrailingSlash() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		List<String> expected = Arrays.asList("/items/armor/", "/items/shield.item", "/items/sword.item", "/items/weapons/");
+		
+		assertEquals(expected, list.listDirectory("/items"));
+		assertEquals(expected, list.listDirectory("/items/"));
+		
+	}
+	
+	@Test
+	public void subdirectoriesAreListedOnce() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		
+		assertEquals(Arrays.asList("/items/weapons/melee/", "/items/weapons/ranged/"), list.listDirectory("/items/weapons"));
+		assertEquals(Arrays.asList("/items/weapons/melee/dagger.item", "/items/weapons/melee/spear.item"), list.listDirectory("/items/weapons/melee/"));
+		
+	}
+	
+	@Test
+	public void rootListsTopLevelEntries() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		List<String> expected = Arrays.asList("/d\u00E9j\u00E0/", "/items", "/items-old/", "/items/", "/items0/", "/player.config", "/z/", "/\uFF5E/", "/\uD83D\uDE00/");
+		
+		assertEquals(expected, list.listDirectory("/"));
+		assertEquals(expected, list.listDirectory(""));
+		
+	}
+	
+	@Test
+	public void missingDirectoryIsEmpty() throws IOException {
+		
+		AssetFileList list = read(paths, 1);
+		
+		assertTrue(list.listDirectory("/missing").isEmpty());
+		assertTrue(list.listDirectory("/items/sword.item").isEmpty());
+		assertEquals(Arrays.asList("/d\u00E9j\u00E0/file.txt"), list.listDirectory("/d\u00E9j\u00E0"));
+		
+	}
+	
+	@Test
+	public void onlyTheFirstEntryOfEachFileIsItsPath() throws IOException {
+		
+		AssetFileList list = read(paths, 3);
+		
+		assertEquals(paths.size(), list.size());
+		
+		for (String path : paths) {
+			assertTrue(path, list.exists(path));
+			assertFalse(path, list.exists(path + "#1"));
+		}
+		
+	}
+	
+	@Test
+	public void emptyListHasNoEntries() throws IOException {
+		
+		AssetFileList list = read(new ArrayList<String>(), 1);
+		
+		assertTrue(list.isEmpty());
+		assertFalse(list.exists("/items"));
+		assertTrue(list.listDirectory("/").isEmpty());
+		
+	}
+	
+	@Test(expected = EOFException.class)
+	public void truncatedListIsRejected() throws IOException {
+		byte[] data = StarDBUtils.packStringList(paths);
+		AssetFileList.read(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 3))), 1);
+	}
+	
+	/**
+	 * Packs the paths in Starbound's stored list format, with extra entries after each path when the multiplier is
+	 * greater than one, and reads them back.
+	 */
+	private static AssetFileList read(final List<String> files, final int multiplier) throws IOException {
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write(StarDBUtils.packVLQU(files.size()));
+		
+		for (String file : files) {
+			for (int j = 0; j < multiplier; j++) {
+				byte[] entry = (j == 0 ? file : file + "#" + j).getBytes(StarDBUtils.utf8);
+				output.write(StarDBUtils.packVLQU(entry.length));
+				output.write(entry);
+			}
+		}
+		
+		return AssetFileList.read(Channels.newChannel(new ByteArrayInputStream(output.toByteArray())), multiplier);
+		
+	}
+	
+}
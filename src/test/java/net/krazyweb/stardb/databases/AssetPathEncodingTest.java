@@ -0,0 +1,82 @@
+package net.krazyweb.stardb.databases;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.storage.BlockFile;
+
+/**
+ * Checks that paths outside of ASCII are hashed and listed the same way by the writer and by every lookup, whatever
+ * the platform's default charset. The tests are run with a default charset other than UTF-8.
+ */
+public class AssetPathEncodingTest {
+
+	private static final String packed = "/d\u00E9j\u00E0 vu/\u30D5\u30A1\u30A4\u30EB.txt";
+	private static final String added = "/d\u00E9j\u00E0 vu/\u00FCber.config";
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void packedPathsCanBeFound() throws Exception {
+		
+		byte[] data = "packed".getBytes("UTF-8");
+		
+		AssetDatabaseWriter writer = new AssetDatabaseWriter(512);
+		writer.addAsset(packed, data);
+		writer.addAsset("/ascii.txt", new byte[3]);
+		
+		Path database = folder.getRoot().toPath().resolve("encoding.pak");
+		writer.write(database, 1);
+		
+		AssetDatabase db = AssetDatabase.open(new BlockFile(database, true));
+		
+		assertArrayEquals(data, db.getAsset(packed));
+		assertTrue(db.hasAsset(packed));
+		assertArrayEquals(data, db.getAssetAsync(packed).get());
+		assertArrayEquals(data, read(db.getAssetChannel(packed)));
+		assertArrayEquals(data, db.getAssetByHash(db.hashPaths(Arrays.asList(packed))[0]));
+		assertTrue(db.getFileList().contains(packed));
+		assertTrue(db.exists(packed));
+		assertEquals(Arrays.asList(packed), db.listDirectory("/d\u00E9j\u00E0 vu"));
+		
+		db.putAsset(added, data);
+		assertTrue(db.removeAsset(packed));
+		db.commit();
+		
+		AssetDatabase reopened = AssetDatabase.open(new BlockFile(database));
+		
+		assertArrayEquals(data, reopened.getAsset(added));
+		assertTrue(!reopened.hasAsset(packed));
+		assertEquals(Arrays.asList("/ascii.txt", added), reopened.getFileList());
+		
+	}
+	
+	private static byte[] read(final ReadableByteChannel channel) throws Exception {
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		
+		while (channel.read(buffer) >= 0) {
+			output.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+		}
+		
+		channel.close();
+		
+		return output.toByteArray();
+		
+	}
+	
+}
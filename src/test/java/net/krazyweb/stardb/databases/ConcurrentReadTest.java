@@ -0,0 +1,125 @@
+package net.krazyweb.stardb.databases;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
+import net.krazyweb.stardb.storage.MappedBlockFile;
+
+/**
+ * Checks that many threads sharing one database read exactly what a single thread reads.
+ */
+public class ConcurrentReadTest {
+
+	private static final int files = 2000;
+	private static final int threads = 8;
+	private static final int lookups = 4000;
+	
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static Path database;
+	private static String[] paths;
+	private static byte[][] contents;
+	
+	@BeforeClass
+	public static void writeDatabase() throws Exception {
+		
+		Random random = new Random(2);
+		AssetDatabaseWriter writer = new AssetDatabaseWriter(512);
+		
+		paths = new String[files];
+		contents = new byte[files][];
+		
+		for (int i = 0; i < files; i++) {
+			paths[i] = "/dir" + (i % 16) + "/file" + i + ".dat";
+			contents[i] = new byte[i % 50 == 0 ? 5000 + random.nextInt(5000) : random.nextInt(600)];
+			random.nextBytes(contents[i]);
+			writer.addAsset(paths[i], contents[i]);
+		}
+		
+		database = folder.getRoot().toPath().resolve("concurrent.pak");
+		writer.write(database, 2);
+		
+	}
+	
+	@Test
+	public void blockFileReadersAgreeWithSingleThread() throws Exception {
+		checkConcurrentReads(new BlockFile(database));
+	}
+	
+	@Test
+	public void mappedBlockFileReadersAgreeWithSingleThread() throws Exception {
+		checkConcurrentReads(new MappedBlockFile(database));
+	}
+	
+	private static void checkConcurrentReads(final BlockStorage storage) throws Exception {
+		
+		final AssetDatabase db = AssetDatabase.open(storage);
+		final byte[][] expected = new byte[files][];
+		
+		for (int i = 0; i < files; i++) {
+			expected[i] = db.getAsset(paths[i]);
+			assertArrayEquals(paths[i], contents[i], expected[i]);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		try {
+			
+			List<Future<Integer>> results = new ArrayList<>();
+			
+			for (int t = 0; t < threads; t++) {
+				
+				final long seed = t;
+				
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						
+						Random random = new Random(seed);
+						
+						for (int i = 0; i < lookups; i++) {
+							
+							int file = random.nextInt(files);
+							byte[] data = random.nextBoolean() ? db.getAsset(paths[file]) : db.find(paths[file].getBytes("UTF-8"));
+							
+							assertNotNull(paths[file], data);
+							assertArrayEquals(paths[file], expected[file], data);
+							
+						}
+						
+						return lookups;
+						
+					}
+				}));
+				
+			}
+			
+			for (Future<Integer> result : results) {
+				assertEquals(lookups, (int) result.get());
+			}
+			
+		} finally {
+			executor.shutdown();
+		}
+		
+	}
+	
+}
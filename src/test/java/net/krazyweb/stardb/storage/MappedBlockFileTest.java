@@ -0,0 +1,129 @@
+package net.krazyweb.stardb.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.databases.AssetDatabaseWriter;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Reads a database through MappedBlockFiles split into small chunks and checks every read against a BlockFile.
+ */
+public class MappedBlockFileTest {
+
+	private static final int files = 300;
+	private static final int blockSize = 512;
+	
+	@ClassRule
+	public static final TemporaryFolder folder = new TemporaryFolder();
+	
+	private static Path database;
+	private static byte[][] contents;
+	
+	@BeforeClass
+	public static void writeDatabase() throws Exception {
+		
+		Random random = new Random(7);
+		AssetDatabaseWriter writer = new AssetDatabaseWriter(blockSize);
+		
+		contents = new byte[files][];
+		
+		for (int i = 0; i < files; i++) {
+			contents[i] = new byte[i % 20 == 0 ? blockSize * 6 : random.nextInt(400)];
+			random.nextBytes(contents[i]);
+			writer.addAsset(path(i), contents[i]);
+		}
+		
+		database = folder.getRoot().toPath().resolve("mapped.pak");
+		writer.write(database, 1);
+		
+	}
+	
+	@Test
+	public void singleChunkMatchesBlockFile() throws Exception {
+		checkAgainstBlockFile(new MappedBlockFile(database));
+	}
+	
+	@Test
+	public void chunksOfSeveralBlocksMatchBlockFile() throws Exception {
+		checkAgainstBlockFile(new MappedBlockFile(database, blockSize * 3 + 100));
+	}
+	
+	@Test
+	public void chunksSmallerThanABlockHoldOneBlock() throws Exception {
+		checkAgainstBlockFile(new MappedBlockFile(database, 100));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void chunkSizeMustBePositive() throws Exception {
+		new MappedBlockFile(database, 0);
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void emptyFileIsRejected() throws Exception {
+		new MappedBlockFile(write("empty.pak", new byte[0])).open();
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void fileShorterThanTheHeaderIsRejected() throws Exception {
+		new MappedBlockFile(write("short.pak", Arrays.copyOf("SBBF02".getBytes("US-ASCII"), 12))).open();
+	}
+	
+	@Test(expected = StarDBException.class)
+	public void fileWithoutTheMagicIsRejected() throws Exception {
+		new MappedBlockFile(write("magic.pak", new byte[1024])).open();
+	}
+	
+	private static void checkAgainstBlockFile(final MappedBlockFile mapped) throws Exception {
+		
+		AssetDatabase db = AssetDatabase.open(mapped);
+		BlockFile file = new BlockFile(database);
+		file.open();
+		
+		int blocks = (int) ((Files.size(database) - 512) / blockSize);
+		
+		assertEquals(file.getBlockSize(), mapped.getBlockSize());
+		assertEquals(file.getFileSize(), mapped.getFileSize());
+		assertEquals(file.readUserDataBuffer(0, 36), mapped.readUserDataBuffer(0, 36));
+		
+		for (int i = 0; i < blocks; i++) {
+			
+			assertEquals("Block " + i, file.readBlockBuffer(i), mapped.readBlockBuffer(i));
+			assertEquals("Block " + i, file.readBlockBuffer(i, 10, 20), mapped.readBlockBuffer(i, 10, 20));
+			
+			ByteBuffer run = mapped.readBlocksBuffer(i, 5);
+			
+			assertEquals("Blocks from " + i, Math.min(5, blocks - i) * blockSize, run.remaining());
+			assertEquals("Blocks from " + i, file.readBlocksBuffer(i, 5), run);
+			
+		}
+		
+		for (int i = 0; i < files; i++) {
+			assertArrayEquals(path(i), contents[i], db.getAsset(path(i)));
+		}
+		
+	}
+	
+	private static Path write(final String name, final byte[] data) throws Exception {
+		Path file = folder.getRoot().toPath().resolve(name);
+		Files.write(file, data);
+		return file;
+	}
+	
+	private static String path(final int i) {
+		return "/mapped/file" + i + ".dat";
+	}
+	
+}
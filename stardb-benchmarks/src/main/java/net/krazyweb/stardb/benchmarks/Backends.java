@@ -0,0 +1,52 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.AsyncBlockFile;
+import net.krazyweb.stardb.storage.BlockFile;
+import net.krazyweb.stardb.storage.BlockStorage;
+import net.krazyweb.stardb.storage.MappedBlockFile;
+
+/**
+ * Opens database files with the storage backend given by name, so that benchmarks can take the backend as a parameter.
+ */
+public class Backends {
+
+	/**
+	 * The names of every storage backend.
+	 */
+	public static final String[] names = { "file", "mapped", "async" };
+	
+	private Backends() {
+	}
+	
+	/**
+	 * Creates unopened storage for a database file.
+	 * @param backend - The name of the backend: "file" for a BlockFile, "mapped" for a MappedBlockFile or "async" for an
+	 * AsyncBlockFile.
+	 * @param file - The path of the database file.
+	 * @return The storage.
+	 * @throws StarDBException The backend is unknown or the file could not be opened.
+	 */
+	public static BlockStorage open(final String backend, final Path file) throws StarDBException {
+		
+		try {
+			switch (backend) {
+				case "file":
+					return new BlockFile(file);
+				case "mapped":
+					return new MappedBlockFile(file);
+				case "async":
+					return new AsyncBlockFile(file);
+				default:
+					throw new StarDBException("Unknown storage backend: " + backend);
+			}
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,59 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Measures the throughput of several threads looking up files in one shared database at once. The number of threads
+ * can be changed from the command line with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentReadBenchmark extends FixtureBenchmark {
+
+	@Param({ "file", "mapped", "async" })
+	public String backend;
+	
+	@Param({ "0", "67108864" })
+	public long leafCacheSize;
+	
+	private String[] paths;
+	private AssetDatabase db;
+	
+	@Setup
+	public void setup() throws StarDBException {
+		
+		paths = shuffledPaths();
+		
+		db = AssetDatabase.open(Backends.open(backend, fixture()));
+		db.setLeafCacheSize(leafCacheSize);
+		db.preloadIndex(1);
+		
+	}
+	
+	@Benchmark
+	public byte[] getAsset(final Keys keys) throws StarDBException {
+		return db.getAsset(paths[keys.next(paths.length)]);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.StarDBUtils;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.MappedBlockFile;
+
+/**
+ * Measures decoding the file list: streaming it out of the database into the sorted path table behind getFileList,
+ * unpacking the same list from memory with unpackStringList, and decoding the variable length quantities both are
+ * made of.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileListBenchmark extends FixtureBenchmark {
+
+	private static final int quantities = 4096;
+	
+	private ProbeDatabase db;
+	private byte[] index;
+	private ByteBuffer packedQuantities;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		db = ProbeDatabase.open(new MappedBlockFile(fixture()));
+		index = db.getAsset("_index");
+		
+		Keys keys = new Keys(quantities);
+		packedQuantities = ByteBuffer.allocate(quantities * 5);
+		
+		for (int i = 0; i < quantities; i++) {
+			packedQuantities.put(StarDBUtils.packVLQU(keys.next(1 << (7 * (i % 4 + 1)))));
+		}
+		
+		packedQuantities.flip();
+		
+	}
+	
+	@Benchmark
+	public List<String> getFileList() throws StarDBException {
+		return db.decodeFileList();
+	}
+	
+	@Benchmark
+	public List<String> unpackStringList() throws StarDBException {
+		return StarDBUtils.unpackStringList(index, 1);
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int readVLQU() {
+		
+		ByteBuffer buffer = packedQuantities.duplicate();
+		int sum = 0;
+		
+		while (buffer.hasRemaining()) {
+			sum += StarDBUtils.readVLQU(buffer);
+		}
+		
+		return sum;
+		
+	}
+	
+}
@@ -0,0 +1,60 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * The base of benchmarks which run against a generated database. The shape of the database is taken from JMH
+ * parameters, so it can be varied from the command line with -p, such as -p entries=100000,1000000.
+ */
+@State(Scope.Benchmark)
+public abstract class FixtureBenchmark {
+
+	@Param("10000")
+	public int entries;
+	
+	@Param("1024")
+	public int valueSize;
+	
+	@Param("2048")
+	public int blockSize;
+	
+	/**
+	 * Finds the database for the current parameters, generating it first if an earlier run has not already done so.
+	 * @return The path of the database file.
+	 * @throws StarDBException An error occurred while writing the database.
+	 */
+	protected Path fixture() throws StarDBException {
+		return new FixtureGenerator(entries, valueSize, blockSize).fixture();
+	}
+	
+	/**
+	 * Generates the paths of every file in the database, in a shuffled but repeatable order.
+	 * @return The paths.
+	 */
+	protected String[] shuffledPaths() {
+		
+		String[] paths = new String[entries];
+		Keys keys = new Keys(entries);
+		
+		for (int i = 0; i < entries; i++) {
+			paths[i] = FixtureGenerator.path(i);
+		}
+		
+		for (int i = entries - 1; i > 0; i--) {
+			int j = keys.next(i + 1);
+			String path = paths[i];
+			paths[i] = paths[j];
+			paths[j] = path;
+		}
+		
+		return paths;
+		
+	}
+	
+}
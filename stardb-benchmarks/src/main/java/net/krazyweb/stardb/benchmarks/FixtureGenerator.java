@@ -0,0 +1,205 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import net.krazyweb.stardb.databases.AssetDatabaseWriter;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Writes synthetic asset databases, so that benchmarks can run without any game files. The output is deterministic: the
+ * same settings always produce the same SBBF02 file, byte for byte. File paths are spread over a fixed tree of
+ * directories and can be computed from an entry's number alone, and each file's contents are drawn from a Random seeded
+ * with the generator's seed and the entry's number.
+ * <p>
+ * Most files are of about the small value size. A fraction of them can instead be of the large value size, giving a
+ * mix of files which fit in one block and files which span long chains of blocks.
+ */
+public class FixtureGenerator {
+
+	private final int entries;
+	private final int valueSize;
+	private final int largeValueSize;
+	private final double largeFraction;
+	private final int blockSize;
+	private final long seed;
+	
+	/**
+	 * Creates a new FixtureGenerator whose files are all of about the same size.
+	 * @param entries - The number of files to write.
+	 * @param valueSize - The average size of each file in bytes. Sizes vary by up to half of this either way.
+	 * @param blockSize - The size of each block in the written database, in bytes.
+	 */
+	public FixtureGenerator(final int entries, final int valueSize, final int blockSize) {
+		this(entries, valueSize, valueSize, 0, blockSize, 0);
+	}
+	
+	/**
+	 * Creates a new FixtureGenerator.
+	 * @param entries - The number of files to write.
+	 * @param valueSize - The average size of each small file in bytes. Sizes vary by up to half of this either way.
+	 * @param largeValueSize - The size of each large file in bytes.
+	 * @param largeFraction - The fraction of files, between 0 and 1, which are large.
+	 * @param blockSize - The size of each block in the written database, in bytes.
+	 * @param seed - The seed from which file sizes and contents are generated.
+	 */
+	public FixtureGenerator(final int entries, final int valueSize, final int largeValueSize, final double largeFraction, final int blockSize, final long seed) {
+		
+		if (entries < 0 || valueSize < 0 || largeValueSize < 0 || largeFraction < 0 || largeFraction > 1) {
+			throw new IllegalArgumentException("Entry counts and sizes must not be negative, and the large fraction must be between 0 and 1.");
+		}
+		
+		this.entries = entries;
+		this.valueSize = valueSize;
+		this.largeValueSize = largeValueSize;
+		this.largeFraction = largeFraction;
+		this.blockSize = blockSize;
+		this.seed = seed;
+		
+	}
+	
+	/**
+	 * Generates the path of a file.
+	 * @param entry - The number of the file, from zero.
+	 * @return The path of the file within the database.
+	 */
+	public static String path(final int entry) {
+		return "/dir" + (entry % 64) + "/sub" + (entry / 64 % 16) + "/file" + entry + ".dat";
+	}
+	
+	/**
+	 * Generates the contents of a file.
+	 * @param entry - The number of the file, from zero.
+	 * @return The contents of the file.
+	 */
+	public byte[] data(final int entry) {
+		
+		Random random = new Random(mix(seed * 0x9E3779B97F4A7C15L + entry));
+		
+		int size;
+		
+		if (random.nextDouble() < largeFraction) {
+			size = largeValueSize;
+		} else {
+			size = valueSize / 2 + (valueSize > 0 ? random.nextInt(valueSize + 1) : 0);
+		}
+		
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		
+		return data;
+		
+	}
+	
+	/**
+	 * Scrambles a seed, since Randoms created with nearby seeds begin with nearly the same numbers.
+	 * @param seed - The seed to scramble.
+	 * @return The scrambled seed.
+	 */
+	private static long mix(long seed) {
+		seed = (seed ^ (seed >>> 30)) * 0xBF58476D1CE4E5B9L;
+		seed = (seed ^ (seed >>> 27)) * 0x94D049BB133111EBL;
+		return seed ^ (seed >>> 31);
+	}
+	
+	/**
+	 * @return The number of files written.
+	 */
+	public int getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * Writes the database, replacing any existing file.
+	 * @param databaseFile - The path of the database file to write.
+	 * @throws StarDBException An error occurred while writing the database.
+	 */
+	public void write(final Path databaseFile) throws StarDBException {
+		
+		AssetDatabaseWriter writer = new AssetDatabaseWriter(blockSize);
+		
+		for (int i = 0; i < entries; i++) {
+			writer.addAsset(path(i), data(i));
+		}
+		
+		writer.write(databaseFile, Runtime.getRuntime().availableProcessors());
+		
+	}
+	
+	/**
+	 * Finds the database for these settings in a directory, writing it first if it is not already there. The file is
+	 * named after the settings, so databases generated by earlier runs are reused.
+	 * @param directory - The directory to keep generated databases in.
+	 * @return The path of the database file.
+	 * @throws StarDBException An error occurred while writing the database.
+	 */
+	public Path fixture(final Path directory) throws StarDBException {
+		
+		Path file = directory.resolve("fixture-" + entries + "-" + valueSize + "-" + largeValueSize + "-" + largeFraction + "-" + blockSize + "-" + seed + ".pak");
+		
+		if (Files.isRegularFile(file)) {
+			return file;
+		}
+		
+		try {
+			
+			Files.createDirectories(directory);
+			Path temporary = Files.createTempFile(directory, "fixture-", ".tmp");
+			
+			try {
+				write(temporary);
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary);
+			}
+			
+		} catch (IOException e) {
+			throw new StarDBException("Error: " + e.getMessage(), e);
+		}
+		
+		return file;
+		
+	}
+	
+	/**
+	 * Finds the database for these settings in the default directory, writing it first if it is not already there.
+	 * @return The path of the database file.
+	 * @throws StarDBException An error occurred while writing the database.
+	 */
+	public Path fixture() throws StarDBException {
+		return fixture(Paths.get(System.getProperty("java.io.tmpdir"), "stardb-benchmarks"));
+	}
+	
+	/**
+	 * Writes a database from the command line.
+	 * @param args - The output file, followed optionally by the entry count, value size, block size, large value size,
+	 * large fraction and seed.
+	 * @throws StarDBException An error occurred while writing the database.
+	 */
+	public static void main(final String[] args) throws StarDBException {
+		
+		if (args.length < 1) {
+			System.err.println("Usage: FixtureGenerator <output> [entries] [valueSize] [blockSize] [largeValueSize] [largeFraction] [seed]");
+			System.exit(1);
+		}
+		
+		int entries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		int blockSize = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+		int largeValueSize = args.length > 4 ? Integer.parseInt(args[4]) : valueSize;
+		double largeFraction = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+		long seed = args.length > 6 ? Long.parseLong(args[6]) : 0;
+		
+		long start = System.nanoTime();
+		
+		new FixtureGenerator(entries, valueSize, largeValueSize, largeFraction, blockSize, seed).write(Paths.get(args[0]));
+		
+		System.out.println("Wrote " + entries + " files to " + args[0] + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		
+	}
+	
+}
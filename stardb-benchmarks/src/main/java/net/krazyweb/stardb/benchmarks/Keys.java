@@ -0,0 +1,49 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Chooses which keys each benchmark thread looks up. Every thread draws from its own cheap pseudo-random sequence, so
+ * threads do not contend on a shared Random and each run visits the same keys.
+ */
+@State(Scope.Thread)
+public class Keys {
+
+	private static final AtomicLong threads = new AtomicLong();
+	
+	private long state;
+	
+	/**
+	 * Creates a new Keys instance for the next benchmark thread.
+	 */
+	public Keys() {
+		this(threads.incrementAndGet());
+	}
+	
+	/**
+	 * Creates a new Keys instance with the given seed.
+	 * @param seed - The seed of the sequence.
+	 */
+	public Keys(final long seed) {
+		state = seed * 0x9E3779B97F4A7C15L + 1;
+	}
+	
+	/**
+	 * Draws the next number of the sequence.
+	 * @param bound - The exclusive upper bound of the number.
+	 * @return A number from zero up to, but not including, the bound.
+	 */
+	public int next(final int bound) {
+		
+		state ^= state << 13;
+		state ^= state >>> 7;
+		state ^= state << 17;
+		
+		return (int) ((state >>> 33) % bound);
+		
+	}
+	
+}
@@ -0,0 +1,139 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.btree.LeafSearch;
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.MappedBlockFile;
+
+/**
+ * Compares the two ways a leaf is searched for a SHA-256 key: from an interpolated starting point followed by a gallop,
+ * and by plain binary search over the whole leaf. Alongside the time per search, the comparisons and searches counters
+ * give the total key comparisons made and the searches made in each iteration; their ratio is the number of
+ * comparisons per search. The database holds many small files so that each leaf holds many keys, and the comparisons
+ * are counted without synchronization, so this must run single threaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeafSearchBenchmark {
+
+	private static final int searchedKeys = 4096;
+	
+	@Param("100000")
+	public int entries;
+	
+	@Param("16")
+	public int valueSize;
+	
+	@Param({ "2048", "16384" })
+	public int blockSize;
+	
+	private LeafSearch[] leaves;
+	private byte[][] keys;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		MappedBlockFile storage = new MappedBlockFile(new FixtureGenerator(entries, valueSize, blockSize).fixture());
+		AssetDatabase db = AssetDatabase.open(storage);
+		
+		Keys random = new Keys(searchedKeys);
+		List<String> paths = new ArrayList<>();
+		
+		for (int i = 0; i < searchedKeys; i++) {
+			paths.add(FixtureGenerator.path(random.next(entries)));
+		}
+		
+		keys = db.hashPaths(paths);
+		leaves = new LeafSearch[keys.length];
+		
+		Map<Integer, LeafSearch> read = new HashMap<>();
+		
+		for (int i = 0; i < keys.length; i++) {
+			
+			LeafSearch leaf = new LeafSearch(db, keys[i]);
+			
+			if (!read.containsKey(leaf.getPointer())) {
+				read.put(leaf.getPointer(), leaf);
+			}
+			
+			leaves[i] = read.get(leaf.getPointer());
+			
+			if (leaves[i].interpolated(keys[i]) < 0 || leaves[i].interpolated(keys[i]) != leaves[i].binary(keys[i])) {
+				throw new StarDBException("The searches disagree about " + paths.get(i));
+			}
+			
+		}
+		
+	}
+	
+	@Benchmark
+	public int interpolated(final Keys random, final Comparisons counters) {
+		
+		int i = random.next(keys.length);
+		long before = leaves[i].getComparisons();
+		int index = leaves[i].interpolated(keys[i]);
+		
+		counters.comparisons += leaves[i].getComparisons() - before;
+		counters.searches++;
+		
+		return index;
+		
+	}
+	
+	@Benchmark
+	public int binary(final Keys random, final Comparisons counters) {
+		
+		int i = random.next(keys.length);
+		long before = leaves[i].getComparisons();
+		int index = leaves[i].binary(keys[i]);
+		
+		counters.comparisons += leaves[i].getComparisons() - before;
+		counters.searches++;
+		
+		return index;
+		
+	}
+	
+	/**
+	 * The key comparisons and searches made in each iteration, reported by JMH next to the time per search.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Comparisons {
+		
+		public long comparisons;
+		public long searches;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			comparisons = 0;
+			searches = 0;
+		}
+		
+	}
+	
+}
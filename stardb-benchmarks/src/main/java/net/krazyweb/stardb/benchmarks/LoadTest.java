@@ -0,0 +1,422 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Puts an AssetDatabase under the load of many concurrent readers and reports the throughput and latency percentiles
+ * they see. Each reader looks up files chosen from the database's file list with a Zipfian distribution, so a few
+ * files are read very often and most rarely, and large and small files are read side by side. Every lookup's latency is
+ * recorded in an HdrHistogram, and the run is repeated for every combination of storage backend and cache size given,
+ * so that they can be compared in one table.
+ * <p>
+ * By default every reader issues its next lookup as soon as the last completes. Given a target rate, readers instead
+ * issue lookups on a fixed schedule and latency is measured from when each lookup was due, so that a stall is charged
+ * to every lookup delayed by it rather than hidden by the readers slowing down.
+ * <p>
+ * Options are given as --name=value. Run with --help for the list.
+ */
+public class LoadTest {
+
+	private static final long maxLatency = TimeUnit.MINUTES.toNanos(1);
+	
+	private final Path file;
+	private final Map<String, String> options;
+	private final int threads;
+	private final double rate;
+	private final double exponent;
+	private final long warmup;
+	private final long duration;
+	private final int largeThreshold;
+	private final long indexCacheSize;
+	private final Path histogramDirectory;
+	
+	private LoadTest(final Path file, final Map<String, String> options) {
+		
+		this.file = file;
+		this.options = options;
+		
+		threads = Integer.parseInt(option("threads", "8"));
+		rate = Double.parseDouble(option("rate", "0"));
+		exponent = Double.parseDouble(option("zipf", "0.99"));
+		warmup = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(option("warmup", "3")) * 1000));
+		duration = TimeUnit.MILLISECONDS.toNanos((long) (Double.parseDouble(option("duration", "10")) * 1000));
+		largeThreshold = (int) parseSize(option("largeThreshold", "64k"));
+		indexCacheSize = options.containsKey("indexCache") ? parseSize(options.get("indexCache")) : -1;
+		histogramDirectory = options.containsKey("histograms") ? Paths.get(options.get("histograms")) : null;
+		
+		if (threads <= 0 || duration <= 0) {
+			throw new IllegalArgumentException("The thread count and duration must be positive.");
+		}
+		
+	}
+	
+	/**
+	 * Runs the load test from the command line.
+	 * @param args - The options, each given as --name=value.
+	 * @throws Exception An error occurred while generating or reading the database.
+	 */
+	public static void main(final String[] args) throws Exception {
+		
+		Map<String, String> options = new HashMap<>();
+		
+		for (String arg : args) {
+			
+			if (!arg.startsWith("--")) {
+				usage("Unknown argument: " + arg);
+			}
+			
+			int split = arg.indexOf('=');
+			
+			if (split < 0) {
+				options.put(arg.substring(2), "true");
+			} else {
+				options.put(arg.substring(2, split), arg.substring(split + 1));
+			}
+			
+		}
+		
+		if (options.containsKey("help")) {
+			usage(null);
+		}
+		
+		Path file;
+		
+		if (options.containsKey("file")) {
+			
+			file = Paths.get(options.get("file"));
+			
+		} else {
+			
+			FixtureGenerator generator = new FixtureGenerator(
+				Integer.parseInt(get(options, "entries", "20000")),
+				(int) parseSize(get(options, "valueSize", "1k")),
+				(int) parseSize(get(options, "largeValueSize", "256k")),
+				Double.parseDouble(get(options, "largeFraction", "0.01")),
+				(int) parseSize(get(options, "blockSize", "2k")),
+				Long.parseLong(get(options, "seed", "0"))
+			);
+			
+			System.out.println("Generating the fixture...");
+			file = generator.fixture();
+			
+		}
+		
+		new LoadTest(file, options).run();
+		
+	}
+	
+	private static void usage(final String error) {
+		
+		if (error != null) {
+			System.err.println(error);
+		}
+		
+		System.err.println("Usage: LoadTest [--name=value ...]");
+		System.err.println("  --file=<path>            The database to read. Without it, a fixture is generated:");
+		System.err.println("    --entries=20000          The number of files.");
+		System.err.println("    --valueSize=1k           The average size of small files.");
+		System.err.println("    --largeValueSize=256k    The size of large files.");
+		System.err.println("    --largeFraction=0.01     The fraction of files which are large.");
+		System.err.println("    --blockSize=2k           The block size.");
+		System.err.println("    --seed=0                 The seed of the generated contents.");
+		System.err.println("  --backends=file,mapped,async  The storage backends to compare.");
+		System.err.println("  --leafCaches=0,64m       The leaf cache sizes to compare.");
+		System.err.println("  --indexCache=<size>      The index cache size. Uses the default if not given.");
+		System.err.println("  --threads=8              The number of reader threads.");
+		System.err.println("  --rate=0                 The target lookups per second across all readers, or 0 for as fast as possible.");
+		System.err.println("  --zipf=0.99              The skew of the key distribution. 0 reads every file equally often.");
+		System.err.println("  --warmup=3               The seconds to run before recording.");
+		System.err.println("  --duration=10            The seconds to record for.");
+		System.err.println("  --largeThreshold=64k     The size from which a file counts as large.");
+		System.err.println("  --histograms=<dir>       Writes the full percentile distribution of every run to this directory.");
+		System.exit(error == null ? 0 : 1);
+		
+	}
+	
+	private void run() throws StarDBException, IOException, InterruptedException, ExecutionException {
+		
+		String[] backends = option("backends", "file,mapped,async").split(",");
+		String[] leafCaches = option("leafCaches", "0,64m").split(",");
+		
+		System.out.println(String.format(Locale.ROOT, "%s: %d threads, %s, Zipfian exponent %.2f, %.1f s warmup, %.1f s measured",
+			file, threads, rate > 0 ? String.format(Locale.ROOT, "%.0f lookups/s", rate) : "unthrottled", exponent, warmup / 1e9, duration / 1e9));
+		
+		List<Run> runs = new ArrayList<>();
+		
+		for (String backend : backends) {
+			for (String leafCache : leafCaches) {
+				
+				Run run = new Run(backend.trim(), leafCache.trim());
+				
+				System.out.println("Running " + run.backend + " with a leaf cache of " + run.leafCache + "...");
+				run(run);
+				runs.add(run);
+				
+			}
+		}
+		
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-8s %10s %12s %10s %10s %10s %10s %10s %12s %12s",
+			"backend", "leafCache", "lookups/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us", "small p99", "large p99"));
+		
+		for (Run run : runs) {
+			System.out.println(String.format(Locale.ROOT, "%-8s %10s %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f %12s %12s",
+				run.backend, run.leafCache, run.all.getTotalCount() / (run.elapsed / 1e9), run.bytes / (run.elapsed / 1e9) / (1 << 20),
+				micros(run.all, 50), micros(run.all, 99), micros(run.all, 99.9), run.all.getMaxValue() / 1e3,
+				percentile(run.small, 99), percentile(run.large, 99)));
+		}
+		
+		for (Run run : runs) {
+			if (run.misses > 0) {
+				System.out.println(run.backend + " with a leaf cache of " + run.leafCache + ": " + run.misses + " files were listed but not found.");
+			}
+		}
+		
+	}
+	
+	private void run(final Run run) throws StarDBException, IOException, InterruptedException, ExecutionException {
+		
+		final AssetDatabase db = AssetDatabase.open(Backends.open(run.backend, file));
+		
+		db.setLeafCacheSize(parseSize(run.leafCache));
+		
+		if (indexCacheSize >= 0) {
+			db.setIndexCacheSize(indexCacheSize);
+		}
+		
+		List<String> files = new ArrayList<>(db.getFileList());
+		Collections.shuffle(files, new Random(0));
+		
+		final String[] ranked = files.toArray(new String[files.size()]);
+		final ZipfianDistribution distribution = new ZipfianDistribution(ranked.length, exponent);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		try {
+			
+			phase(executor, db, ranked, distribution, warmup);
+			
+			long start = System.nanoTime();
+			List<Reader> readers = phase(executor, db, ranked, distribution, duration);
+			run.elapsed = System.nanoTime() - start;
+			
+			for (Reader reader : readers) {
+				run.small.add(reader.small);
+				run.large.add(reader.large);
+				run.bytes += reader.bytes;
+				run.misses += reader.misses;
+			}
+			
+			run.all.add(run.small);
+			run.all.add(run.large);
+			
+		} finally {
+			executor.shutdown();
+		}
+		
+		if (histogramDirectory != null) {
+			
+			Files.createDirectories(histogramDirectory);
+			
+			try (PrintStream output = new PrintStream(new FileOutputStream(histogramDirectory.resolve(run.backend + "-" + run.leafCache + ".hgrm").toFile()))) {
+				run.all.outputPercentileDistribution(output, 1000.0);
+			}
+			
+		}
+		
+	}
+	
+	private List<Reader> phase(final ExecutorService executor, final AssetDatabase db, final String[] ranked, final ZipfianDistribution distribution, final long length) throws InterruptedException, ExecutionException {
+		
+		long start = System.nanoTime();
+		long end = start + length;
+		long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+		
+		List<Future<Reader>> futures = new ArrayList<>();
+		
+		for (int i = 0; i < threads; i++) {
+			futures.add(executor.submit(new Reader(db, ranked, distribution, start, end, interval)));
+		}
+		
+		List<Reader> readers = new ArrayList<>();
+		
+		for (Future<Reader> future : futures) {
+			readers.add(future.get());
+		}
+		
+		return readers;
+		
+	}
+	
+	private String option(final String name, final String defaultValue) {
+		return get(options, name, defaultValue);
+	}
+	
+	private static String get(final Map<String, String> options, final String name, final String defaultValue) {
+		return options.containsKey(name) ? options.get(name) : defaultValue;
+	}
+	
+	/**
+	 * Parses a size in bytes, optionally suffixed with k, m or g.
+	 * @param size - The size, such as "64m".
+	 * @return The size in bytes.
+	 */
+	private static long parseSize(final String size) {
+		
+		String value = size.trim().toLowerCase(Locale.ROOT);
+		long multiplier = 1;
+		
+		if (value.endsWith("k")) {
+			multiplier = 1L << 10;
+		} else if (value.endsWith("m")) {
+			multiplier = 1L << 20;
+		} else if (value.endsWith("g")) {
+			multiplier = 1L << 30;
+		}
+		
+		if (multiplier > 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		
+		return Long.parseLong(value) * multiplier;
+		
+	}
+	
+	private static double micros(final Histogram histogram, final double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1e3;
+	}
+	
+	private static String percentile(final Histogram histogram, final double percentile) {
+		return histogram.getTotalCount() == 0 ? "-" : String.format(Locale.ROOT, "%.1f", micros(histogram, percentile));
+	}
+	
+	/**
+	 * One combination of storage backend and cache size, and the results of running it.
+	 */
+	private static class Run {
+		
+		private final String backend;
+		private final String leafCache;
+		private final Histogram all;
+		private final Histogram small;
+		private final Histogram large;
+		
+		private long elapsed;
+		private long bytes;
+		private long misses;
+		
+		private Run(final String backend, final String leafCache) {
+			this.backend = backend;
+			this.leafCache = leafCache;
+			all = new Histogram(maxLatency, 3);
+			small = new Histogram(maxLatency, 3);
+			large = new Histogram(maxLatency, 3);
+		}
+		
+	}
+	
+	/**
+	 * A reader thread, which looks up files until the end of its phase and records each lookup's latency.
+	 */
+	private class Reader implements Callable<Reader> {
+		
+		private final AssetDatabase db;
+		private final String[] ranked;
+		private final ZipfianDistribution distribution;
+		private final long start;
+		private final long end;
+		private final long interval;
+		private final Histogram small;
+		private final Histogram large;
+		
+		private long bytes;
+		private long misses;
+		
+		private Reader(final AssetDatabase db, final String[] ranked, final ZipfianDistribution distribution, final long start, final long end, final long interval) {
+			this.db = db;
+			this.ranked = ranked;
+			this.distribution = distribution;
+			this.start = start;
+			this.end = end;
+			this.interval = interval;
+			small = new Histogram(maxLatency, 3);
+			large = new Histogram(maxLatency, 3);
+		}
+		
+		@Override
+		public Reader call() throws StarDBException {
+			
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long due = start + (interval > 0 ? random.nextLong(interval) : 0);
+			
+			while (true) {
+				
+				long now = System.nanoTime();
+				
+				if (interval > 0) {
+					
+					if (due >= end) {
+						break;
+					}
+					
+					while (now < due) {
+						LockSupport.parkNanos(due - now);
+						now = System.nanoTime();
+					}
+					
+				} else if (now >= end) {
+					break;
+				} else {
+					due = now;
+				}
+				
+				byte[] data = db.getAsset(ranked[distribution.sample(random.nextDouble())]);
+				long latency = Math.min(System.nanoTime() - due, maxLatency);
+				
+				if (data == null) {
+					misses++;
+					small.recordValue(latency);
+				} else if (data.length >= largeThreshold) {
+					bytes += data.length;
+					large.recordValue(latency);
+				} else {
+					bytes += data.length;
+					small.recordValue(latency);
+				}
+				
+				due += interval;
+				
+			}
+			
+			return this;
+			
+		}
+		
+	}
+	
+}
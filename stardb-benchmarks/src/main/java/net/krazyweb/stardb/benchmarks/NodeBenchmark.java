@@ -0,0 +1,74 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.btree.IndexNode;
+import net.krazyweb.stardb.btree.LeafNode;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Measures reading and parsing single nodes of the tree, without the caches in front of them. The nodes are those
+ * visited by a pass of lookups during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeBenchmark extends FixtureBenchmark {
+
+	@Param({ "file", "mapped", "async" })
+	public String backend;
+	
+	private ProbeDatabase db;
+	private int[] indexPointers;
+	private int[] leafPointers;
+	
+	@Setup
+	public void setup() throws StarDBException {
+		
+		db = ProbeDatabase.open(Backends.open(backend, fixture()));
+		db.setIndexCacheSize(0);
+		
+		String[] paths = shuffledPaths();
+		
+		db.startRecording();
+		
+		for (int i = 0; i < Math.min(paths.length, 1024); i++) {
+			db.getAsset(paths[i]);
+		}
+		
+		int[][] pointers = db.stopRecording();
+		indexPointers = pointers[0];
+		leafPointers = pointers[1];
+		
+		if (indexPointers.length == 0) {
+			indexPointers = null;
+		}
+		
+	}
+	
+	@Benchmark
+	public IndexNode readIndex(final Keys keys) throws StarDBException {
+		return indexPointers == null ? null : db.readIndexNode(indexPointers[keys.next(indexPointers.length)]);
+	}
+	
+	@Benchmark
+	public LeafNode readLeaf(final Keys keys) throws StarDBException {
+		return db.readLeafNode(leafPointers[keys.next(leafPointers.length)]);
+	}
+	
+}
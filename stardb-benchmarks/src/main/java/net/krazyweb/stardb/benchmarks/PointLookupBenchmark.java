@@ -0,0 +1,86 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Measures looking up single files with getAsset. Hot lookups run against a database whose index is already cached, so
+ * only the leaf is read; cold lookups run with the index cache disabled, so every index node on the way down is read
+ * and parsed again. The database file itself stays in the OS page cache either way. Opening a database and looking up
+ * its first file is measured separately, one shot at a time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointLookupBenchmark extends FixtureBenchmark {
+
+	@Param({ "file", "mapped", "async" })
+	public String backend;
+	
+	private Path file;
+	private String[] paths;
+	private String[] missingPaths;
+	private AssetDatabase hot;
+	private AssetDatabase cold;
+	
+	@Setup
+	public void setup() throws StarDBException {
+		
+		file = fixture();
+		paths = shuffledPaths();
+		missingPaths = new String[paths.length];
+		
+		for (int i = 0; i < paths.length; i++) {
+			missingPaths[i] = paths[i] + ".missing";
+		}
+		
+		hot = AssetDatabase.open(Backends.open(backend, file));
+		hot.preloadIndex(1);
+		
+		cold = AssetDatabase.open(Backends.open(backend, file));
+		cold.setIndexCacheSize(0);
+		
+	}
+	
+	@Benchmark
+	public byte[] hot(final Keys keys) throws StarDBException {
+		return hot.getAsset(paths[keys.next(paths.length)]);
+	}
+	
+	@Benchmark
+	public byte[] cold(final Keys keys) throws StarDBException {
+		return cold.getAsset(paths[keys.next(paths.length)]);
+	}
+	
+	@Benchmark
+	public byte[] missing(final Keys keys) throws StarDBException {
+		return hot.getAsset(missingPaths[keys.next(missingPaths.length)]);
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 50)
+	public byte[] openAndLookup(final Keys keys) throws StarDBException {
+		return AssetDatabase.open(Backends.open(backend, file)).getAsset(paths[keys.next(paths.length)]);
+	}
+	
+}
@@ -0,0 +1,139 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.krazyweb.stardb.btree.IndexNode;
+import net.krazyweb.stardb.btree.LeafNode;
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+import net.krazyweb.stardb.storage.BlockStorage;
+
+/**
+ * An Assets1 database which exposes the internals benchmarked on their own: reading and parsing single nodes, and
+ * decoding the file list. It can also record the nodes visited by lookups, to give the node benchmarks real pointers.
+ */
+public class ProbeDatabase extends AssetDatabase {
+
+	private volatile Set<Integer> indexPointers;
+	private volatile Set<Integer> leafPointers;
+	
+	private ProbeDatabase(final BlockStorage blockStorage) {
+		super(blockStorage, "Assets1");
+	}
+	
+	/**
+	 * Creates a new ProbeDatabase backed by the given storage, then opens it and readies it for reading.
+	 * @param blockStorage - The unopened storage containing an Assets1 database.
+	 * @return The database.
+	 * @throws StarDBException An error occurred while trying to read the database file.
+	 */
+	public static ProbeDatabase open(final BlockStorage blockStorage) throws StarDBException {
+		blockStorage.open();
+		ProbeDatabase db = new ProbeDatabase(blockStorage);
+		db.open();
+		return db;
+	}
+	
+	/**
+	 * Starts recording the pointers of the nodes loaded by lookups, discarding any recorded before.
+	 */
+	public synchronized void startRecording() {
+		indexPointers = Collections.synchronizedSet(new LinkedHashSet<Integer>());
+		leafPointers = Collections.synchronizedSet(new LinkedHashSet<Integer>());
+	}
+	
+	/**
+	 * Stops recording the pointers of loaded nodes.
+	 * @return The pointers of the index nodes and of the leaves loaded since recording started, in that order.
+	 */
+	public synchronized int[][] stopRecording() {
+		
+		int[][] pointers = { toArray(indexPointers), toArray(leafPointers) };
+		
+		indexPointers = null;
+		leafPointers = null;
+		
+		return pointers;
+		
+	}
+	
+	/**
+	 * Reads and parses an index node, bypassing the index cache.
+	 * @param pointer - The block index of the index node.
+	 * @return The index node.
+	 * @throws StarDBException An error occurred while reading the node.
+	 */
+	public IndexNode readIndexNode(final int pointer) throws StarDBException {
+		return readIndex(pointer);
+	}
+	
+	/**
+	 * Reads and parses a leaf, bypassing the leaf cache.
+	 * @param pointer - The block index of the first block of the leaf.
+	 * @return The leaf.
+	 * @throws StarDBException An error occurred while reading the leaf.
+	 */
+	public LeafNode readLeafNode(final int pointer) throws StarDBException {
+		return readLeaf(pointer);
+	}
+	
+	/**
+	 * Reads and decodes the file list from the database, bypassing the copy held in memory.
+	 * @return The file list.
+	 * @throws StarDBException An error occurred while reading the file list.
+	 */
+	public List<String> decodeFileList() throws StarDBException {
+		return readFileList();
+	}
+	
+	@Override
+	protected IndexNode loadIndex(final int pointer) throws StarDBException {
+		
+		Set<Integer> pointers = indexPointers;
+		
+		if (pointers != null) {
+			pointers.add(pointer);
+		}
+		
+		return super.loadIndex(pointer);
+		
+	}
+	
+	@Override
+	protected LeafNode loadLeaf(final int pointer) throws StarDBException {
+		
+		Set<Integer> pointers = leafPointers;
+		
+		if (pointers != null) {
+			pointers.add(pointer);
+		}
+		
+		return super.loadLeaf(pointer);
+		
+	}
+	
+	private static int[] toArray(final Set<Integer> pointers) {
+		
+		if (pointers == null) {
+			return new int[0];
+		}
+		
+		synchronized (pointers) {
+			
+			int[] array = new int[pointers.size()];
+			int i = 0;
+			
+			for (int pointer : pointers) {
+				array[i++] = pointer;
+			}
+			
+			return array;
+			
+		}
+		
+	}
+	
+}
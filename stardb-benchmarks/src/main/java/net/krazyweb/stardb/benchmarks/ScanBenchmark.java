@@ -0,0 +1,71 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.krazyweb.stardb.btree.BTreeCursor;
+import net.krazyweb.stardb.databases.AssetDatabase;
+import net.krazyweb.stardb.exceptions.StarDBException;
+
+/**
+ * Measures visiting every entry of the database in key order with a cursor, once reading only the keys and value
+ * sizes and once reading every value as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark extends FixtureBenchmark {
+
+	@Param({ "file", "mapped", "async" })
+	public String backend;
+	
+	private AssetDatabase db;
+	
+	@Setup
+	public void setup() throws StarDBException {
+		db = AssetDatabase.open(Backends.open(backend, fixture()));
+	}
+	
+	@Benchmark
+	public long scanKeys() throws StarDBException {
+		
+		BTreeCursor cursor = db.cursor();
+		long size = 0;
+		
+		while (cursor.next()) {
+			size += cursor.key()[0] + cursor.valueSize();
+		}
+		
+		return size;
+		
+	}
+	
+	@Benchmark
+	public long scanValues() throws StarDBException {
+		
+		BTreeCursor cursor = db.cursor();
+		long size = 0;
+		
+		while (cursor.next()) {
+			size += cursor.value().length;
+		}
+		
+		return size;
+		
+	}
+	
+}
@@ -0,0 +1,59 @@
+package net.krazyweb.stardb.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * A Zipfian distribution over ranks, in which the item of rank k is chosen with a probability proportional to
+ * 1 / (k + 1)^exponent. A few items are chosen very often and most items rarely, as with the assets a game loads. The
+ * cumulative probabilities are computed once, and each sample is a binary search over them, so sampling is cheap and
+ * may be done from any number of threads at once.
+ */
+public class ZipfianDistribution {
+
+	private final double[] cumulative;
+	
+	/**
+	 * Creates a new ZipfianDistribution.
+	 * @param items - The number of items to choose between.
+	 * @param exponent - The skew of the distribution. Zero chooses every item equally often; around one is typical of
+	 * real workloads.
+	 */
+	public ZipfianDistribution(final int items, final double exponent) {
+		
+		if (items <= 0 || exponent < 0) {
+			throw new IllegalArgumentException("There must be at least one item, and the exponent must not be negative.");
+		}
+		
+		cumulative = new double[items];
+		
+		double sum = 0;
+		
+		for (int i = 0; i < items; i++) {
+			sum += 1 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+		
+		for (int i = 0; i < items; i++) {
+			cumulative[i] /= sum;
+		}
+		
+	}
+	
+	/**
+	 * Chooses an item.
+	 * @param uniform - A number drawn uniformly from zero up to, but not including, one.
+	 * @return The rank of the chosen item, where rank zero is the most frequently chosen.
+	 */
+	public int sample(final double uniform) {
+		
+		int i = Arrays.binarySearch(cumulative, uniform);
+		
+		if (i < 0) {
+			i = -i - 1;
+		}
+		
+		return Math.min(i, cumulative.length - 1);
+		
+	}
+	
+}